@@ -0,0 +1,309 @@
+package com.notnoop.apns;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.exceptions.RuntimeIOException;
+
+/**
+ * A broadcast of a notification to the tokens of a {@link DeviceTokenFile},
+ * which resumes where it stopped after a crash or a restart.
+ *
+ * The campaign pushes the tokens in order, and checkpoints the offset in
+ * the file of the last token pushed at least {@code errorWindow}
+ * milliseconds ago: by then, APNs had time to reject a notification
+ * written before it, and the connection to resend the notifications
+ * following the rejected one.  The checkpoint is written every
+ * {@code checkpointInterval} milliseconds to a small file, replaced
+ * atomically.  Running a campaign with an existing checkpoint file resumes
+ * after the checkpointed offset: only the notifications pushed within the
+ * error window before the crash are sent again.
+ *
+ * A run stops at the first chunk of tokens the service rejects
+ * notifications of, during an outage for instance, and the checkpoint
+ * stays before it: the next run sends the whole chunk again.
+ *
+ * The window is counted from the time the notifications are handed to the
+ * service, so a queued service should keep its queue shorter than the
+ * window.
+ */
+public class ApnsCampaign {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsCampaign.class);
+
+    /**
+     * Default time after which a pushed notification is checkpointed, in
+     * milliseconds, and the default window of {@link BulkProgress}.  A
+     * longer window only makes a resumed campaign send more notifications
+     * again: it is longer than the time a stopping service waits for
+     * errors, and shorter than the journal's window, which only costs disk
+     * space.
+     */
+    public static final long DEFAULT_ERROR_WINDOW = 10 * 1000;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
+    private static final int MAGIC = 0x41504e43;
+    private static final int CHUNK = 1000;
+
+    private final ApnsService service;
+    private final DeviceTokenFile audience;
+    private final byte[] payload;
+    private final File checkpointFile;
+    private final long errorWindow;
+    private final long checkpointInterval;
+    private int expiry = ApnsNotification.MAXIMUM_EXPIRY;
+    private Priority priority = Priority.SEND_IMMEDIATELY;
+    private BulkProgress progress;
+
+    private volatile long checkpoint;
+    private volatile boolean stopped;
+
+    public ApnsCampaign(ApnsService service, DeviceTokenFile audience, byte[] payload, File checkpointFile) {
+        this(service, audience, payload, checkpointFile, DEFAULT_ERROR_WINDOW, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param checkpointFile        file of the checkpoint, read when the
+     *                              campaign starts
+     * @param errorWindow           time in milliseconds after which a
+     *                              pushed notification is checkpointed
+     * @param checkpointInterval    time in milliseconds between writing
+     *                              checkpoints
+     */
+    public ApnsCampaign(ApnsService service, DeviceTokenFile audience, byte[] payload, File checkpointFile,
+            long errorWindow, long checkpointInterval) {
+        this.service = service;
+        this.audience = audience;
+        this.payload = payload;
+        this.checkpointFile = checkpointFile;
+        this.errorWindow = errorWindow;
+        this.checkpointInterval = checkpointInterval;
+        this.checkpoint = readCheckpoint();
+    }
+
+    /**
+     * Sets the expiry time and priority of the notifications.
+     */
+    public ApnsCampaign withExpiry(int expiry, Priority priority) {
+        this.expiry = expiry;
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Sets the progress counting the notifications pushed by the runs of
+     * the campaign; its total is set to the tokens left when a run starts.
+     */
+    public ApnsCampaign withProgress(BulkProgress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Returns the offset in the file the campaign resumes from.
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Returns whether every token of the file was pushed, and checkpointed.
+     */
+    public boolean isCompleted() {
+        return checkpoint == audience.length();
+    }
+
+    /**
+     * Stops a running campaign after its current chunk of notifications;
+     * the next run resumes from the last checkpoint.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Pushes the notification to the tokens following the checkpoint, and
+     * waits for the error window of the last ones to checkpoint the end of
+     * the file, or the end of the last chunk before a rejected one.
+     *
+     * @return the summary of the notifications pushed by this run
+     */
+    public BulkPushResult run() {
+        stopped = false;
+        if (progress != null) {
+            progress.setTotal(progress.getQueued() + progress.getFailed() + audience.estimateTokens(checkpoint));
+        }
+        DeviceTokenFile.Range range = audience.open(checkpoint);
+        ChunkSource chunk = new ChunkSource(range);
+        // offsets pushed but not past the error window yet, with their time
+        LinkedList<long[]> pending = new LinkedList<long[]>();
+        long lastWrite = System.currentTimeMillis();
+
+        long pushed = 0;
+        long failed = 0;
+        int firstIdentifier = -1;
+        int lastIdentifier = -1;
+        List<BulkPushResult.Failure> failures = new ArrayList<BulkPushResult.Failure>();
+        while (!stopped && chunk.next()) {
+            BulkPushResult result = service.pushAll(chunk, payload, expiry, priority);
+            long now = System.currentTimeMillis();
+            if (progress != null) {
+                progress.queued(result.getPushed());
+                progress.rejected(result.getFailed());
+            }
+
+            pushed += result.getPushed();
+            failed += result.getFailed();
+            if (firstIdentifier == -1) {
+                firstIdentifier = result.getFirstIdentifier();
+            }
+            if (result.getLastIdentifier() != -1) {
+                lastIdentifier = result.getLastIdentifier();
+            }
+            for (BulkPushResult.Failure failure : result.getFailures()) {
+                if (failures.size() < BulkPushResult.MAX_FAILURES) {
+                    failures.add(failure);
+                }
+            }
+            if (result.getFailed() > 0) {
+                // never checkpointed, so that the next run resumes before it
+                logger.warn("Stopping campaign: {} notifications of the chunk were rejected",
+                        result.getFailed());
+                break;
+            }
+
+            pending.add(new long[] { range.getOffset(), now });
+            advance(pending, now);
+            if (now - lastWrite >= checkpointInterval) {
+                writeCheckpoint();
+                lastWrite = now;
+            }
+        }
+        failed += range.getInvalidTokens();
+        if (progress != null) {
+            progress.failed(range.getInvalidTokens());
+        }
+        if (!stopped) {
+            sleep(errorWindow);
+        }
+        advance(pending, System.currentTimeMillis());
+        writeCheckpoint();
+        return new BulkPushResult(pushed, failed, firstIdentifier, lastIdentifier, failures);
+    }
+
+    private void advance(LinkedList<long[]> pending, long now) {
+        while (!pending.isEmpty() && now - pending.getFirst()[1] >= errorWindow) {
+            checkpoint = pending.removeFirst()[0];
+        }
+    }
+
+    private void sleep(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        long remaining;
+        while (!stopped && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(Math.min(remaining, 100));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private long readCheckpoint() {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile));
+            try {
+                long length = -1;
+                long offset = 0;
+                if (in.readInt() == MAGIC) {
+                    length = in.readLong();
+                    offset = in.readLong();
+                }
+                if (length != audience.length() || offset < 0 || offset > length) {
+                    logger.warn("Ignoring checkpoint {} of another audience", checkpointFile);
+                    return 0;
+                }
+                return offset;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException("Failed to read checkpoint " + checkpointFile, e);
+        }
+    }
+
+    private void writeCheckpoint() {
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            FileOutputStream file = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(file);
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(audience.length());
+                out.writeLong(checkpoint);
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+            // renameTo doesn't replace an existing file on every platform
+            if (!temp.renameTo(checkpointFile)
+                    && !(checkpointFile.delete() && temp.renameTo(checkpointFile))) {
+                throw new IOException("Failed to rename " + temp + " to " + checkpointFile);
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException("Failed to write checkpoint " + checkpointFile, e);
+        }
+    }
+
+    /**
+     * Reads the tokens of the range by chunks, so that each chunk is pushed
+     * and checkpointed in turn.
+     */
+    private static class ChunkSource implements DeviceTokenSource {
+        private final DeviceTokenSource range;
+        private boolean exhausted;
+        private int remaining;
+
+        ChunkSource(DeviceTokenSource range) {
+            this.range = range;
+        }
+
+        /**
+         * Starts the next chunk.
+         *
+         * @return false if the range has no more tokens
+         */
+        boolean next() {
+            remaining = CHUNK;
+            return !exhausted;
+        }
+
+        public byte[] nextToken() {
+            if (remaining == 0 || exhausted) {
+                return null;
+            }
+            byte[] token = range.nextToken();
+            if (token == null) {
+                exhausted = true;
+            } else {
+                remaining--;
+            }
+            return token;
+        }
+    }
+}
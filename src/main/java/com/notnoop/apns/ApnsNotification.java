@@ -126,6 +126,32 @@ public class ApnsNotification {
 		this.priority = priority;
 	}
 
+	private ApnsNotification(int identifier, int expiryTime, byte[] dtoken,
+			byte[] payload, Priority priority, boolean shared) {
+		this.identifier = identifier;
+		this.expiry = expiryTime;
+		this.deviceToken = dtoken;
+		this.payload = payload;
+		this.priority = priority;
+	}
+
+	/**
+	 * Constructs an instance of {@code ApnsNotification} holding the given
+	 * payload rather than a copy, so that the notifications of a broadcast
+	 * share a single payload.  The payload must not be modified afterwards.
+	 *
+	 * @param dtoken
+	 *            The binary representation of the destination device token,
+	 *            which is copied
+	 * @param payload
+	 *            The binary representation of the payload to be sent
+	 */
+	public static ApnsNotification withSharedPayload(int identifier, int expiryTime,
+			byte[] dtoken, byte[] payload, Priority priority) {
+		return new ApnsNotification(identifier, expiryTime, Utilities.copyOf(dtoken),
+				payload, priority, true);
+	}
+
 	/**
 	 * Returns the binary representation of the device token.
 	 *
@@ -273,8 +299,14 @@ public class ApnsNotification {
 				+ payloadString + ")";
 	}
 
-	//for testing
+	/**
+	 * Returns the length of the binary representation of the message, as
+	 * returned by {@link #marshall()}, without marshalling it.
+	 */
 	public int length() {
-		return marshall().length;
+		// command and frame length, then the five items with their 3 bytes
+		// item headers: token, payload, identifier, expiry and priority
+		return 1 + 4 + (3 + deviceToken.length) + (3 + payload.length)
+				+ (3 + 4) + (3 + 4) + (3 + 1);
 	}
 }
@@ -0,0 +1,79 @@
+package com.notnoop.apns;
+
+import com.notnoop.apns.ApnsNotification.Priority;
+
+/**
+ * Metrics of the queue of a queued service.
+ *
+ * The service returned by {@link ApnsServiceBuilder#build()} implements
+ * this interface when the builder was configured with
+ * {@link ApnsServiceBuilder#asQueued()}.  All the methods are cheap enough
+ * to be polled by a monitoring thread.
+ */
+public interface ApnsQueueStatistics {
+
+    /**
+     * Returns the number of notifications currently waiting in the queue.
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of notifications of the given priority currently
+     * waiting in the queue.
+     */
+    int getQueueDepth(Priority priority);
+
+    /**
+     * Returns the maximum number of notifications the queue holds.
+     */
+    int getQueueCapacity();
+
+    /**
+     * Returns the average time in milliseconds the notifications taken from
+     * the queue waited in it.
+     */
+    double getAverageWaitTime();
+
+    /**
+     * Returns the average time in milliseconds the notifications of the
+     * given priority taken from the queue waited in it.
+     */
+    double getAverageWaitTime(Priority priority);
+
+    /**
+     * Returns the longest time in milliseconds a notification taken from the
+     * queue waited in it.
+     */
+    long getMaxWaitTime();
+
+    /**
+     * Returns the longest time in milliseconds a notification of the given
+     * priority taken from the queue waited in it.
+     */
+    long getMaxWaitTime(Priority priority);
+
+    /**
+     * Returns the number of notifications taken from the queue to be sent.
+     */
+    long getDequeuedCount();
+
+    /**
+     * Returns the number of notifications that were not queued because the
+     * queue was full.
+     */
+    long getRejectedCount();
+
+    /**
+     * Returns the number of queued notifications dropped to make room for
+     * newer ones.
+     */
+    long getDroppedCount();
+
+    /**
+     * Returns the number of notifications dropped because they expired
+     * while waiting in the queue.
+     *
+     * @see ApnsServiceBuilder#withDropExpired()
+     */
+    long getExpiredCount();
+}
@@ -32,9 +32,13 @@ package com.notnoop.apns;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.exceptions.ApnsException;
 import com.notnoop.exceptions.NetworkIOException;
 
 /**
@@ -117,6 +121,59 @@ public interface ApnsService {
     Collection<? extends ApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload) throws NetworkIOException;
     Collection<? extends ApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload, int expiry, Priority priority) throws NetworkIOException;
 
+    /**
+     * Sends a bulk push notification with the provided {@code payload} to
+     * the devices of a stream of hex {@code deviceTokens}.
+     *
+     * Unlike {@link #push(Collection, String)}, the tokens are read and
+     * pushed in chunks, and only a summary of the push is returned, so
+     * that the memory used doesn't grow with the number of devices.
+     * Invalid tokens, and tokens whose notifications the service rejected,
+     * are counted as failed rather than aborting the push.
+     *
+     * @param deviceTokens  the destination iPhone device tokens
+     * @param payload       The payload message
+     */
+    BulkPushResult pushAll(Iterator<String> deviceTokens, String payload);
+    BulkPushResult pushAll(Iterator<String> deviceTokens, String payload, Date expiry, Priority priority);
+    BulkPushResult pushAll(Iterable<String> deviceTokens, String payload);
+    BulkPushResult pushAll(Iterable<String> deviceTokens, String payload, Date expiry, Priority priority);
+
+    /**
+     * Sends a bulk push notification with the provided {@code payload} to
+     * the devices of a stream of binary {@code deviceTokens}.
+     *
+     * @see #pushAll(Iterator, String)
+     */
+    BulkPushResult pushAll(Iterator<byte[]> deviceTokens, byte[] payload);
+    BulkPushResult pushAll(Iterator<byte[]> deviceTokens, byte[] payload, int expiry, Priority priority);
+    BulkPushResult pushAll(Iterable<byte[]> deviceTokens, byte[] payload);
+    BulkPushResult pushAll(Iterable<byte[]> deviceTokens, byte[] payload, int expiry, Priority priority);
+
+    /**
+     * Sends a bulk push notification with the provided {@code payload} to
+     * the devices of a {@link DeviceTokenSource}.
+     *
+     * @see #pushAll(Iterator, String)
+     */
+    BulkPushResult pushAll(DeviceTokenSource deviceTokens, byte[] payload);
+    BulkPushResult pushAll(DeviceTokenSource deviceTokens, byte[] payload, int expiry, Priority priority);
+
+    /**
+     * Sends the provided notifications, writing them to a connection at
+     * once when the service allows it.  When sending fails partway, the
+     * exception tells how many notifications were
+     * {@link ApnsException#getAccepted() accepted} before.
+     */
+    void pushAll(List<ApnsNotification> messages) throws NetworkIOException;
+
+    /**
+     * Returns a new identifier for a notification built by the caller,
+     * distinct from the identifiers the service gives the notifications
+     * it builds itself.
+     */
+    int newIdentifier();
+
     /**
      * Sends the provided notification {@code message} to the desired
      * destination.
@@ -125,6 +182,20 @@ public interface ApnsService {
      */
     void push(ApnsNotification message) throws NetworkIOException;
 
+    /**
+     * Sends the provided notification {@code message} at the given time
+     * rather than right away.  A notification whose time has passed is
+     * sent right away.
+     *
+     * The notifications wait in a timing wheel with a resolution of 100
+     * milliseconds by default, see
+     * {@link ApnsServiceBuilder#withScheduledDelivery(long)}.  They are
+     * sent late rather than early.
+     *
+     * @return a handle to cancel the delivery of the notification
+     */
+    ScheduledNotification push(ApnsNotification message, Date sendAt) throws NetworkIOException;
+
     /**
      * Starts the service.
      *
@@ -149,6 +220,22 @@ public interface ApnsService {
      */
     void stop();
 
+    /**
+     * Stops the service once the notifications it holds are sent, waiting
+     * at most {@code timeout}.
+     *
+     * The service rejects new notifications right away, then sends the
+     * queued or batched ones over all its connections, and lets the
+     * connections read the error responses of the last notifications
+     * before closing them.  The notifications left unsent when the timeout
+     * expires are reported rather than silently dropped; notifications
+     * being written at that moment are in neither count.
+     *
+     * Services sending notifications synchronously hold none, and simply
+     * stop.
+     */
+    StopReport stop(long timeout, TimeUnit unit);
+
     /**
      * Returns the list of devices that reported failed-delivery
      * attempts to the Apple Feedback services.
@@ -31,6 +31,7 @@
 package com.notnoop.apns;
 
 import static java.util.concurrent.Executors.defaultThreadFactory;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
@@ -73,6 +74,7 @@ import static com.notnoop.apns.internal.Utilities.*;
  */
 public class ApnsServiceBuilder {
     private static final String KEYSTORE_TYPE = "PKCS12";
+    private static final int RING_BATCH_SIZE = 256;
     private static final String KEY_ALGORITHM = ((java.security.Security.getProperty("ssl.KeyManagerFactory.algorithm") == null)? "sunx509" : java.security.Security.getProperty("ssl.KeyManagerFactory.algorithm"));
 
     private SSLContext sslContext;
@@ -89,15 +91,42 @@ public class ApnsServiceBuilder {
     private int cacheLength = ApnsConnection.DEFAULT_CACHE_LENGTH;
     private boolean autoAdjustCacheLength = true;
     private ExecutorService executor = null;
+    private RateLimiter rateLimiter = null;
+    private RateLimiter connectionRateLimiter = null;
 
     private ReconnectPolicy reconnectPolicy = ReconnectPolicy.Provided.EVERY_HALF_HOUR.newObject();
     private boolean isQueued = false;
     private ThreadFactory queueThreadFactory = null;
+    private int queueCapacity = Integer.MAX_VALUE;
+    private QueueOverflowPolicy queueOverflowPolicy = QueueOverflowPolicy.BLOCK;
+    private long queueOfferTimeout = 0;
+    private int queueConsumers = 1;
+    private int queueBatchSize = 1;
+    private int queueImmediateWeight = 0;
+    private long queueMaxConvenienceWait = 0;
+    private boolean earliestDeadlineFirst = false;
+    private boolean dropExpired = false;
+    private File journalDirectory = null;
+    private CollapseKeyResolver collapseKeyResolver = null;
+    private int payloadCacheSize = 0;
+    private long scheduleTick = 0;
+    private File scheduleJournalDirectory = null;
+    private long scheduleSyncInterval;
+    private long journalSyncInterval;
     
+    private boolean isRingBuffered = false;
+    private int ringSize;
+    private ThreadFactory ringThreadFactory = null;
+
     private boolean isBatched = false;
-    private int batchWaitTimeInSec;
-    private int batchMaxWaitTimeInSec;
+    private long batchLingerMillis;
+    private long batchMaxLingerMillis;
+    private int batchMaxSize = Integer.MAX_VALUE;
+    private int batchMaxBytes = Integer.MAX_VALUE;
+    private boolean batchAdaptiveLinger = false;
+    private int batchPartitions = 1;
     private ScheduledExecutorService batchThreadPoolExecutor = null;
+    private ThreadFactory batchThreadFactory = null;
     
     private ApnsDelegate delegate = ApnsDelegate.EMPTY;
     private Proxy proxy = null;
@@ -105,6 +134,8 @@ public class ApnsServiceBuilder {
     private String proxyPassword = null;
     private boolean errorDetection = true;
     private ThreadFactory errorDetectionThreadFactory = null;
+    private boolean virtualThreads = false;
+    private CircuitBreaker circuitBreaker = null;
 
     /**
      * Constructs a new instance of {@code ApnsServiceBuilder}
@@ -458,11 +489,15 @@ public class ApnsServiceBuilder {
      * Apple servers recommend using a pooled connection up to
      * 15 concurrent persistent connections to the gateways.
      *
+     * Pooled connections are best combined with
+     * {@link ReconnectPolicy.Provided#EVERY_HALF_HOUR_STAGGERED}, so that
+     * the connections of the pool don't all reconnect at the same time.
+     *
      * Note: This option has no effect when using non-blocking
      * connections.
      */
     public ApnsServiceBuilder asPool(int maxConnections) {
-        return asPool(Executors.newFixedThreadPool(maxConnections), maxConnections);
+        return asPool(null, maxConnections);
     }
 
     /**
@@ -476,6 +511,10 @@ public class ApnsServiceBuilder {
      *
      * Note: The maxConnections here is used as a hint to how many connections
      * get created.
+     *
+     * @param executor  the executor running the connections of the pool, or
+     *                  null to create a fixed thread pool of maxConnections
+     *                  threads
      */
     public ApnsServiceBuilder asPool(ExecutorService executor, int maxConnections) {
         this.pooledMax = maxConnections;
@@ -483,6 +522,59 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Returns the number of connections of the service to build.
+     */
+    int getPooledMax() {
+        return pooledMax;
+    }
+
+    /**
+     * Limits the rate at which the service sends notifications, across all
+     * the connections of the pool.
+     *
+     * The limiter may be kept by the caller to monitor the current rate.
+     *
+     * @param rateLimiter   the limiter of the service
+     * @return  this
+     */
+    public ApnsServiceBuilder withRateLimit(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which each connection sends notifications.  Every
+     * connection of a pool gets its own {@link RateLimiter#copy() copy} of
+     * the limiter, whose current rate includes the notifications sent
+     * through all of them.
+     *
+     * @param rateLimiter   the limiter of each connection
+     * @return  this
+     */
+    public ApnsServiceBuilder withConnectionRateLimit(RateLimiter rateLimiter) {
+        this.connectionRateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Stops sending while the Apple servers are unreachable, failing fast
+     * with a {@link com.notnoop.exceptions.NetworkIOException} instead of
+     * blocking the sending threads in retries.  Until the breaker opens,
+     * the connections retry after a jittered delay.
+     *
+     * All the connections of a pool share the breaker, while the feedback
+     * connection gets its own {@link CircuitBreaker#copy() copy}.  The
+     * breaker may be kept by the caller to monitor its state.
+     *
+     * @param circuitBreaker    the breaker of the gateway connections
+     * @return  this
+     */
+    public ApnsServiceBuilder withCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
     /**
      * Constructs a new thread with a processing queue to process
      * notification requests.
@@ -490,7 +582,7 @@ public class ApnsServiceBuilder {
      * @return  this
      */
     public ApnsServiceBuilder asQueued() {
-        return asQueued(Executors.defaultThreadFactory());
+        return asQueued(null);
     }
     
     /**
@@ -498,7 +590,7 @@ public class ApnsServiceBuilder {
      * notification requests.
      *
      * @param threadFactory
-     *            thread factory to use for queue processing
+     *            thread factory to use for queue processing (may be null)
      * @return  this
      */
     public ApnsServiceBuilder asQueued(ThreadFactory threadFactory) {
@@ -506,7 +598,289 @@ public class ApnsServiceBuilder {
         this.queueThreadFactory = threadFactory;
         return this;
     }
+
+    /**
+     * Bounds the queue of a queued service.  By default the queue is
+     * unbounded.
+     *
+     * The service built implements {@link ApnsQueueStatistics}, to monitor
+     * the depth of the queue and the time notifications wait in it.
+     *
+     * Note: This option has no effect when the service isn't queued.
+     *
+     * @param capacity  maximum number of queued notifications
+     * @param policy    what to do with notifications pushed while the queue
+     *                  is full
+     * @return  this
+     */
+    public ApnsServiceBuilder withQueueCapacity(int capacity, QueueOverflowPolicy policy) {
+        return withQueueCapacity(capacity, policy, 0);
+    }
+
+    /**
+     * Bounds the queue of a queued service.  By default the queue is
+     * unbounded.
+     *
+     * Note: This option has no effect when the service isn't queued.
+     *
+     * @param capacity      maximum number of queued notifications
+     * @param policy        what to do with notifications pushed while the
+     *                      queue is full
+     * @param offerTimeout  time in milliseconds to wait for room in the
+     *                      queue, with the {@link QueueOverflowPolicy#TIMEOUT}
+     *                      policy
+     * @return  this
+     */
+    public ApnsServiceBuilder withQueueCapacity(int capacity, QueueOverflowPolicy policy, long offerTimeout) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.queueCapacity = capacity;
+        this.queueOverflowPolicy = policy;
+        this.queueOfferTimeout = offerTimeout;
+        return this;
+    }
+
+    /**
+     * Queues the notifications in separate lanes per
+     * {@link ApnsNotification.Priority priority}, so that
+     * {@link ApnsNotification.Priority#SEND_IMMEDIATELY} notifications keep
+     * their latency while a campaign of
+     * {@link ApnsNotification.Priority#SEND_AT_CONVENIENCE} notifications
+     * is queued.  By default all the notifications share a single FIFO lane.
+     *
+     * The queue is drained {@code immediateWeight} immediate notifications
+     * at a time for every notification sent at convenience.  A notification
+     * sent at convenience that waited longer than
+     * {@code maxConvenienceWait} is sent first, so campaigns never starve.
+     *
+     * Note: This option has no effect when the service isn't queued.
+     *
+     * @param immediateWeight       number of immediate notifications sent
+     *                              for every notification sent at convenience
+     * @param maxConvenienceWait    time in milliseconds after which a
+     *                              notification sent at convenience is sent
+     *                              first, or 0 for no limit
+     * @return  this
+     */
+    public ApnsServiceBuilder withPriorityLanes(int immediateWeight, long maxConvenienceWait) {
+        if (immediateWeight < 1) {
+            throw new IllegalArgumentException("immediateWeight must be positive");
+        }
+        this.queueImmediateWeight = immediateWeight;
+        this.queueMaxConvenienceWait = maxConvenienceWait;
+        return this;
+    }
+
+    /**
+     * Sends the queued or batched notifications in the order of their
+     * expiry dates (earliest deadline first) rather than in the order they
+     * were pushed, so that under backlog the notifications closest to
+     * expiring are sent first.  Notifications that never expire are sent
+     * last.
+     *
+     * With priority lanes, each lane is ordered by expiry date.
+     *
+     * Note: This option has no effect when the service is neither queued
+     * nor batched.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withEarliestDeadlineFirst() {
+        this.earliestDeadlineFirst = true;
+        return this;
+    }
+
+    /**
+     * Drops the queued or batched notifications whose expiry date passed
+     * while they were waiting to be sent, instead of sending them to Apple
+     * only to be discarded.  A delegate implementing
+     * {@link ExpiredApnsDelegate} is notified of the dropped notifications,
+     * and the queued service counts them in
+     * {@link ApnsQueueStatistics#getExpiredCount()}.
+     *
+     * Note: This option has no effect when the service is neither queued
+     * nor batched.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withDropExpired() {
+        this.dropExpired = true;
+        return this;
+    }
+
+    /**
+     * Journals the queued notifications in {@code directory}, so that the
+     * notifications still queued when the process dies are sent when a
+     * service using the same directory starts.
+     *
+     * Queuing a notification copies it into a memory-mapped segment file,
+     * which the process dying can't lose.  The segments are forced to disk
+     * every {@code syncInterval} milliseconds to also survive the machine
+     * crashing; with an interval of 0, pushing waits for the notification
+     * to be on disk, threads pushing at the same time sharing a single
+     * write to disk.
+     *
+     * Each directory must be used by a single service at a time.
+     *
+     * Note: This option has no effect when the service isn't queued.
+     *
+     * @param directory     directory of the journal, created if needed
+     * @param syncInterval  time in milliseconds between writes to disk, 0
+     *                      to write on every push, or a negative value to
+     *                      leave it to the operating system
+     * @return  this
+     */
+    public ApnsServiceBuilder withJournal(File directory, long syncInterval) {
+        this.journalDirectory = directory;
+        this.journalSyncInterval = syncInterval;
+        return this;
+    }
+
+    /**
+     * Sets the resolution of the delivery times of the notifications
+     * pushed with {@link ApnsService#push(ApnsNotification, java.util.Date)}.
+     * By default the notifications are scheduled to the next 100
+     * milliseconds.
+     *
+     * @param tickMillis    resolution of the delivery times, in milliseconds
+     * @return  this
+     */
+    public ApnsServiceBuilder withScheduledDelivery(long tickMillis) {
+        return withScheduledDelivery(tickMillis, null, 0);
+    }
+
+    /**
+     * Sets the resolution of the delivery times of the notifications
+     * pushed with {@link ApnsService#push(ApnsNotification, java.util.Date)},
+     * and journals the scheduled notifications in {@code directory} so
+     * that they are still sent if the process restarts before their
+     * delivery time.  The directory must not be shared with
+     * {@link #withJournal(File, long)}.
+     *
+     * @param tickMillis    resolution of the delivery times, in milliseconds
+     * @param directory     directory of the journal, created if needed (may
+     *                      be null)
+     * @param syncInterval  time in milliseconds between writes of the
+     *                      journal to disk, see {@link #withJournal(File, long)}
+     * @return  this
+     */
+    public ApnsServiceBuilder withScheduledDelivery(long tickMillis, File directory, long syncInterval) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        this.scheduleTick = tickMillis;
+        this.scheduleJournalDirectory = directory;
+        this.scheduleSyncInterval = syncInterval;
+        return this;
+    }
+
+    /**
+     * Coalesces the notifications to the same device: a notification
+     * pushed while a notification to the same device with the same
+     * {@link CollapseKeyResolver#getCollapseKey(ApnsNotification) collapse key}
+     * is still queued or batched replaces it, keeping its place, rather
+     * than being sent after it.  Use {@link CollapseKeyResolver#NO_ALERT}
+     * to only send the latest of the pending badge updates and silent
+     * notifications of each device.
+     *
+     * Note: This option has no effect when the service is neither queued
+     * nor batched.
+     *
+     * @param resolver  returns the collapse key of the notifications, or
+     *                  {@code null} for notifications never coalesced
+     * @return  this
+     */
+    public ApnsServiceBuilder withCoalescing(CollapseKeyResolver resolver) {
+        this.collapseKeyResolver = resolver;
+        return this;
+    }
+
+    /**
+     * Caches the UTF-8 encoding of the payload strings pushed, so that the
+     * notifications pushed with a payload string seen recently share its
+     * encoded bytes rather than each encoding and copying them.  Worth it
+     * when a small set of payloads is sent over and over.
+     *
+     * The hit rate of the cache is reported by the service, which
+     * implements {@link PayloadCacheStatistics}.
+     *
+     * @param maxEntries    number of payloads cached, the least recently
+     *                      used being evicted
+     * @return  this
+     */
+    public ApnsServiceBuilder withPayloadCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.payloadCacheSize = maxEntries;
+        return this;
+    }
+
+    /**
+     * Sends the queued notifications with several threads, each taking up
+     * to {@code batchSize} notifications from the queue at once and writing
+     * them to its connection in a single write.  By default a single thread
+     * sends the notifications one by one.
+     *
+     * Combined with {@link #asPool(int)}, use as many consumers as pooled
+     * connections.
+     *
+     * Note: This option has no effect when the service isn't queued.
+     *
+     * @param consumers number of threads sending the queued notifications
+     * @param batchSize maximum number of notifications written at once
+     * @return  this
+     */
+    public ApnsServiceBuilder withQueueConsumers(int consumers, int batchSize) {
+        if (consumers < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("consumers and batchSize must be positive");
+        }
+        this.queueConsumers = consumers;
+        this.queueBatchSize = batchSize;
+        return this;
+    }
     
+    /**
+     * Constructs a service handing the notifications to its connections
+     * through a preallocated ring of {@code ringSize} slots, rather than a
+     * queue.  Pushing a notification doesn't allocate nor lock, and each
+     * connection writes all the notifications waiting in the ring at once,
+     * which suits sustained rates of hundreds of thousands of notifications
+     * per second.  A producer pushing while the ring is full spins until
+     * a connection frees a slot.
+     *
+     * Every connection has its own writer thread: combine with
+     * {@link #asPool(int)} to write with several connections.  This option
+     * can't be combined with {@link #asQueued()} nor {@link #asBatched()}.
+     *
+     * @param ringSize  number of slots, rounded up to a power of two
+     * @return  this
+     */
+    public ApnsServiceBuilder asRingBuffered(int ringSize) {
+        return asRingBuffered(ringSize, null);
+    }
+
+    /**
+     * Constructs a service handing the notifications to its connections
+     * through a preallocated ring of {@code ringSize} slots.
+     *
+     * @param ringSize      number of slots, rounded up to a power of two
+     * @param threadFactory thread factory to use for the writer threads
+     *                      (may be null)
+     * @return  this
+     * @see #asRingBuffered(int)
+     */
+    public ApnsServiceBuilder asRingBuffered(int ringSize, ThreadFactory threadFactory) {
+        if (ringSize < 1) {
+            throw new IllegalArgumentException("ringSize must be positive");
+        }
+        this.isRingBuffered = true;
+        this.ringSize = ringSize;
+        this.ringThreadFactory = threadFactory;
+        return this;
+    }
+
     /**
      * Construct service which will process notification requests in batch.
      * After each request batch will wait <code>waitTimeInSec (set as 5sec)</code> for more request to come
@@ -540,9 +914,9 @@ public class ApnsServiceBuilder {
      * After each request batch will wait <code>waitTimeInSec</code> for more request to come
      * before executing but not more than <code>maxWaitTimeInSec</code>
      * 
-     * Each batch creates new connection and close it after finished.
+     * The batches are written to a persistent connection.
      * In case reconnect policy is specified it will be applied by batch processing. 
-     * E.g.: {@link ReconnectPolicy.Provided#EVERY_HALF_HOUR} will reconnect the connection in case batch is running for more than half an hour
+     * E.g.: {@link ReconnectPolicy.Provided#EVERY_HALF_HOUR} will reconnect the connection every half an hour
      * 
      * Note: It is not recommended to use pooled connection
      * 
@@ -555,7 +929,9 @@ public class ApnsServiceBuilder {
      *            thread factory to use for batch processing
      */
     public ApnsServiceBuilder asBatched(int waitTimeInSec, int maxWaitTimeInSec, ThreadFactory threadFactory) {
-        return asBatched(waitTimeInSec, maxWaitTimeInSec, new ScheduledThreadPoolExecutor(1, threadFactory != null ? threadFactory : defaultThreadFactory()));
+        asBatched(waitTimeInSec, maxWaitTimeInSec, (ScheduledExecutorService) null);
+        this.batchThreadFactory = threadFactory;
+        return this;
     }
 
     /**
@@ -563,9 +939,9 @@ public class ApnsServiceBuilder {
      * After each request batch will wait <code>waitTimeInSec</code> for more request to come
      * before executing but not more than <code>maxWaitTimeInSec</code>
      * 
-     * Each batch creates new connection and close it after finished.
+     * The batches are written to a persistent connection.
      * In case reconnect policy is specified it will be applied by batch processing. 
-     * E.g.: {@link ReconnectPolicy.Provided#EVERY_HALF_HOUR} will reconnect the connection in case batch is running for more than half an hour
+     * E.g.: {@link ReconnectPolicy.Provided#EVERY_HALF_HOUR} will reconnect the connection every half an hour
      * 
      * Note: It is not recommended to use pooled connection
      * 
@@ -579,9 +955,90 @@ public class ApnsServiceBuilder {
      */
     public ApnsServiceBuilder asBatched(int waitTimeInSec, int maxWaitTimeInSec, ScheduledExecutorService batchThreadPoolExecutor) {
         this.isBatched = true;
-        this.batchWaitTimeInSec = waitTimeInSec;
-        this.batchMaxWaitTimeInSec = maxWaitTimeInSec;
+        this.batchLingerMillis = waitTimeInSec * 1000L;
+        this.batchMaxLingerMillis = maxWaitTimeInSec * 1000L;
         this.batchThreadPoolExecutor = batchThreadPoolExecutor;
+        this.batchThreadFactory = null;
+        return this;
+    }
+
+    /**
+     * Sets the batch window in milliseconds: after each request the batch
+     * waits <code>lingerMillis</code> for more requests to come before
+     * executing, but requests no longer postpone it once
+     * <code>maxLingerMillis</code> passed since the first request.
+     *
+     * Note: This option has no effect when the service isn't batched.
+     *
+     * @param lingerMillis      time to wait for more notification requests
+     *                          before executing the batch
+     * @param maxLingerMillis   time after which requests no longer postpone
+     *                          the batch
+     * @return  this
+     */
+    public ApnsServiceBuilder withBatchWindow(long lingerMillis, long maxLingerMillis) {
+        this.batchLingerMillis = lingerMillis;
+        this.batchMaxLingerMillis = maxLingerMillis;
+        return this;
+    }
+
+    /**
+     * Executes the batch as soon as it holds <code>maxBatchSize</code>
+     * notifications or <code>maxBatchBytes</code> bytes, without waiting
+     * for the end of the batch window.  By default batches are only
+     * executed at the end of the window.
+     *
+     * Note: This option has no effect when the service isn't batched.
+     *
+     * @param maxBatchSize      number of notifications executing the batch
+     * @param maxBatchBytes     size in bytes executing the batch
+     * @return  this
+     */
+    public ApnsServiceBuilder withBatchLimits(int maxBatchSize, int maxBatchBytes) {
+        if (maxBatchSize < 1 || maxBatchBytes < 1) {
+            throw new IllegalArgumentException("maxBatchSize and maxBatchBytes must be positive");
+        }
+        this.batchMaxSize = maxBatchSize;
+        this.batchMaxBytes = maxBatchBytes;
+        return this;
+    }
+
+    /**
+     * Adapts the batch window to the rate of the requests: when requests
+     * arrive less often than the linger of the window, the batch is
+     * executed right away instead of holding the notifications for nothing.
+     * Bulk traffic still waits for the window to fill the batches.
+     *
+     * Note: This option has no effect when the service isn't batched.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withAdaptiveBatchLinger() {
+        this.batchAdaptiveLinger = true;
+        return this;
+    }
+
+    /**
+     * Splits large batches into up to <code>connections</code> partitions,
+     * written in parallel to as many persistent connections.  A batch is
+     * only split when it holds at least 64 KB of notifications per
+     * partition.  By default batches are written to a single connection.
+     *
+     * A delegate implementing {@link BatchApnsDelegate} is notified of the
+     * progress of each partition, and of the notifications that couldn't be
+     * written.
+     *
+     * Note: This option has no effect when the service isn't batched.
+     *
+     * @param connections   maximum number of connections a batch is written
+     *                      to in parallel
+     * @return  this
+     */
+    public ApnsServiceBuilder withBatchPartitions(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections must be positive");
+        }
+        this.batchPartitions = connections;
         return this;
     }
 
@@ -626,6 +1083,26 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Runs the blocking parts of the service on virtual threads, when the
+     * runtime is Java 21 or later: the connection monitoring threads, the
+     * queue processing thread, the threads of the connection pool and the
+     * batch processing thread.
+     *
+     * Thread factories and executors that are explicitly provided to the
+     * builder are still used as is.  On older runtimes, this option logs a
+     * warning and uses platform threads.
+     *
+     * Note: on Java 21, a virtual thread writing to a connection pins its
+     * carrier thread, as the connections synchronize their writes.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withVirtualThreads() {
+        this.virtualThreads = true;
+        return this;
+    }
+
     /**
      * Returns a fully initialized instance of {@link ApnsService},
      * according to the requested settings.
@@ -635,30 +1112,93 @@ public class ApnsServiceBuilder {
     public ApnsService build() {
         checkInitialization();
         ApnsService service;
+        if (delegate instanceof BulkProgress) {
+            // counts the rejected notifications from the service events
+            ((BulkProgress) delegate).setServiceDelegate();
+        }
+
+        ThreadFactory monitorThreadFactory = errorDetectionThreadFactory;
+        ThreadFactory poolThreadFactory = defaultThreadFactory();
+        ThreadFactory queueFactory = queueThreadFactory;
+        ThreadFactory ringFactory = ringThreadFactory;
+        ThreadFactory batchFactory = batchThreadFactory != null ? batchThreadFactory : defaultThreadFactory();
+        if (virtualThreads) {
+            if (monitorThreadFactory == null) {
+                monitorThreadFactory = VirtualThreads.newThreadFactory("MonitoringThread-");
+            }
+            poolThreadFactory = VirtualThreads.newThreadFactory("ApnsPool-");
+            if (queueFactory == null) {
+                queueFactory = VirtualThreads.newThreadFactory("ApnsQueue-");
+            }
+            if (ringFactory == null) {
+                ringFactory = VirtualThreads.newThreadFactory("ApnsRing-");
+            }
+            if (batchThreadFactory == null) {
+                batchFactory = VirtualThreads.newThreadFactory("ApnsBatch-");
+            }
+        }
 
         SSLSocketFactory sslFactory = sslContext.getSocketFactory();
-        ApnsFeedbackConnection feedback = new ApnsFeedbackConnection(sslFactory, feedbackHost, feedbackPort, proxy, readTimeout, connectTimeout, proxyUsername, proxyPassword);
+        ApnsFeedbackConnection feedback = new ApnsFeedbackConnection(sslFactory, feedbackHost, feedbackPort, proxy, readTimeout, connectTimeout, proxyUsername, proxyPassword,
+                circuitBreaker != null ? circuitBreaker.copy() : null);
 
         ApnsConnection conn = new ApnsConnectionImpl(sslFactory, gatewayHost,
             gatewayPort, proxy, proxyUsername, proxyPassword, reconnectPolicy,
-                delegate, errorDetection, errorDetectionThreadFactory, cacheLength,
-                autoAdjustCacheLength, readTimeout, connectTimeout);
-        if (pooledMax != 1) {
-            conn = new ApnsPooledConnection(conn, pooledMax, executor);
+                delegate, errorDetection, monitorThreadFactory, cacheLength,
+                autoAdjustCacheLength, readTimeout, connectTimeout, circuitBreaker);
+        if (connectionRateLimiter != null) {
+            conn = new RateLimitedApnsConnection(conn, connectionRateLimiter, true, delegate);
+        }
+        if (pooledMax != 1 && !isRingBuffered) {
+            conn = new ApnsPooledConnection(conn, pooledMax, executor != null
+                    ? executor : Executors.newFixedThreadPool(pooledMax, poolThreadFactory));
+        }
+        if (rateLimiter != null) {
+            conn = new RateLimitedApnsConnection(conn, rateLimiter, false, delegate);
         }
 
-        service = new ApnsServiceImpl(conn, feedback);
+        if (isRingBuffered) {
+            // every writer of the ring has its own connection
+            service = new RingBufferApnsService(conn, feedback, ringSize, pooledMax,
+                    RING_BATCH_SIZE, ringFactory, delegate);
+        } else {
+            service = new ApnsServiceImpl(conn, feedback, delegate);
+        }
 
         if (isQueued) {
-            service = new QueuedApnsService(service, queueThreadFactory);
+            service = new QueuedApnsService(service, queueFactory,
+                    new NotificationQueue(queueCapacity, queueOverflowPolicy, queueOfferTimeout,
+                            queueImmediateWeight, queueMaxConvenienceWait,
+                            earliestDeadlineFirst, dropExpired),
+                    queueConsumers, queueBatchSize, delegate,
+                    journalDirectory != null
+                            ? new NotificationJournal(journalDirectory, journalSyncInterval) : null,
+                    collapseKeyResolver != null ? new NotificationCoalescer(collapseKeyResolver) : null);
         }
         
         if (isBatched) {
-            service = new BatchApnsService(conn, feedback, batchWaitTimeInSec, batchMaxWaitTimeInSec, batchThreadPoolExecutor);
+            service = new BatchApnsService(conn, feedback, batchLingerMillis, batchMaxLingerMillis,
+                    batchMaxSize, batchMaxBytes, batchAdaptiveLinger,
+                    batchThreadPoolExecutor != null ? batchThreadPoolExecutor
+                            : new ScheduledThreadPoolExecutor(1, batchFactory),
+                    delegate, earliestDeadlineFirst, dropExpired,
+                    batchPartitions, batchFactory,
+                    collapseKeyResolver != null ? new NotificationCoalescer(collapseKeyResolver) : null);
+        }
+
+        if (payloadCacheSize > 0) {
+            new PayloadCache(payloadCacheSize).attach(service);
         }
 
         service.start();
 
+        if (scheduleTick > 0) {
+            new NotificationScheduler(scheduleTick, scheduleJournalDirectory != null
+                    ? new NotificationJournal(scheduleJournalDirectory,
+                            NotificationJournal.DEFAULT_SEGMENT_SIZE, scheduleSyncInterval, 0)
+                    : null).attach(service);
+        }
+
         return service;
     }
 
@@ -672,5 +1212,8 @@ public class ApnsServiceBuilder {
                     "The Destination APNS server is not stated\n"
                     + "Use .withDestination(), withSandboxDestination(), "
                     + "or withProductionDestination().");
+        if (isRingBuffered && (isQueued || isBatched))
+            throw new IllegalStateException(
+                    "A ring buffered service can't be queued nor batched");
     }
 }
@@ -0,0 +1,327 @@
+package com.notnoop.apns;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.internal.RingBufferApnsService;
+import com.notnoop.exceptions.ApnsException;
+
+/**
+ * Feeds a service from a reactive pipeline, requesting notifications only
+ * as fast as the service takes them.
+ *
+ * The subscriber follows the protocol of {@code java.util.concurrent.Flow}
+ * and of Reactive Streams without depending on either: {@link #as(Class)}
+ * returns it as a subscriber of the library at hand, like
+ *
+ * <pre>
+ *   Flow.Subscriber&lt;ApnsNotification&gt; subscriber =
+ *           new ApnsSubscriber(service).as(Flow.Subscriber.class);
+ *   publisher.subscribe(subscriber);
+ * </pre>
+ *
+ * For a queued or ring-buffered service, the subscriber keeps the
+ * notifications requested but not received yet within the room left in
+ * the queue, up to {@code window}, and polls the queue while it is full.
+ * Other services are sent one notification at a time, the next one being
+ * requested once the previous one was pushed: they push synchronously, so
+ * a pool of connections can't be used by more than one notification of
+ * the subscriber at a time anyway.
+ *
+ * The calls to the subscription (rule 2.7) are serialized by a drain
+ * loop: the thread finding it idle makes the calls, for itself and for
+ * the threads signalling meanwhile.
+ */
+public class ApnsSubscriber {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsSubscriber.class);
+
+    public static final int DEFAULT_WINDOW = 1024;
+
+    private static final long POLL_INTERVAL = 10;
+
+    private final ApnsService service;
+    private final int window;
+
+    private Object subscription;
+    private Method request;
+    private Method cancel;
+    /** notifications requested but not received yet */
+    private long outstanding;
+    private boolean done;
+    private boolean cancelling;
+    private boolean cancelled;
+    /** signals to the subscription not handled by the drain loop yet */
+    private final AtomicInteger signals = new AtomicInteger();
+    private ScheduledExecutorService poller;
+    private boolean polling;
+    private long pushed;
+    private long failed;
+
+    public ApnsSubscriber(ApnsService service) {
+        this(service, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window    maximum number of notifications requested but not
+     *                  received yet
+     */
+    public ApnsSubscriber(ApnsService service, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        this.service = service;
+        this.window = window;
+    }
+
+    /**
+     * Returns this subscriber as an implementation of
+     * {@code subscriberType}, a {@code Subscriber} interface with the
+     * {@code onSubscribe}, {@code onNext}, {@code onError} and
+     * {@code onComplete} methods, like {@code java.util.concurrent.Flow.Subscriber}
+     * or {@code org.reactivestreams.Subscriber}.
+     */
+    public <T> T as(Class<T> subscriberType) {
+        return subscriberType.cast(Proxy.newProxyInstance(subscriberType.getClassLoader(),
+                new Class<?>[] { subscriberType }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (method.getDeclaringClass() == Object.class) {
+                            if ("equals".equals(name)) {
+                                return proxy == args[0];
+                            } else if ("hashCode".equals(name)) {
+                                return System.identityHashCode(proxy);
+                            }
+                            return ApnsSubscriber.this.toString();
+                        }
+                        if ("onSubscribe".equals(name)) {
+                            onSubscribe(args[0], method.getParameterTypes()[0]);
+                        } else if ("onNext".equals(name)) {
+                            onNext((ApnsNotification) args[0]);
+                        } else if ("onError".equals(name)) {
+                            onError((Throwable) args[0]);
+                        } else if ("onComplete".equals(name)) {
+                            onComplete();
+                        } else {
+                            throw new UnsupportedOperationException(method.toString());
+                        }
+                        return null;
+                    }
+                }));
+    }
+
+    /**
+     * Returns the number of notifications pushed to the service.
+     */
+    public synchronized long getPushed() {
+        return pushed;
+    }
+
+    /**
+     * Returns the number of notifications the service rejected.
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Cancels the subscription: no more notifications are requested.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            finish();
+            cancelling = true;
+        }
+        drain();
+    }
+
+    private void onSubscribe(Object subscription, Class<?> subscriptionType) {
+        try {
+            Method request = subscriptionType.getMethod("request", long.class);
+            Method cancel = subscriptionType.getMethod("cancel");
+            synchronized (this) {
+                if (this.subscription != null || done) {
+                    // rule 2.5: only one subscription at a time
+                    invoke(cancel, subscription);
+                    return;
+                }
+                this.subscription = subscription;
+                this.request = request;
+                this.cancel = cancel;
+            }
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(subscriptionType + " isn't a Subscription", e);
+        }
+        drain();
+    }
+
+    private void onNext(ApnsNotification notification) {
+        synchronized (this) {
+            outstanding--;
+        }
+        try {
+            service.push(notification);
+            synchronized (this) {
+                pushed++;
+            }
+        } catch (ApnsException e) {
+            synchronized (this) {
+                failed++;
+            }
+            logger.warn("Failed to push notification " + notification.getIdentifier(), e);
+        }
+        drain();
+    }
+
+    private void onError(Throwable t) {
+        logger.warn("Notification publisher failed", t);
+        synchronized (this) {
+            finish();
+        }
+    }
+
+    private void onComplete() {
+        synchronized (this) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        done = true;
+        if (poller != null) {
+            poller.shutdown();
+        }
+    }
+
+    /**
+     * Makes the calls to the subscription, unless another thread is making
+     * them, in which case that thread makes one more round for this one.
+     */
+    private void drain() {
+        if (signals.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            try {
+                signal();
+            } catch (RuntimeException e) {
+                logger.warn("Notification subscription failed", e);
+                synchronized (this) {
+                    finish();
+                }
+            }
+            missed = signals.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Cancels the subscription if asked to, otherwise requests as many
+     * notifications as the service has room for, or polls the service
+     * until it has some.
+     */
+    private void signal() {
+        Object s;
+        Method method;
+        long n = 0;
+        synchronized (this) {
+            if (subscription == null || cancelled) {
+                return;
+            }
+            if (cancelling) {
+                cancelled = true;
+                method = cancel;
+            } else {
+                if (done) {
+                    return;
+                }
+                n = room() - outstanding;
+                if (n <= 0) {
+                    if (outstanding == 0) {
+                        // no notification on the way to trigger the next request
+                        poll();
+                    }
+                    return;
+                }
+                outstanding += n;
+                method = request;
+            }
+            s = subscription;
+        }
+        if (method == cancel) {
+            invoke(cancel, s);
+        } else {
+            invoke(request, s, n);
+        }
+    }
+
+    private long room() {
+        int depth;
+        int capacity;
+        if (service instanceof ApnsQueueStatistics) {
+            depth = ((ApnsQueueStatistics) service).getQueueDepth();
+            capacity = ((ApnsQueueStatistics) service).getQueueCapacity();
+        } else if (service instanceof RingBufferApnsService) {
+            depth = ((RingBufferApnsService) service).getQueueDepth();
+            capacity = ((RingBufferApnsService) service).getQueueCapacity();
+        } else {
+            return 1;
+        }
+        return Math.min(capacity, window) - (long) depth;
+    }
+
+    private void poll() {
+        if (polling) {
+            return;
+        }
+        if (poller == null) {
+            poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ApnsSubscriber");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        polling = true;
+        poller.schedule(new Runnable() {
+            public void run() {
+                synchronized (ApnsSubscriber.this) {
+                    polling = false;
+                }
+                drain();
+            }
+        }, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private static void invoke(Method method, Object target, Object... args) {
+        try {
+            method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ApnsSubscriber[" + service + "]";
+    }
+}
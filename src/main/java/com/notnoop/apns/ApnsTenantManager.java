@@ -0,0 +1,389 @@
+package com.notnoop.apns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Sends notifications on behalf of many applications (tenants), each with
+ * its own certificate, while sharing resources between them.
+ *
+ * Tenants are configured lazily: the {@link TenantConfigurer} is only
+ * asked to configure the {@link ApnsServiceBuilder} of a tenant (and thus
+ * to load its certificate and create its {@code SSLContext}) the first time
+ * a notification is pushed for it.  The services of the tenants are kept
+ * in least-recently-used order, and the least recently used idle tenants
+ * are stopped whenever the total number of connections would exceed the
+ * configured maximum, or when they haven't been used for the idle timeout.
+ * When the tenants in use hold too many connections for a new tenant to
+ * fit, activating it waits until enough of them go idle.
+ *
+ * A tenant is activated by a single thread, which reserves its connections
+ * before building its service; the other threads pushing for it meanwhile
+ * wait for the service.  All the tenants share one thread factory for their
+ * monitoring threads, and one thread evicts the idle tenants.  The sockets,
+ * and the monitoring and pool threads that go with each connection, are
+ * thus bounded by the maximum number of connections rather than by the
+ * number of configured tenants; the threads of queued or batched services
+ * come on top of them.
+ *
+ * <pre>
+ *   ApnsTenantManager manager = new ApnsTenantManager(
+ *       new ApnsTenantManager.TenantConfigurer() {
+ *           public void configure(String tenant, ApnsServiceBuilder builder) {
+ *               builder.withCert(certificatePath(tenant), password(tenant))
+ *                      .withProductionDestination();
+ *           }
+ *       }, 200, 10 * 60 * 1000);
+ *   manager.push("my-app", token, payload);
+ * </pre>
+ */
+public class ApnsTenantManager {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsTenantManager.class);
+
+    /**
+     * Configures the service of a tenant.
+     */
+    public interface TenantConfigurer {
+        /**
+         * Configures the builder used to create the service of the given
+         * tenant, typically its certificate and destination.
+         *
+         * The builder already uses the shared monitoring threads of the
+         * manager.  The method is called at most once per tenant activation,
+         * and may be called again after the tenant has been evicted.
+         *
+         * @param tenant    the tenant identifier
+         * @param builder   a new builder for the service of the tenant
+         */
+        void configure(String tenant, ApnsServiceBuilder builder);
+    }
+
+    private final TenantConfigurer configurer;
+    private final int maxConnections;
+    private final long idleTimeout;
+
+    private final LinkedHashMap<String, Tenant> tenants =
+            new LinkedHashMap<String, Tenant>(16, 0.75f, true);
+    // tenants whose service is being built
+    private final Map<String, Tenant> activating = new HashMap<String, Tenant>();
+    private int openConnections;
+    private boolean stopped;
+
+    private final ThreadFactory monitorThreadFactory;
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Constructs a new tenant manager.
+     *
+     * @param configurer        configures the service of each tenant
+     * @param maxConnections    maximum number of connections across all the
+     *                          tenants
+     * @param idleTimeout       time in milliseconds after which an unused
+     *                          tenant is stopped, or 0 to only evict tenants
+     *                          when reaching {@code maxConnections}
+     */
+    public ApnsTenantManager(TenantConfigurer configurer, int maxConnections, long idleTimeout) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
+        this.configurer = configurer;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.monitorThreadFactory = daemonThreadFactory("ApnsTenantMonitor-");
+
+        if (idleTimeout > 0) {
+            long period = Math.max(1, idleTimeout / 2);
+            evictor = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("ApnsTenantEvictor-"));
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        evictIdle();
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to evict idle tenants", e);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Sends a push notification with the provided {@code payload} to the
+     * device of {@code deviceToken}, using the service of the given tenant.
+     *
+     * @see ApnsService#push(String, String)
+     */
+    public ApnsNotification push(String tenant, String deviceToken, String payload) throws NetworkIOException {
+        Tenant t = acquire(tenant);
+        try {
+            return t.service.push(deviceToken, payload);
+        } finally {
+            release(t);
+        }
+    }
+
+    /**
+     * Sends the provided notification {@code message} using the service of
+     * the given tenant.
+     *
+     * @see ApnsService#push(ApnsNotification)
+     */
+    public void push(String tenant, ApnsNotification message) throws NetworkIOException {
+        Tenant t = acquire(tenant);
+        try {
+            t.service.push(message);
+        } finally {
+            release(t);
+        }
+    }
+
+    /**
+     * Returns the list of devices that reported failed-delivery attempts
+     * for the given tenant.
+     *
+     * @see ApnsService#getInactiveDevices()
+     */
+    public Map<String, Date> getInactiveDevices(String tenant) throws NetworkIOException {
+        Tenant t = acquire(tenant);
+        try {
+            return t.service.getInactiveDevices();
+        } finally {
+            release(t);
+        }
+    }
+
+    /**
+     * Returns the number of tenants that currently have a running service.
+     */
+    public synchronized int getActiveTenants() {
+        return tenants.size();
+    }
+
+    /**
+     * Returns the number of connections of the currently active tenants.
+     */
+    public synchronized int getOpenConnections() {
+        return openConnections;
+    }
+
+    /**
+     * Stops the services of the tenants that haven't been used for the idle
+     * timeout.  This is called periodically when an idle timeout is set.
+     */
+    public void evictIdle() {
+        long deadline = System.currentTimeMillis() - idleTimeout;
+        List<Tenant> evicted = new ArrayList<Tenant>();
+        synchronized (this) {
+            for (Iterator<Tenant> it = tenants.values().iterator(); it.hasNext();) {
+                Tenant t = it.next();
+                if (t.inFlight.get() == 0 && t.lastUsed < deadline) {
+                    it.remove();
+                    openConnections -= t.connections;
+                    evicted.add(t);
+                }
+            }
+        }
+        stopAll(evicted);
+    }
+
+    /**
+     * Stops the services of all the tenants, and the threads of the manager.
+     */
+    public void stop() {
+        List<Tenant> evicted;
+        synchronized (this) {
+            stopped = true;
+            activating.clear();
+            notifyAll();
+            evicted = new ArrayList<Tenant>(tenants.values());
+            tenants.clear();
+            openConnections = 0;
+        }
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        stopAll(evicted);
+    }
+
+    private Tenant acquire(String tenant) {
+        Tenant created;
+        synchronized (this) {
+            while (true) {
+                if (stopped) {
+                    throw new IllegalStateException("tenant manager was stopped");
+                }
+                Tenant t = tenants.get(tenant);
+                if (t != null) {
+                    t.inFlight.incrementAndGet();
+                    return t;
+                }
+                if (!activating.containsKey(tenant)) {
+                    break;
+                }
+                // another thread is activating the tenant, wait for its service
+                awaitChange(tenant);
+            }
+            created = new Tenant(tenant);
+            created.inFlight.incrementAndGet();
+            activating.put(tenant, created);
+        }
+
+        boolean reserved = false;
+        try {
+            // Loading certificates is slow, so don't hold the lock meanwhile
+            ApnsServiceBuilder builder = new ApnsServiceBuilder()
+                    .withErrorDetectionThreadFactory(monitorThreadFactory);
+            configurer.configure(tenant, builder);
+            created.connections = builder.getPooledMax();
+            if (created.connections > maxConnections) {
+                throw new IllegalArgumentException("Tenant " + tenant + " requires "
+                        + created.connections + " connections, more than the maximum of "
+                        + maxConnections);
+            }
+            reserve(created);
+            reserved = true;
+            created.service = newService(tenant, builder);
+        } finally {
+            if (created.service == null) {
+                synchronized (this) {
+                    // unless the manager was stopped meanwhile
+                    if (activating.get(tenant) == created) {
+                        activating.remove(tenant);
+                        if (reserved) {
+                            openConnections -= created.connections;
+                        }
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        boolean activated;
+        synchronized (this) {
+            activated = activating.get(tenant) == created;
+            if (activated) {
+                activating.remove(tenant);
+                tenants.put(tenant, created);
+            }
+            notifyAll();
+        }
+        if (!activated) {
+            // the manager was stopped meanwhile
+            stopAll(Collections.singletonList(created));
+            throw new IllegalStateException("tenant manager was stopped");
+        }
+        return created;
+    }
+
+    /**
+     * Reserves the connections of an activating tenant, evicting the least
+     * recently used idle tenants, or waiting for tenants in use to go idle.
+     */
+    private void reserve(Tenant created) {
+        List<Tenant> evicted = new ArrayList<Tenant>();
+        try {
+            synchronized (this) {
+                while (true) {
+                    if (activating.get(created.id) != created) {
+                        throw new IllegalStateException("tenant manager was stopped");
+                    }
+                    for (Iterator<Tenant> it = tenants.values().iterator();
+                            it.hasNext() && openConnections + created.connections > maxConnections;) {
+                        Tenant t = it.next();
+                        if (t.inFlight.get() == 0) {
+                            it.remove();
+                            openConnections -= t.connections;
+                            evicted.add(t);
+                        }
+                    }
+                    if (openConnections + created.connections <= maxConnections) {
+                        openConnections += created.connections;
+                        return;
+                    }
+                    // all the other tenants are in use, wait for one to be released
+                    awaitChange(created.id);
+                }
+            }
+        } finally {
+            stopAll(evicted);
+        }
+    }
+
+    // called holding the lock
+    private void awaitChange(String tenant) {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for connections of tenant " + tenant);
+        }
+    }
+
+    private void release(Tenant t) {
+        t.lastUsed = System.currentTimeMillis();
+        if (t.inFlight.decrementAndGet() == 0) {
+            synchronized (this) {
+                // the tenant can be evicted for a waiting one
+                notifyAll();
+            }
+        }
+    }
+
+    ApnsService newService(String tenant, ApnsServiceBuilder builder) {
+        return builder.build();
+    }
+
+    private void stopAll(List<Tenant> evicted) {
+        for (Tenant t : evicted) {
+            logger.debug("Stopping service of tenant {}", t.id);
+            try {
+                t.service.stop();
+            } catch (RuntimeException e) {
+                logger.warn("Failed to stop service of tenant " + t.id, e);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final ThreadFactory wrapped = Executors.defaultThreadFactory();
+            private final AtomicInteger threadId = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r) {
+                Thread result = wrapped.newThread(r);
+                result.setName(prefix + threadId.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        };
+    }
+
+    private static class Tenant {
+        final String id;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile long lastUsed = System.currentTimeMillis();
+        int connections;
+        ApnsService service;
+
+        Tenant(String id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.notnoop.apns;
+
+/**
+ * A delegate that also gets notified of the progress of the batches written
+ * by a batched service.
+ *
+ * The methods are called by the threads writing the partitions, so they
+ * should return quickly.
+ */
+public interface BatchApnsDelegate extends ApnsDelegate {
+
+    /**
+     * Called each time a chunk of notifications of a partition has been
+     * written, or failed to be written.
+     *
+     * @param progress the progress of the partition
+     */
+    public void batchPartitionProgress(BatchPartition progress);
+
+    /**
+     * Called when all the notifications of a partition have been written or
+     * failed.
+     *
+     * @param result the final progress of the partition
+     */
+    public void batchPartitionCompleted(BatchPartition result);
+
+}
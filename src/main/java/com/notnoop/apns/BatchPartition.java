@@ -0,0 +1,82 @@
+package com.notnoop.apns;
+
+/**
+ * The progress of a partition of a batch, written by a batched service to
+ * one of its connections.
+ *
+ * @see BatchApnsDelegate
+ * @see ApnsServiceBuilder#withBatchPartitions(int)
+ */
+public class BatchPartition {
+    private final long batch;
+    private final int partition;
+    private final int partitions;
+    private final int size;
+    private final int written;
+    private final int failed;
+
+    public BatchPartition(long batch, int partition, int partitions, int size, int written, int failed) {
+        this.batch = batch;
+        this.partition = partition;
+        this.partitions = partitions;
+        this.size = size;
+        this.written = written;
+        this.failed = failed;
+    }
+
+    /**
+     * Returns the sequence number of the batch, starting at 1.
+     */
+    public long getBatch() {
+        return batch;
+    }
+
+    /**
+     * Returns the index of the partition in the batch, starting at 0.
+     */
+    public int getPartition() {
+        return partition;
+    }
+
+    /**
+     * Returns the number of partitions the batch was split into.
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Returns the number of notifications of the partition.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of notifications written so far.
+     */
+    public int getWritten() {
+        return written;
+    }
+
+    /**
+     * Returns the number of notifications that couldn't be written so far.
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns whether all the notifications of the partition were either
+     * written or failed.
+     */
+    public boolean isCompleted() {
+        return written + failed == size;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchPartition[batch=" + batch + ", partition=" + partition + "/" + partitions
+                + ", size=" + size + ", written=" + written + ", failed=" + failed + "]";
+    }
+}
@@ -0,0 +1,309 @@
+package com.notnoop.apns;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a bulk push or a campaign, cheap enough to be polled by
+ * a monitoring thread.
+ *
+ * The notifications handed to the service are counted as queued by the
+ * campaigns given the progress, or by the sources {@link #track(Iterator)
+ * tracked} by it.  The progress is also an {@link ApnsDelegate}: set as the
+ * delegate of the service with {@link ApnsServiceBuilder#withDelegate(ApnsDelegate)},
+ * it counts the notifications written to the connections, failed and
+ * resent, and forwards the events to the application's own delegate.
+ * The failures are then counted from the events of the service only, and
+ * not again from the results the campaigns get.
+ *
+ * The throughputs and the estimated time left are computed from the
+ * written notifications, or from the queued ones when the progress isn't
+ * the delegate of the service.
+ */
+public class BulkProgress implements ApnsDelegate {
+
+    private static final int MIN_SAMPLES = 128;
+    private static final long SAMPLE_INTERVAL = 100;
+    private static final long RATE_WINDOW = 1000;
+
+    private final ApnsDelegate delegate;
+    private final long errorWindow;
+    private final long startTime;
+    private volatile long total = -1;
+    private volatile boolean serviceDelegate;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong resent = new AtomicLong();
+
+    // a ring of the counts sampled at most every SAMPLE_INTERVAL, long
+    // enough to span the error window
+    private final int samples;
+    private final long[] sampleTimes;
+    private final long[] sampleCounts;
+    private final long[] sampleWritten;
+    private int sampleCount;
+    private int oldestSample;
+    private volatile long nextSample;
+
+    public BulkProgress() {
+        this(ApnsDelegate.EMPTY, ApnsCampaign.DEFAULT_ERROR_WINDOW);
+    }
+
+    /**
+     * @param delegate      the delegate the events are forwarded to
+     * @param errorWindow   time in milliseconds after which a written
+     *                      notification is counted past the error window
+     */
+    public BulkProgress(ApnsDelegate delegate, long errorWindow) {
+        if (errorWindow < 0) {
+            throw new IllegalArgumentException("Negative error window: " + errorWindow);
+        }
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+        this.errorWindow = errorWindow;
+        // one more sample than the window holds, for the one just past it
+        this.samples = (int) Math.max(MIN_SAMPLES, Math.max(errorWindow, RATE_WINDOW) / SAMPLE_INTERVAL + 2);
+        this.sampleTimes = new long[samples];
+        this.sampleCounts = new long[samples];
+        this.sampleWritten = new long[samples];
+        this.startTime = System.currentTimeMillis();
+        sample(startTime);
+    }
+
+    /**
+     * Sets the number of notifications to send, or -1 if unknown.
+     */
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    /**
+     * Counts notifications handed to the service.
+     */
+    public void queued(long count) {
+        queued.addAndGet(count);
+        sampleIfDue();
+    }
+
+    /**
+     * Counts notifications that couldn't be handed to the service.
+     */
+    public void failed(long count) {
+        failed.addAndGet(count);
+    }
+
+    /**
+     * Counts notifications the service rejected.  Ignored when the
+     * progress is the delegate of the service, which reports every
+     * rejected notification to
+     * {@link #messageSendFailed(ApnsNotification, Throwable)} already.
+     */
+    public void rejected(long count) {
+        if (!serviceDelegate) {
+            failed.addAndGet(count);
+        }
+    }
+
+    /**
+     * Marks the progress as the delegate of a service.
+     */
+    void setServiceDelegate() {
+        serviceDelegate = true;
+    }
+
+    /**
+     * Returns an iterator counting the elements read from
+     * {@code iterator} as queued.
+     */
+    public <T> Iterator<T> track(final Iterator<T> iterator) {
+        return new Iterator<T>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public T next() {
+                T next = iterator.next();
+                queued(1);
+                return next;
+            }
+
+            public void remove() {
+                iterator.remove();
+            }
+        };
+    }
+
+    /**
+     * Returns a source counting the tokens read from {@code source} as
+     * queued.
+     */
+    public DeviceTokenSource track(final DeviceTokenSource source) {
+        return new DeviceTokenSource() {
+            public byte[] nextToken() {
+                byte[] token = source.nextToken();
+                if (token != null) {
+                    queued(1);
+                }
+                return token;
+            }
+        };
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getResent() {
+        return resent.get();
+    }
+
+    /**
+     * Returns the number of notifications written at least the error
+     * window ago, which APNs had time to reject.
+     */
+    public long getPastErrorWindow() {
+        long now = System.currentTimeMillis();
+        sample(now);
+        synchronized (this) {
+            long count = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                int index = index(i);
+                if (now - sampleTimes[index] < errorWindow) {
+                    break;
+                }
+                count = sampleWritten[index];
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the number of notifications sent per second over the last
+     * second.
+     */
+    public double getThroughput() {
+        long now = System.currentTimeMillis();
+        sample(now);
+        long count = count();
+        synchronized (this) {
+            // the latest sample at least RATE_WINDOW old, or the oldest one
+            int from = index(0);
+            for (int i = 1; i < sampleCount; i++) {
+                if (now - sampleTimes[index(i)] < RATE_WINDOW) {
+                    break;
+                }
+                from = index(i);
+            }
+            long elapsed = now - sampleTimes[from];
+            return elapsed <= 0 ? 0 : (count - sampleCounts[from]) * 1000.0 / elapsed;
+        }
+    }
+
+    /**
+     * Returns the number of notifications sent per second since the
+     * progress was created.
+     */
+    public double getAverageThroughput() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed <= 0 ? 0 : count() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Returns the estimated time left in milliseconds, or -1 if the total
+     * is unknown or nothing was sent yet.
+     */
+    public long getEta() {
+        long total = this.total;
+        if (total < 0) {
+            return -1;
+        }
+        long left = total - count() - failed.get();
+        if (left <= 0) {
+            return 0;
+        }
+        double rate = getThroughput();
+        if (rate <= 0) {
+            rate = getAverageThroughput();
+        }
+        return rate <= 0 ? -1 : (long) (left * 1000 / rate);
+    }
+
+    private long count() {
+        long w = written.get();
+        return w > 0 ? w : queued.get();
+    }
+
+    private void sampleIfDue() {
+        long now = System.currentTimeMillis();
+        if (now >= nextSample) {
+            sample(now);
+        }
+    }
+
+    private synchronized void sample(long now) {
+        if (now < nextSample) {
+            return;
+        }
+        nextSample = now + SAMPLE_INTERVAL;
+        int index;
+        if (sampleCount < samples) {
+            index = sampleCount++;
+        } else {
+            // overwrites the oldest sample
+            index = oldestSample;
+            oldestSample = (oldestSample + 1) % samples;
+        }
+        sampleTimes[index] = now;
+        sampleCounts[index] = count();
+        sampleWritten[index] = written.get();
+    }
+
+    private int index(int i) {
+        return (oldestSample + i) % samples;
+    }
+
+    public void messageSent(ApnsNotification message, boolean resent) {
+        if (!resent) {
+            written.incrementAndGet();
+            sampleIfDue();
+        }
+        delegate.messageSent(message, resent);
+    }
+
+    public void messageSendFailed(ApnsNotification message, Throwable e) {
+        failed.incrementAndGet();
+        delegate.messageSendFailed(message, e);
+    }
+
+    public void connectionClosed(DeliveryError e, int messageIdentifier) {
+        delegate.connectionClosed(e, messageIdentifier);
+    }
+
+    public void cacheLengthExceeded(int newCacheLength) {
+        delegate.cacheLengthExceeded(newCacheLength);
+    }
+
+    public void notificationsResent(int resendCount) {
+        resent.addAndGet(resendCount);
+        delegate.notificationsResent(resendCount);
+    }
+
+    @Override
+    public String toString() {
+        return "BulkProgress[total=" + total + ", queued=" + queued + ", written=" + written
+                + ", failed=" + failed + ", resent=" + resent + "]";
+    }
+}
@@ -0,0 +1,118 @@
+package com.notnoop.apns;
+
+import java.util.List;
+
+/**
+ * The summary of a bulk push to a stream of device tokens: how many
+ * notifications were pushed or failed, and the range of their identifiers.
+ * The notifications themselves aren't kept, so that the memory used
+ * doesn't grow with the audience.
+ *
+ * @see ApnsService#pushAll(java.util.Iterator, String)
+ */
+public class BulkPushResult {
+
+    /**
+     * Maximum number of failures kept with their cause; further failures
+     * are only counted.
+     */
+    public static final int MAX_FAILURES = 100;
+
+    private final long pushed;
+    private final long failed;
+    private final int firstIdentifier;
+    private final int lastIdentifier;
+    private final List<Failure> failures;
+
+    public BulkPushResult(long pushed, long failed, int firstIdentifier, int lastIdentifier,
+            List<Failure> failures) {
+        this.pushed = pushed;
+        this.failed = failed;
+        this.firstIdentifier = firstIdentifier;
+        this.lastIdentifier = lastIdentifier;
+        this.failures = failures;
+    }
+
+    /**
+     * Returns the number of notifications handed to the service.
+     */
+    public long getPushed() {
+        return pushed;
+    }
+
+    /**
+     * Returns the number of device tokens that couldn't be pushed.
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns the identifier of the first notification created, or -1 if
+     * none was.
+     */
+    public int getFirstIdentifier() {
+        return firstIdentifier;
+    }
+
+    /**
+     * Returns the identifier of the last notification created, or -1 if
+     * none was.  Notifications pushed concurrently by other threads may
+     * have identifiers within the range.
+     */
+    public int getLastIdentifier() {
+        return lastIdentifier;
+    }
+
+    /**
+     * Returns the first {@link #MAX_FAILURES} failures.
+     */
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkPushResult[pushed=" + pushed + ", failed=" + failed
+                + ", identifiers=" + firstIdentifier + ".." + lastIdentifier + "]";
+    }
+
+    /**
+     * A device token that couldn't be pushed.
+     */
+    public static class Failure {
+        private final String deviceToken;
+        private final int identifier;
+        private final Exception cause;
+
+        public Failure(String deviceToken, int identifier, Exception cause) {
+            this.deviceToken = deviceToken;
+            this.identifier = identifier;
+            this.cause = cause;
+        }
+
+        /**
+         * Returns the device token, as given or as a hex string.
+         */
+        public String getDeviceToken() {
+            return deviceToken;
+        }
+
+        /**
+         * Returns the identifier of the notification, or -1 if the token
+         * was invalid.
+         */
+        public int getIdentifier() {
+            return identifier;
+        }
+
+        public Exception getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return "Failure[" + deviceToken + ", id=" + identifier + ", cause=" + cause + "]";
+        }
+    }
+}
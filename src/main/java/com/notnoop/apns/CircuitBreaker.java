@@ -0,0 +1,185 @@
+package com.notnoop.apns;
+
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending to the Apple servers while they are unreachable.
+ *
+ * The breaker starts {@link State#CLOSED}, letting every request through.
+ * After {@code failureThreshold} consecutive failures it opens for a
+ * backoff period, during which requests fail fast without touching the
+ * network.  Once the backoff period is over, the breaker is
+ * {@link State#HALF_OPEN}: a single request probes the servers, closing the
+ * breaker if it succeeds, or opening it again for twice the previous
+ * backoff period (up to {@code maxBackoff}) if it fails.  Backoff periods
+ * are jittered so that many clients don't probe at the same time.
+ *
+ * When a breaker is set with
+ * {@link ApnsServiceBuilder#withCircuitBreaker(CircuitBreaker)}, the
+ * connections wait a {@link #nextRetryDelay() jittered delay} between
+ * retries, and fail fast once the breaker opens.  While the breaker is
+ * closed and no request failed, requests and successes don't take its
+ * lock.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State {
+        /** Requests go through. */
+        CLOSED,
+        /** Requests fail fast until the backoff period is over. */
+        OPEN,
+        /** A single request probes whether the servers are reachable again. */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final Random random = new Random();
+
+    private volatile State state = State.CLOSED;
+    // closed with no failure since the last success
+    private volatile boolean healthy = true;
+    private int failures;
+    private long backoff;
+    private long openUntil;
+    private long probeStarted;
+
+    /**
+     * Constructs a breaker opening after 3 consecutive failures, with a
+     * backoff of 1 second up to 1 minute.
+     */
+    public CircuitBreaker() {
+        this(3, 1000, 60 * 1000);
+    }
+
+    /**
+     * Constructs a new breaker.
+     *
+     * @param failureThreshold  number of consecutive failures opening the
+     *                          breaker
+     * @param initialBackoff    first backoff period, in milliseconds
+     * @param maxBackoff        maximum backoff period, in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long initialBackoff, long maxBackoff) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = Math.max(initialBackoff, maxBackoff);
+    }
+
+    /**
+     * Returns {@code true} if a request may be sent now.  When the backoff
+     * period is over, the first caller gets to send the probe request.
+     */
+    public boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            return probe();
+        }
+    }
+
+    private boolean probe() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (now < openUntil) {
+                return false;
+            }
+            logger.debug("Circuit breaker half-open, probing");
+            state = State.HALF_OPEN;
+            probeStarted = now;
+            return true;
+        default:
+            // let another probe through if the previous one never reported
+            if (now - probeStarted >= maxBackoff) {
+                probeStarted = now;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records a successful request, closing the breaker.
+     */
+    public void recordSuccess() {
+        if (healthy) {
+            return;
+        }
+        synchronized (this) {
+            if (state != State.CLOSED) {
+                logger.info("Circuit breaker closed");
+            }
+            state = State.CLOSED;
+            failures = 0;
+            backoff = 0;
+            healthy = true;
+        }
+    }
+
+    /**
+     * Records a failed request, opening the breaker if the probe failed or
+     * if there were too many consecutive failures.
+     */
+    public synchronized void recordFailure() {
+        healthy = false;
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            backoff = backoff == 0 ? initialBackoff : Math.min(maxBackoff, backoff * 2);
+            long delay = jitter(backoff);
+            openUntil = System.currentTimeMillis() + delay;
+            state = State.OPEN;
+            logger.warn("Circuit breaker open for {} ms after {} failures", delay, failures);
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds to wait before retrying a failed
+     * request: between half and all of the current backoff period, or of
+     * the initial one while the breaker is closed.
+     */
+    public synchronized long nextRetryDelay() {
+        return jitter(backoff == 0 ? initialBackoff : backoff);
+    }
+
+    // "equal jitter": between half and all of the period
+    private long jitter(long period) {
+        return period / 2 + (long) (random.nextDouble() * (period / 2 + 1));
+    }
+
+    /**
+     * Returns the current state of the breaker.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the time in milliseconds until the breaker lets a probe
+     * request through, or 0 if requests may be sent now.
+     */
+    public synchronized long getRetryDelay() {
+        return state == State.OPEN ? Math.max(0, openUntil - System.currentTimeMillis()) : 0;
+    }
+
+    /**
+     * Returns a new breaker with the same settings, in the closed state.
+     */
+    public CircuitBreaker copy() {
+        return new CircuitBreaker(failureThreshold, initialBackoff, maxBackoff);
+    }
+}
@@ -0,0 +1,39 @@
+package com.notnoop.apns;
+
+/**
+ * Tells which pending notifications a new notification supersedes.
+ *
+ * With {@link ApnsServiceBuilder#withCoalescing(CollapseKeyResolver)}, a
+ * notification pushed while a notification to the same device with the
+ * same collapse key is still queued replaces it, keeping its place in the
+ * queue, instead of being queued after it.
+ */
+public interface CollapseKeyResolver {
+
+    /**
+     * Coalesces the notifications without alert nor sound (badge updates
+     * and silent {@code content-available} notifications) to the same
+     * device, since only the latest one matters.
+     */
+    CollapseKeyResolver NO_ALERT = new CollapseKeyResolver() {
+        public String getCollapseKey(ApnsNotification notification) {
+            String payload;
+            try {
+                payload = new String(notification.getPayload(), "UTF-8");
+            } catch (java.io.UnsupportedEncodingException e) {
+                return null;
+            }
+            if (payload.contains("\"alert\"") || payload.contains("\"sound\"")) {
+                return null;
+            }
+            return "";
+        }
+    };
+
+    /**
+     * Returns the collapse key of the notification, or {@code null} if it
+     * must never be coalesced.  Notifications to the same device token
+     * with equal collapse keys supersede each other.
+     */
+    String getCollapseKey(ApnsNotification notification);
+}
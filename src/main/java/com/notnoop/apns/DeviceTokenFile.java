@@ -0,0 +1,410 @@
+package com.notnoop.apns;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.exceptions.RuntimeIOException;
+
+/**
+ * A file of device tokens to broadcast a notification to, either 32-byte
+ * binary records or one hex token per line.
+ *
+ * The file is memory-mapped and the tokens are decoded in place, one at a
+ * time, into a reused array: reading a file creates no object per token.
+ * It can be split into ranges read in parallel, each range ending on a
+ * record or line boundary.
+ *
+ * <pre>
+ *   DeviceTokenFile tokens = new DeviceTokenFile(new File("audience.txt"));
+ *   BulkPushResult result = tokens.pushTo(service, payload, 4);
+ * </pre>
+ */
+public class DeviceTokenFile {
+
+    /**
+     * The layouts of token files.
+     */
+    public enum Format {
+        /** 32-byte binary tokens, one after the other */
+        BINARY,
+        /** hex tokens, one per line */
+        HEX
+    }
+
+    public static final int TOKEN_LENGTH = 32;
+
+    /** largest range mapped at once */
+    private static final long MAX_RANGE = 1L << 30;
+    private static final int DETECT_LENGTH = 4096;
+
+    private final File file;
+    private final Format format;
+    private final long length;
+
+    /**
+     * Opens a token file, telling its format from its first bytes: a file
+     * starting with text only is read as {@link Format#HEX}.
+     */
+    public DeviceTokenFile(File file) throws RuntimeIOException {
+        this(file, detect(file));
+    }
+
+    public DeviceTokenFile(File file, Format format) {
+        this.file = file;
+        this.format = format;
+        this.length = file.length();
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the length of the file in bytes.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns the number of tokens following {@code offset}: exact for a
+     * {@link Format#BINARY} file, estimated from the length of a line for
+     * a {@link Format#HEX} one.
+     */
+    public long estimateTokens(long offset) {
+        long remaining = length - offset;
+        return format == Format.BINARY
+                ? remaining / TOKEN_LENGTH
+                : (remaining + 2 * TOKEN_LENGTH) / (2 * TOKEN_LENGTH + 1);
+    }
+
+    /**
+     * Returns a source of all the tokens of the file.
+     */
+    public Range open() throws RuntimeIOException {
+        return split(1).get(0);
+    }
+
+    /**
+     * Returns a source of the tokens following {@code offset}, a record or
+     * line boundary such as a {@link Range#getOffset() range offset}.
+     */
+    public Range open(long offset) throws RuntimeIOException {
+        if (offset < 0 || offset > length) {
+            throw new IllegalArgumentException("offset " + offset + " out of " + length);
+        }
+        if (offset == length) {
+            return new Range(length, length, null);
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return new Range(offset, length, raf.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, offset, length - offset));
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    /**
+     * Splits the file into {@code count} ranges of about the same length,
+     * or more when the file is too large to map each range at once.
+     */
+    public List<Range> split(int count) throws RuntimeIOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        count = (int) Math.max(count, (length + MAX_RANGE - 1) / MAX_RANGE);
+        List<Range> ranges = new ArrayList<Range>(count);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long start = 0;
+                for (int i = 1; i <= count && start < length; i++) {
+                    long end = i == count ? length : boundary(raf, length * i / count);
+                    if (end > start) {
+                        MappedByteBuffer buffer = raf.getChannel().map(
+                                FileChannel.MapMode.READ_ONLY, start, end - start);
+                        ranges.add(new Range(start, end, buffer));
+                    }
+                    start = end;
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+        if (ranges.isEmpty()) {
+            ranges.add(new Range(0, 0, null));
+        }
+        return ranges;
+    }
+
+    /**
+     * Pushes the notification to every token of the file, reading
+     * {@code parallelism} ranges of the file in parallel.  With a pooled
+     * service, the ranges are written to different connections.
+     *
+     * @return the summary of the push; the invalid tokens of the file are
+     *      counted as failed
+     */
+    public BulkPushResult pushTo(ApnsService service, byte[] payload, int parallelism) {
+        return pushTo(service, payload, ApnsNotification.MAXIMUM_EXPIRY,
+                Priority.SEND_IMMEDIATELY, parallelism);
+    }
+
+    public BulkPushResult pushTo(ApnsService service, byte[] payload,
+            int expiry, Priority priority, int parallelism) {
+        return pushTo(service, payload, expiry, priority, parallelism, null);
+    }
+
+    /**
+     * Pushes the notification to every token of the file, counting the
+     * tokens read in {@code progress}.
+     */
+    public BulkPushResult pushTo(final ApnsService service, final byte[] payload,
+            final int expiry, final Priority priority, int parallelism, final BulkProgress progress) {
+        if (progress != null) {
+            progress.setTotal(estimateTokens(0));
+        }
+        List<Range> ranges = split(parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, ranges.size()));
+        List<Future<BulkPushResult>> futures = new ArrayList<Future<BulkPushResult>>(ranges.size());
+        for (final Range range : ranges) {
+            futures.add(executor.submit(new Callable<BulkPushResult>() {
+                public BulkPushResult call() {
+                    if (progress == null) {
+                        return service.pushAll(range, payload, expiry, priority);
+                    }
+                    BulkPushResult result = service.pushAll(progress.track(range), payload, expiry, priority);
+                    progress.rejected(result.getFailed());
+                    progress.failed(range.getInvalidTokens());
+                    return result;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        long pushed = 0;
+        long failed = 0;
+        int firstIdentifier = -1;
+        int lastIdentifier = -1;
+        List<BulkPushResult.Failure> failures = new ArrayList<BulkPushResult.Failure>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                BulkPushResult result = futures.get(i).get();
+                pushed += result.getPushed();
+                failed += result.getFailed() + ranges.get(i).getInvalidTokens();
+                if (result.getFirstIdentifier() != -1) {
+                    if (firstIdentifier == -1 || result.getFirstIdentifier() < firstIdentifier) {
+                        firstIdentifier = result.getFirstIdentifier();
+                    }
+                    lastIdentifier = Math.max(lastIdentifier, result.getLastIdentifier());
+                }
+                for (BulkPushResult.Failure failure : result.getFailures()) {
+                    if (failures.size() < BulkPushResult.MAX_FAILURES) {
+                        failures.add(failure);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return new BulkPushResult(pushed, failed, firstIdentifier, lastIdentifier, failures);
+    }
+
+    /**
+     * Returns the start of the record holding {@code position}, or the end
+     * of the line holding {@code position - 1}.
+     */
+    private long boundary(RandomAccessFile raf, long position) throws IOException {
+        if (format == Format.BINARY) {
+            return position - position % TOKEN_LENGTH;
+        }
+        if (position == 0) {
+            return 0;
+        }
+        // the range ends after the newline of the line holding position - 1
+        raf.seek(position - 1);
+        byte[] chunk = new byte[256];
+        long offset = position - 1;
+        int n;
+        while ((n = raf.read(chunk)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (chunk[i] == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += n;
+        }
+        return length;
+    }
+
+    private static Format detect(File file) throws RuntimeIOException {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] head = new byte[(int) Math.min(DETECT_LENGTH, raf.length())];
+                raf.readFully(head);
+                for (byte b : head) {
+                    if ((b < 0x20 || b >= 0x7f) && b != '\n' && b != '\r' && b != '\t') {
+                        return Format.BINARY;
+                    }
+                }
+                return Format.HEX;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    private static int hexValue(byte b) {
+        if ('0' <= b && b <= '9') {
+            return b - '0';
+        } else if ('a' <= b && b <= 'f') {
+            return b - 'a' + 10;
+        } else if ('A' <= b && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static boolean isSeparator(byte b) {
+        // the characters Utilities.decodeHex ignores, and line endings
+        return b == ' ' || b == '-' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * A range of the file, read one token at a time.  The returned token
+     * array is reused for the next token.
+     */
+    public class Range implements DeviceTokenSource {
+        private final long start;
+        private final long end;
+        private final MappedByteBuffer buffer;
+        private final byte[] token = new byte[TOKEN_LENGTH];
+        private int invalidTokens;
+
+        Range(long start, long end, MappedByteBuffer buffer) {
+            this.start = start;
+            this.end = end;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Returns the offset of the range in the file.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Returns the offset following the range in the file.
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * Returns the offset in the file following the last token read, from
+         * which {@link DeviceTokenFile#open(long)} reads the next tokens.
+         */
+        public long getOffset() {
+            return buffer == null ? end : start + buffer.position();
+        }
+
+        /**
+         * Returns the number of records or lines skipped so far because
+         * they didn't hold a valid token.
+         */
+        public int getInvalidTokens() {
+            return invalidTokens;
+        }
+
+        public byte[] nextToken() {
+            if (buffer == null) {
+                return null;
+            }
+            return format == Format.BINARY ? nextRecord() : nextLine();
+        }
+
+        private byte[] nextRecord() {
+            if (buffer.remaining() < TOKEN_LENGTH) {
+                if (buffer.hasRemaining()) {
+                    // truncated last record
+                    invalidTokens++;
+                    buffer.position(buffer.limit());
+                }
+                return null;
+            }
+            buffer.get(token);
+            return token;
+        }
+
+        private byte[] nextLine() {
+            while (buffer.hasRemaining()) {
+                int nibbles = 0;
+                boolean invalid = false;
+                boolean blank = true;
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        break;
+                    }
+                    int value = hexValue(b);
+                    if (value >= 0) {
+                        if (nibbles < 2 * TOKEN_LENGTH) {
+                            int i = nibbles >> 1;
+                            token[i] = (nibbles & 1) == 0
+                                    ? (byte) (value << 4)
+                                    : (byte) (token[i] | value);
+                        }
+                        nibbles++;
+                        blank = false;
+                    } else if (!isSeparator(b)) {
+                        invalid = true;
+                        blank = false;
+                    }
+                }
+                if (blank) {
+                    continue;
+                }
+                if (invalid || nibbles != 2 * TOKEN_LENGTH) {
+                    invalidTokens++;
+                    continue;
+                }
+                return token;
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "Range[" + start + ".." + end + " of " + file + "]";
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.notnoop.apns;
+
+/**
+ * A source of binary device tokens, read one at a time so that pushing to
+ * a large audience doesn't hold every token in memory.
+ *
+ * @see ApnsService#pushAll(DeviceTokenSource, byte[])
+ */
+public interface DeviceTokenSource {
+
+    /**
+     * Returns the next device token, or {@code null} once all the tokens
+     * were read.
+     *
+     * The service copies the token, so the source may reuse the returned
+     * array for the next one.
+     */
+    byte[] nextToken();
+}
@@ -0,0 +1,19 @@
+package com.notnoop.apns;
+
+/**
+ * A delegate that also gets notified when a queued or batched service drops
+ * a notification that expired before it could be sent.
+ *
+ * @see ApnsServiceBuilder#withDropExpired()
+ */
+public interface ExpiredApnsDelegate extends ApnsDelegate {
+
+    /**
+     * Called when a notification is dropped because its expiry date passed
+     * while it was waiting to be sent.
+     *
+     * @param message the expired notification
+     */
+    public void messageExpired(ApnsNotification message);
+
+}
@@ -30,11 +30,17 @@
  */
 package com.notnoop.apns;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Set;
+import com.notnoop.apns.internal.PayloadEncoder;
 import com.notnoop.apns.internal.Utilities;
 
 /**
@@ -42,12 +48,21 @@ import com.notnoop.apns.internal.Utilities;
  * specified by Apple Push Notification Programming Guide.
  */
 public final class PayloadBuilder {
-    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int APS_KEY_LENGTH = PayloadEncoder.keyLength("aps");
+    private static final int ALERT_KEY_LENGTH = PayloadEncoder.keyLength("alert");
+    private static final int BODY_KEY_LENGTH = PayloadEncoder.keyLength("body");
 
     private final Map<String, Object> root;
     private final Map<String, Object> aps;
     private final Map<String, Object> customAlert;
 
+    // encoded length of the entries of each map, commas excluded
+    private int rootLength;
+    private int apsLength;
+    private int customAlertLength;
+    // custom fields holding objects that may change, measured on demand
+    private final Set<String> unmeasuredFields;
+
     /**
      * Constructs a new instance of {@code PayloadBuilder}
      */
@@ -55,6 +70,7 @@ public final class PayloadBuilder {
         root = new HashMap<String, Object>();
         aps = new HashMap<String, Object>();
         customAlert = new HashMap<String, Object>();
+        unmeasuredFields = new HashSet<String>();
     }
 
     /**
@@ -65,7 +81,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder alertBody(final String alert) {
-        customAlert.put("body", alert);
+        put(customAlert, "body", alert);
         return this;
     }
 
@@ -79,7 +95,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder alertTitle(final String title) {
-        customAlert.put("title", title);
+        put(customAlert, "title", title);
         return this;
     }
 
@@ -90,7 +106,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder localizedTitleKey(final String key) {
-        customAlert.put("title-loc-key", key);
+        put(customAlert, "title-loc-key", key);
         return this;
     }
 
@@ -101,7 +117,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder localizedTitleArguments(final Collection<String> arguments) {
-        customAlert.put("title-loc-args", arguments);
+        put(customAlert, "title-loc-args", arguments);
         return this;
     }
 
@@ -122,7 +138,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder alertAction(final String action) {
-        customAlert.put("action", action);
+        put(customAlert, "action", action);
         return this;
     }
 
@@ -137,7 +153,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder urlArgs(final String... urlArgs){
-        aps.put("url-args", urlArgs);
+        put(aps, "url-args", urlArgs);
         return this;
     }
 
@@ -152,9 +168,9 @@ public final class PayloadBuilder {
      */
     public PayloadBuilder sound(final String sound) {
         if (sound != null) {
-            aps.put("sound", sound);
+            put(aps, "sound", sound);
         } else {
-            aps.remove("sound");
+            remove(aps, "sound");
         }
         return this;
     }
@@ -171,9 +187,9 @@ public final class PayloadBuilder {
      */
     public PayloadBuilder category(final String category) {
         if (category != null) {
-            aps.put("category", category);
+            put(aps, "category", category);
         } else {
-            aps.remove("category");
+            remove(aps, "category");
         }
         return this;
     }
@@ -190,7 +206,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder badge(final int badge) {
-        aps.put("badge", badge);
+        put(aps, "badge", badge);
         return this;
     }
 
@@ -221,7 +237,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder actionKey(final String actionKey) {
-        customAlert.put("action-loc-key", actionKey);
+        put(customAlert, "action-loc-key", actionKey);
         return this;
     }
 
@@ -245,7 +261,7 @@ public final class PayloadBuilder {
      * @return this
      */
     public PayloadBuilder forNewsstand() {
-        aps.put("content-available", 1);
+        put(aps, "content-available", 1);
         return this;
     }
 
@@ -258,7 +274,7 @@ public final class PayloadBuilder {
      * @return this
      */
     public PayloadBuilder instantDeliveryOrSilentNotification() {
-        aps.put("content-available", 1);
+        put(aps, "content-available", 1);
         return this;
     }
 
@@ -270,7 +286,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder localizedKey(final String key) {
-        customAlert.put("loc-key", key);
+        put(customAlert, "loc-key", key);
         return this;
     }
 
@@ -283,7 +299,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder localizedArguments(final Collection<String> arguments) {
-        customAlert.put("loc-args", arguments);
+        put(customAlert, "loc-args", arguments);
         return this;
     }
 
@@ -307,7 +323,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder launchImage(final String launchImage) {
-        customAlert.put("launch-image", launchImage);
+        put(customAlert, "launch-image", launchImage);
         return this;
     }
 
@@ -325,7 +341,7 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder customField(final String key, final Object value) {
-        root.put(key, value);
+        put(root, key, value);
         return this;
     }
 
@@ -346,7 +362,9 @@ public final class PayloadBuilder {
      * @return  this
      */
     public PayloadBuilder customFields(final Map<String, ?> values) {
-        root.putAll(values);
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            put(root, entry.getKey(), entry.getValue());
+        }
         return this;
     }
 
@@ -356,7 +374,29 @@ public final class PayloadBuilder {
      * @return the length of the payload
      */
     public int length() {
-        return copy().buildBytes().length;
+        int rootLength = this.rootLength;
+        for (String key : unmeasuredFields) {
+            rootLength += PayloadEncoder.entryLength(key, root.get(key));
+        }
+        if (root.containsKey("mdm")) {
+            return PayloadEncoder.objectLength(rootLength, root.size());
+        }
+        int apsEntries = apsLength;
+        int apsCount = aps.size();
+        if (!customAlert.isEmpty()) {
+            apsEntries += ALERT_KEY_LENGTH + (customAlert.size() == 1 && customAlert.containsKey("body")
+                    ? customAlertLength - BODY_KEY_LENGTH
+                    : PayloadEncoder.objectLength(customAlertLength, customAlert.size()));
+            apsCount++;
+        }
+        int rootEntries = rootLength + APS_KEY_LENGTH + PayloadEncoder.objectLength(apsEntries, apsCount);
+        int rootCount = root.size() + 1;
+        if (root.containsKey("aps")) {
+            // replaced by the aps dictionary
+            rootEntries -= PayloadEncoder.entryLength("aps", root.get("aps"));
+            rootCount--;
+        }
+        return PayloadEncoder.objectLength(rootEntries, rootCount);
     }
 
     /**
@@ -373,10 +413,11 @@ public final class PayloadBuilder {
      * Shrinks the alert message body so that the resulting payload
      * message fits within the passed expected payload length.
      *
-     * This method performs best-effort approach, and its behavior
-     * is unspecified when handling alerts where the payload
-     * without body is already longer than the permitted size, or
-     * if the break occurs within word.
+     * The body is cut to the bytes in excess, on a character boundary.
+     * When the body can't absorb the excess with the postfix, or there is
+     * no body, the body is removed and the localized arguments are cut,
+     * starting with the last one.  The payload may still be longer when
+     * the rest of the payload doesn't fit.
      *
      * @param payloadLength the expected max size of the payload
      * @return  this
@@ -389,44 +430,62 @@ public final class PayloadBuilder {
      * Shrinks the alert message body so that the resulting payload
      * message fits within the passed expected payload length.
      *
-     * This method performs best-effort approach, and its behavior
-     * is unspecified when handling alerts where the payload
-     * without body is already longer than the permitted size, or
-     * if the break occurs within word.
+     * The body is cut to the bytes in excess, on a character boundary.
+     * When the body can't absorb the excess with the postfix, or there is
+     * no body, the body is removed and the localized arguments are cut,
+     * starting with the last one.  The payload may still be longer when
+     * the rest of the payload doesn't fit.
      *
      * @param payloadLength the expected max size of the payload
      * @param postfix for the truncated body, e.g. "..."
      * @return  this
      */
     public PayloadBuilder resizeAlertBody(final int payloadLength, final String postfix) {
-        int currLength = length();
-        if (currLength <= payloadLength) {
+        int excess = length() - payloadLength;
+        if (excess <= 0) {
             return this;
         }
 
-        // now we are sure that truncation is required
-        String body = (String)customAlert.get("body");
-
-        final int acceptableSize = Utilities.toUTF8Bytes(body).length
-                - (currLength - payloadLength
-                        + Utilities.toUTF8Bytes(postfix).length);
-        body = Utilities.truncateWhenUTF8(body, acceptableSize) + postfix;
-
-        // set it back
-        customAlert.put("body", body);
-
-        // calculate the length again
-        currLength = length();
-
-        if(currLength > payloadLength) {
-            // string is still too long, just remove the body as the body is
-            // anyway not the cause OR the postfix might be too long
-            customAlert.remove("body");
+        final String body = (String) customAlert.get("body");
+        if (body != null) {
+            final int acceptableSize = Utilities.jsonEscapedLength(body)
+                    - excess - Utilities.jsonEscapedLength(postfix);
+            if (acceptableSize >= 0) {
+                put(customAlert, "body", Utilities.truncateWhenJsonEscaped(body, acceptableSize) + postfix);
+                return this;
+            }
+            // the body isn't the cause, or the postfix is too long
+            remove(customAlert, "body");
+            excess = length() - payloadLength;
+        }
+        if (excess > 0) {
+            shrinkLocalizedArguments(excess);
         }
-
         return this;
     }
 
+    private void shrinkLocalizedArguments(int excess) {
+        final Object arguments = customAlert.get("loc-args");
+        if (!(arguments instanceof Collection)) {
+            return;
+        }
+        final List<String> shrunk = new ArrayList<String>();
+        for (final Object argument : (Collection<?>) arguments) {
+            if (!(argument instanceof String)) {
+                return;
+            }
+            shrunk.add((String) argument);
+        }
+        for (int i = shrunk.size() - 1; i >= 0 && excess > 0; i--) {
+            final String argument = shrunk.get(i);
+            final int length = Utilities.jsonEscapedLength(argument);
+            final String cut = Utilities.truncateWhenJsonEscaped(argument, Math.max(length - excess, 0));
+            excess -= length - Utilities.jsonEscapedLength(cut);
+            shrunk.set(i, cut);
+        }
+        put(customAlert, "loc-args", shrunk);
+    }
+
     /**
      * Shrinks the alert message body so that the resulting payload
      * message fits within require Apple specification (2048 bytes).
@@ -466,32 +525,16 @@ public final class PayloadBuilder {
      * @return  the String representation as expected by Apple
      */
     public String build() {
-        if (!root.containsKey("mdm")) {
-            insertCustomAlert();
-            root.put("aps", aps);
-        }
-        try {
-            return mapper.writeValueAsString(root);
-        } catch (final Exception e) {
-            throw new RuntimeException(e);
-        }
+        return encode().toString();
     }
 
-    private void insertCustomAlert() {
-        switch (customAlert.size()) {
-            case 0:
-                aps.remove("alert");
-                break;
-            case 1:
-                if (customAlert.containsKey("body")) {
-                    aps.put("alert", customAlert.get("body"));
-                    break;
-                }
-                // else follow through
-                //$FALL-THROUGH$
-            default:
-                aps.put("alert", customAlert);
-        }
+    /**
+     * Encodes the payload into the buffer of the current thread.
+     */
+    private PayloadEncoder encode() {
+        // MDM payloads have no aps dictionary
+        return PayloadEncoder.get().encode(root,
+                root.containsKey("mdm") ? null : aps, customAlert);
     }
 
     /**
@@ -501,7 +544,110 @@ public final class PayloadBuilder {
      * @return the bytes as expected by Apple
      */
     public byte[] buildBytes() {
-        return Utilities.toUTF8Bytes(build());
+        return encode().toBytes();
+    }
+
+    /**
+     * Compiles the payload built so far into a template, whose
+     * <code>${name}</code> placeholders are filled in when rendered.
+     *
+     * @return the template of the payload
+     */
+    public PayloadTemplate template() {
+        return new PayloadTemplate(this);
+    }
+
+    String getAlertBody() {
+        return (String) customAlert.get("body");
+    }
+
+    void removeAlertBody() {
+        remove(customAlert, "body");
+    }
+
+    /**
+     * Sets an entry, copying collections, maps and arrays so that the
+     * caller changing them later doesn't make the tracked length wrong.
+     */
+    private void put(final Map<String, Object> map, final String key, final Object value) {
+        remove(map, key);
+        final Object copy = copy(value);
+        map.put(key, copy);
+        if (map == root && !isMeasurable(copy)) {
+            unmeasuredFields.add(key);
+        } else {
+            addLength(map, PayloadEncoder.entryLength(key, copy));
+        }
+    }
+
+    private void remove(final Map<String, Object> map, final String key) {
+        if (!map.containsKey(key)) {
+            return;
+        }
+        final Object value = map.remove(key);
+        if (map != root || !unmeasuredFields.remove(key)) {
+            addLength(map, -PayloadEncoder.entryLength(key, value));
+        }
+    }
+
+    private static Object copy(final Object value) {
+        if (value instanceof Collection) {
+            final List<Object> copy = new ArrayList<Object>(((Collection<?>) value).size());
+            for (final Object element : (Collection<?>) value) {
+                copy.add(copy(element));
+            }
+            return copy;
+        } else if (value instanceof Object[]) {
+            return copy(Arrays.asList((Object[]) value));
+        } else if (value instanceof Map) {
+            final Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        } else if (value != null && value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            final Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if a copied value can't change once set.
+     */
+    private static boolean isMeasurable(final Object value) {
+        if (value == null || value instanceof String || value instanceof Number
+                || value instanceof Boolean || value instanceof Character
+                || value instanceof Enum || value.getClass().isArray()) {
+            return true;
+        } else if (value instanceof Collection) {
+            for (final Object element : (Collection<?>) value) {
+                if (!isMeasurable(element)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (value instanceof Map) {
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!(entry.getKey() instanceof String) || !isMeasurable(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void addLength(final Map<String, Object> map, final int delta) {
+        if (map == root) {
+            rootLength += delta;
+        } else if (map == aps) {
+            apsLength += delta;
+        } else {
+            customAlertLength += delta;
+        }
     }
 
     @Override
@@ -509,12 +655,14 @@ public final class PayloadBuilder {
         return build();
     }
 
-    private PayloadBuilder(final Map<String, Object> root,
-            final Map<String, Object> aps,
-            final Map<String, Object> customAlert) {
-        this.root = new HashMap<String, Object>(root);
-        this.aps = new HashMap<String, Object>(aps);
-        this.customAlert = new HashMap<String, Object>(customAlert);
+    private PayloadBuilder(final PayloadBuilder other) {
+        this.root = new HashMap<String, Object>(other.root);
+        this.aps = new HashMap<String, Object>(other.aps);
+        this.customAlert = new HashMap<String, Object>(other.customAlert);
+        this.rootLength = other.rootLength;
+        this.apsLength = other.apsLength;
+        this.customAlertLength = other.customAlertLength;
+        this.unmeasuredFields = new HashSet<String>(other.unmeasuredFields);
     }
 
     /**
@@ -523,7 +671,7 @@ public final class PayloadBuilder {
      * @return a copy of this builder
      */
     public PayloadBuilder copy() {
-        return new PayloadBuilder(root, aps, customAlert);
+        return new PayloadBuilder(this);
     }
 
     /**
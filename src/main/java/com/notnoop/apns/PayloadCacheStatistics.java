@@ -0,0 +1,40 @@
+package com.notnoop.apns;
+
+/**
+ * Metrics of the cache of encoded payloads of a service.
+ *
+ * The service returned by {@link ApnsServiceBuilder#build()} implements
+ * this interface; its metrics stay at zero unless the builder was
+ * configured with {@link ApnsServiceBuilder#withPayloadCache(int)}.  All
+ * the methods are cheap enough to be polled by a monitoring thread.
+ */
+public interface PayloadCacheStatistics {
+
+    /**
+     * Returns the number of payloads found in the cache.
+     */
+    long getPayloadCacheHits();
+
+    /**
+     * Returns the number of payloads encoded because they weren't in the
+     * cache.
+     */
+    long getPayloadCacheMisses();
+
+    /**
+     * Returns the ratio of the payloads found in the cache, between 0 and
+     * 1.
+     */
+    double getPayloadCacheHitRate();
+
+    /**
+     * Returns the number of payloads evicted from the cache to make room
+     * for others.
+     */
+    long getPayloadCacheEvictions();
+
+    /**
+     * Returns the number of payloads currently in the cache.
+     */
+    int getPayloadCacheSize();
+}
@@ -0,0 +1,263 @@
+package com.notnoop.apns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * A payload compiled once from a {@link PayloadBuilder}, with named
+ * placeholders filled in for each recipient.
+ *
+ * A placeholder is written <code>${name}</code> in any string of the
+ * payload, where the name is made of letters, digits, '_', '.' and '-'.
+ * The JSON of the payload is built once and split around the placeholders;
+ * rendering copies the JSON segments and writes the values escaped and
+ * encoded in UTF-8 in between, without building maps or running Jackson.
+ *
+ * <pre>
+ *   PayloadTemplate template = APNS.newPayload()
+ *           .alertBody("${name}, your order shipped").badge(1).template();
+ *   byte[] payload = template.render(Collections.singletonMap("name", "Jane"));
+ * </pre>
+ */
+public final class PayloadTemplate {
+
+    private static final String BODY = "#body";
+    private static final int BODY_SLOT = -1;
+
+    private final List<String> placeholders = new ArrayList<String>();
+
+    // the payload: literals[0] slot[0] literals[1] ... literals[n]
+    private final byte[][] literals;
+    private final int[] slots;
+    private final int literalsLength;
+
+    // the alert body, rendered unescaped for truncation, or null
+    private final String[] bodyLiterals;
+    private final int[] bodySlots;
+    private final int bodyLiteralsLength;
+    private final PayloadTemplate withoutBody;
+
+    PayloadTemplate(PayloadBuilder builder) {
+        PayloadBuilder payload = builder.copy();
+        String body = payload.getAlertBody();
+        if (body != null) {
+            payload.alertBody("${" + BODY + "}");
+        }
+
+        List<String> jsonLiterals = new ArrayList<String>();
+        List<String> jsonSlots = new ArrayList<String>();
+        split(payload.build(), jsonLiterals, jsonSlots);
+        literals = new byte[jsonLiterals.size()][];
+        int length = 0;
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = Utilities.toUTF8Bytes(jsonLiterals.get(i));
+            length += literals[i].length;
+        }
+        literalsLength = length;
+        slots = new int[jsonSlots.size()];
+        for (int i = 0; i < slots.length; i++) {
+            String name = jsonSlots.get(i);
+            slots[i] = BODY.equals(name) ? BODY_SLOT : slot(name);
+        }
+
+        if (body == null) {
+            bodyLiterals = null;
+            bodySlots = null;
+            bodyLiteralsLength = 0;
+            withoutBody = null;
+        } else {
+            List<String> texts = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            split(body, texts, names);
+            bodyLiterals = texts.toArray(new String[texts.size()]);
+            length = 0;
+            for (String text : bodyLiterals) {
+                length += Utilities.jsonEscapedLength(text);
+            }
+            bodyLiteralsLength = length;
+            bodySlots = new int[names.size()];
+            for (int i = 0; i < bodySlots.length; i++) {
+                bodySlots[i] = slot(names.get(i));
+            }
+            // the payload once the body is dropped by truncation
+            PayloadBuilder noBody = builder.copy();
+            noBody.removeAlertBody();
+            withoutBody = new PayloadTemplate(noBody);
+        }
+    }
+
+    /**
+     * Returns the names of the placeholders of the payload.
+     */
+    public List<String> getPlaceholders() {
+        return Collections.unmodifiableList(placeholders);
+    }
+
+    /**
+     * Returns the length in bytes of the payload rendered with
+     * {@code values}, without rendering it.
+     */
+    public int length(Map<String, ?> values) {
+        return length(resolve(values));
+    }
+
+    /**
+     * Renders the payload with the values of the placeholders.
+     *
+     * @throws IllegalArgumentException if a placeholder has no value
+     */
+    public byte[] render(Map<String, ?> values) {
+        String[] resolved = resolve(values);
+        return write(resolved, length(resolved), null);
+    }
+
+    /**
+     * Renders the payload with the values of the placeholders, shrinking
+     * the alert body so that the payload fits within
+     * {@code payloadLength}, like
+     * {@link PayloadBuilder#resizeAlertBody(int, String)} but without
+     * cutting the localized arguments.
+     *
+     * @param postfix for the truncated body, e.g. "..."
+     * @throws IllegalArgumentException if a placeholder has no value
+     */
+    public byte[] render(Map<String, ?> values, int payloadLength, String postfix) {
+        String[] resolved = resolve(values);
+        int length = length(resolved);
+        if (length <= payloadLength || bodyLiterals == null) {
+            return write(resolved, length, null);
+        }
+
+        int bodyLength = bodyLength(resolved);
+        int acceptableSize = bodyLength - (length - payloadLength) - Utilities.jsonEscapedLength(postfix);
+        if (acceptableSize < 0) {
+            // the body isn't the cause, or the postfix is too long
+            String[] rest = withoutBody.resolve(values);
+            return withoutBody.write(rest, withoutBody.length(rest), null);
+        }
+        String body = Utilities.truncateWhenJsonEscaped(body(resolved), acceptableSize) + postfix;
+        length = length - bodyLength + Utilities.jsonEscapedLength(body);
+        return write(resolved, length, body);
+    }
+
+    public byte[] render(Map<String, ?> values, int payloadLength) {
+        return render(values, payloadLength, "");
+    }
+
+    private String[] resolve(Map<String, ?> values) {
+        String[] resolved = new String[placeholders.size()];
+        for (int i = 0; i < resolved.length; i++) {
+            Object value = values.get(placeholders.get(i));
+            if (value == null) {
+                throw new IllegalArgumentException("No value for placeholder " + placeholders.get(i));
+            }
+            resolved[i] = value.toString();
+        }
+        return resolved;
+    }
+
+    private int length(String[] values) {
+        int length = literalsLength;
+        for (int slot : slots) {
+            length += slot == BODY_SLOT ? bodyLength(values) : Utilities.jsonEscapedLength(values[slot]);
+        }
+        return length;
+    }
+
+    private int bodyLength(String[] values) {
+        int length = bodyLiteralsLength;
+        for (int slot : bodySlots) {
+            length += Utilities.jsonEscapedLength(values[slot]);
+        }
+        return length;
+    }
+
+    private String body(String[] values) {
+        StringBuilder body = new StringBuilder(bodyLiteralsLength);
+        for (int i = 0; i < bodySlots.length; i++) {
+            body.append(bodyLiterals[i]).append(values[bodySlots[i]]);
+        }
+        return body.append(bodyLiterals[bodySlots.length]).toString();
+    }
+
+    /**
+     * Writes the payload, with {@code body} in place of the body of the
+     * template if not null.
+     */
+    private byte[] write(String[] values, int length, String body) {
+        byte[] out = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < slots.length; i++) {
+            System.arraycopy(literals[i], 0, out, offset, literals[i].length);
+            offset += literals[i].length;
+            if (slots[i] != BODY_SLOT) {
+                offset = Utilities.writeJsonEscaped(values[slots[i]], out, offset);
+            } else if (body != null) {
+                offset = Utilities.writeJsonEscaped(body, out, offset);
+            } else {
+                for (int j = 0; j < bodySlots.length; j++) {
+                    offset = Utilities.writeJsonEscaped(bodyLiterals[j], out, offset);
+                    offset = Utilities.writeJsonEscaped(values[bodySlots[j]], out, offset);
+                }
+                offset = Utilities.writeJsonEscaped(bodyLiterals[bodySlots.length], out, offset);
+            }
+        }
+        byte[] last = literals[slots.length];
+        System.arraycopy(last, 0, out, offset, last.length);
+        return out;
+    }
+
+    private int slot(String name) {
+        int slot = placeholders.indexOf(name);
+        if (slot < 0) {
+            slot = placeholders.size();
+            placeholders.add(name);
+        }
+        return slot;
+    }
+
+    /**
+     * Splits {@code s} around its placeholders, into one more text than
+     * names.
+     */
+    private static void split(String s, List<String> texts, List<String> names) {
+        int from = 0;
+        int start = from;
+        int open;
+        while ((open = s.indexOf("${", start)) >= 0) {
+            int close = s.indexOf('}', open + 2);
+            if (close < 0) {
+                break;
+            }
+            String name = s.substring(open + 2, close);
+            if (!isName(name)) {
+                start = open + 2;
+                continue;
+            }
+            texts.add(s.substring(from, open));
+            names.add(name);
+            from = start = close + 1;
+        }
+        texts.add(s.substring(from));
+    }
+
+    private static boolean isName(String name) {
+        if (name.length() == 0) {
+            return false;
+        }
+        if (BODY.equals(name)) {
+            return true;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
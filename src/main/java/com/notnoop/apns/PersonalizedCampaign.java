@@ -0,0 +1,227 @@
+package com.notnoop.apns;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.exceptions.ApnsException;
+
+/**
+ * Sends each recipient of a campaign its own notification, rendering the
+ * payloads on several threads.
+ *
+ * The recipients are read in batches on the calling thread, and every
+ * batch is rendered by a worker thread: the payload of each recipient is
+ * built, encoded, and framed into a notification, and the batch is handed
+ * to the service at once with {@link ApnsService#pushAll(List)}.  Batches
+ * complete in any order.  At most {@code maxInFlight} batches are read but
+ * not pushed yet, so the memory used doesn't depend on the number of
+ * recipients.
+ *
+ * @param <R>   the type of the recipients
+ */
+public class PersonalizedCampaign<R> {
+
+    /**
+     * Renders the notification of a recipient.  Called from several
+     * threads at once.
+     */
+    public interface Renderer<R> {
+        /**
+         * Returns the binary device token of the recipient.
+         */
+        byte[] getDeviceToken(R recipient);
+
+        /**
+         * Returns the JSON payload of the recipient, typically built with
+         * {@link PayloadBuilder}, or {@code null} to skip the recipient.
+         */
+        String getPayload(R recipient);
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final ApnsService service;
+    private final Renderer<? super R> renderer;
+    private final int threads;
+    private final int batchSize;
+    private final int maxInFlight;
+    private int expiry = ApnsNotification.MAXIMUM_EXPIRY;
+    private Priority priority = Priority.SEND_IMMEDIATELY;
+    private BulkProgress progress;
+
+    /**
+     * Constructs a campaign rendering on {@code threads} threads, with
+     * twice as many batches in flight.
+     */
+    public PersonalizedCampaign(ApnsService service, Renderer<? super R> renderer, int threads) {
+        this(service, renderer, threads, DEFAULT_BATCH_SIZE, 2 * threads);
+    }
+
+    /**
+     * @param threads       number of threads rendering the payloads
+     * @param batchSize     number of recipients rendered and pushed at once
+     * @param maxInFlight   maximum number of batches read but not pushed
+     */
+    public PersonalizedCampaign(ApnsService service, Renderer<? super R> renderer, int threads,
+            int batchSize, int maxInFlight) {
+        if (threads < 1 || batchSize < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("threads, batchSize and maxInFlight must be positive");
+        }
+        this.service = service;
+        this.renderer = renderer;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets the expiry time and priority of the notifications.
+     */
+    public PersonalizedCampaign<R> withExpiry(int expiry, Priority priority) {
+        this.expiry = expiry;
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Sets the progress counting the notifications pushed and failed; its
+     * total is set when pushing to a collection of recipients.
+     */
+    public PersonalizedCampaign<R> withProgress(BulkProgress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Renders and pushes the notifications of the recipients, returning
+     * once all are pushed.  Recipients whose rendering throws, and batches
+     * the service rejects, are counted as failed.
+     */
+    public BulkPushResult push(Iterator<? extends R> recipients) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Tally tally = new Tally();
+        try {
+            while (recipients.hasNext()) {
+                List<R> batch = new ArrayList<R>(batchSize);
+                while (batch.size() < batchSize && recipients.hasNext()) {
+                    batch.add(recipients.next());
+                }
+                inFlight.acquire();
+                executor.execute(new RenderBatch(batch, inFlight, tally));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+        try {
+            // the batches already read are pushed even if interrupted meanwhile
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return tally.result();
+    }
+
+    public BulkPushResult push(Iterable<? extends R> recipients) {
+        if (progress != null && recipients instanceof Collection) {
+            progress.setTotal(((Collection<?>) recipients).size());
+        }
+        return push(recipients.iterator());
+    }
+
+    private class RenderBatch implements Runnable {
+        private final List<R> recipients;
+        private final Semaphore inFlight;
+        private final Tally tally;
+
+        RenderBatch(List<R> recipients, Semaphore inFlight, Tally tally) {
+            this.recipients = recipients;
+            this.inFlight = inFlight;
+            this.tally = tally;
+        }
+
+        public void run() {
+            try {
+                List<ApnsNotification> notifications = new ArrayList<ApnsNotification>(recipients.size());
+                for (R recipient : recipients) {
+                    byte[] deviceToken = null;
+                    try {
+                        deviceToken = renderer.getDeviceToken(recipient);
+                        String payload = renderer.getPayload(recipient);
+                        if (payload != null) {
+                            // the payload bytes belong to this notification only
+                            notifications.add(ApnsNotification.withSharedPayload(service.newIdentifier(),
+                                    expiry, deviceToken, Utilities.toUTF8Bytes(payload), priority));
+                        }
+                    } catch (RuntimeException e) {
+                        tally.failed(deviceToken != null ? Utilities.encodeHex(deviceToken) : null, -1, e);
+                        if (progress != null) {
+                            progress.failed(1);
+                        }
+                    }
+                }
+                if (notifications.isEmpty()) {
+                    return;
+                }
+                try {
+                    service.pushAll(notifications);
+                    tally.pushed(notifications);
+                    if (progress != null) {
+                        progress.queued(notifications.size());
+                    }
+                } catch (ApnsException e) {
+                    if (progress != null) {
+                        progress.rejected(notifications.size());
+                    }
+                    for (ApnsNotification notification : notifications) {
+                        tally.failed(Utilities.encodeHex(notification.getDeviceToken()),
+                                notification.getIdentifier(), e);
+                    }
+                }
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    private static class Tally {
+        private long pushed;
+        private long failed;
+        private int firstIdentifier = -1;
+        private int lastIdentifier = -1;
+        private final List<BulkPushResult.Failure> failures = new ArrayList<BulkPushResult.Failure>();
+
+        synchronized void pushed(List<ApnsNotification> notifications) {
+            pushed += notifications.size();
+            for (ApnsNotification notification : notifications) {
+                int identifier = notification.getIdentifier();
+                if (firstIdentifier == -1 || identifier < firstIdentifier) {
+                    firstIdentifier = identifier;
+                }
+                lastIdentifier = Math.max(lastIdentifier, identifier);
+            }
+        }
+
+        synchronized void failed(String deviceToken, int identifier, Exception cause) {
+            failed++;
+            if (failures.size() < BulkPushResult.MAX_FAILURES) {
+                failures.add(new BulkPushResult.Failure(deviceToken, identifier, cause));
+            }
+        }
+
+        synchronized BulkPushResult result() {
+            return new BulkPushResult(pushed, failed, firstIdentifier, lastIdentifier,
+                    new ArrayList<BulkPushResult.Failure>(failures));
+        }
+    }
+}
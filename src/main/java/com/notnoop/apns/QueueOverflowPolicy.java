@@ -0,0 +1,35 @@
+package com.notnoop.apns;
+
+import com.notnoop.exceptions.QueueFullException;
+
+/**
+ * What a queued service does with a notification pushed while its queue is
+ * full.
+ *
+ * @see ApnsServiceBuilder#withQueueCapacity(int, QueueOverflowPolicy)
+ */
+public enum QueueOverflowPolicy {
+    /**
+     * Block the pushing thread until there is room in the queue.
+     */
+    BLOCK,
+
+    /**
+     * Block the pushing thread until there is room in the queue, or throw a
+     * {@link QueueFullException} once the offer timeout has elapsed.
+     */
+    TIMEOUT,
+
+    /**
+     * Throw a {@link QueueFullException} immediately.
+     */
+    REJECT,
+
+    /**
+     * Queue the notification, and drop the oldest queued notification to
+     * make room for it.  The dropped notification is reported to
+     * {@link ApnsDelegate#messageSendFailed(ApnsNotification, Throwable)}
+     * with a {@link QueueFullException}.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,205 @@
+package com.notnoop.apns;
+
+import java.util.concurrent.TimeUnit;
+
+import com.notnoop.exceptions.RateLimitExceededException;
+
+/**
+ * A token bucket limiting the rate at which notifications are sent, both
+ * in notifications per second and in bytes per second.
+ *
+ * The buckets hold up to one second worth of tokens, so short bursts are
+ * sent at full speed while the sustained rate stays under the limits.
+ * When the limit is reached, the limiter either blocks the sending thread
+ * until enough tokens are available, or rejects the notification with a
+ * {@link RateLimitExceededException}, depending on its {@link Mode}.
+ *
+ * A limiter is passed to {@link ApnsServiceBuilder#withRateLimit(RateLimiter)}
+ * to limit a whole service (and thus a pool, or a tenant of an
+ * {@link ApnsTenantManager}), or to
+ * {@link ApnsServiceBuilder#withConnectionRateLimit(RateLimiter)} to limit
+ * each connection separately.  The application may keep a reference to it
+ * to monitor the current rate.
+ */
+public class RateLimiter {
+
+    /**
+     * What to do with a notification when the limit is reached.
+     */
+    public enum Mode {
+        /**
+         * Block the sending thread until the notification can be sent.
+         *
+         * Combined with {@link ApnsServiceBuilder#asQueued()}, the
+         * notifications wait in the queue instead of blocking the
+         * application threads.
+         */
+        BLOCK,
+
+        /**
+         * Reject the notification with a {@link RateLimitExceededException}.
+         */
+        REJECT
+    }
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double notificationsPerSecond;
+    private final double bytesPerSecond;
+    private final Mode mode;
+    private final RateLimiter parent;
+
+    private double notificationTokens;
+    private double byteTokens;
+    private long lastRefill;
+
+    private long windowStart;
+    private long windowNotifications;
+    private long windowBytes;
+    private double notificationRate;
+    private double byteRate;
+
+    /**
+     * Constructs a new rate limiter.
+     *
+     * @param notificationsPerSecond    maximum number of notifications per
+     *                                  second, or 0 for no limit
+     * @param bytesPerSecond            maximum number of bytes per second,
+     *                                  or 0 for no limit
+     * @param mode                      whether to block or reject when the
+     *                                  limit is reached
+     */
+    public RateLimiter(double notificationsPerSecond, double bytesPerSecond, Mode mode) {
+        this(notificationsPerSecond, bytesPerSecond, mode, null);
+    }
+
+    private RateLimiter(double notificationsPerSecond, double bytesPerSecond, Mode mode, RateLimiter parent) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must be specified");
+        }
+        this.notificationsPerSecond = notificationsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.mode = mode;
+        this.parent = parent;
+        this.notificationTokens = notificationCapacity();
+        this.byteTokens = byteCapacity();
+        this.lastRefill = System.nanoTime();
+        this.windowStart = lastRefill;
+    }
+
+    /**
+     * Takes the tokens needed to send a notification of {@code bytes}
+     * bytes, blocking or rejecting it if the limit is reached.
+     *
+     * @param bytes the length of the marshalled notification
+     * @throws RateLimitExceededException if the limiter rejects the
+     *      notification, or the thread got interrupted while waiting
+     */
+    public void acquire(int bytes) throws RateLimitExceededException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                refill(now);
+                // a notification larger than the bucket passes on a full bucket
+                double neededBytes = Math.min(bytes, byteCapacity());
+                if (notificationTokens >= 1 && byteTokens >= neededBytes) {
+                    if (notificationsPerSecond > 0) {
+                        notificationTokens -= 1;
+                    }
+                    if (bytesPerSecond > 0) {
+                        byteTokens -= bytes;
+                    }
+                    record(now, bytes);
+                    return;
+                }
+                if (mode == Mode.REJECT) {
+                    throw new RateLimitExceededException("Rate limit of "
+                            + notificationsPerSecond + " notifications/s and "
+                            + bytesPerSecond + " bytes/s exceeded");
+                }
+                waitNanos = Math.max(
+                        nanosUntil(1 - notificationTokens, notificationsPerSecond),
+                        nanosUntil(neededBytes - byteTokens, bytesPerSecond));
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RateLimitExceededException("Interrupted while waiting for the rate limit", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of notifications sent per second, measured over
+     * the last complete second.
+     */
+    public synchronized double getCurrentRate() {
+        roll(System.nanoTime());
+        return notificationRate;
+    }
+
+    /**
+     * Returns the number of bytes sent per second, measured over the last
+     * complete second.
+     */
+    public synchronized double getCurrentByteRate() {
+        roll(System.nanoTime());
+        return byteRate;
+    }
+
+    /**
+     * Returns a new limiter with the same limits and its own buckets, used
+     * to limit each connection separately.  The notifications sent through
+     * the copy are included in the current rate of this limiter.
+     */
+    public RateLimiter copy() {
+        return new RateLimiter(notificationsPerSecond, bytesPerSecond, mode, this);
+    }
+
+    private void refill(long now) {
+        double elapsed = (double) (now - lastRefill) / SECOND;
+        lastRefill = now;
+        notificationTokens = Math.min(notificationCapacity(),
+                notificationTokens + elapsed * notificationsPerSecond);
+        byteTokens = Math.min(byteCapacity(), byteTokens + elapsed * bytesPerSecond);
+    }
+
+    private double notificationCapacity() {
+        return notificationsPerSecond > 0 ? Math.max(1, notificationsPerSecond) : 1;
+    }
+
+    private double byteCapacity() {
+        return bytesPerSecond > 0 ? bytesPerSecond : Double.MAX_VALUE;
+    }
+
+    private static long nanosUntil(double missing, double perSecond) {
+        if (missing <= 0 || perSecond <= 0) {
+            return 0;
+        }
+        return (long) (missing / perSecond * SECOND);
+    }
+
+    private synchronized void record(long now, int bytes) {
+        roll(now);
+        windowNotifications++;
+        windowBytes += bytes;
+        if (parent != null) {
+            parent.record(now, bytes);
+        }
+    }
+
+    private void roll(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed >= SECOND) {
+            // an idle second since the end of the last window means no traffic
+            boolean stale = elapsed >= 2 * SECOND;
+            notificationRate = stale ? 0 : windowNotifications * (double) SECOND / elapsed;
+            byteRate = stale ? 0 : windowBytes * (double) SECOND / elapsed;
+            windowStart = now;
+            windowNotifications = 0;
+            windowBytes = 0;
+        }
+    }
+}
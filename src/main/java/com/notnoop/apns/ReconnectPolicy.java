@@ -97,6 +97,20 @@ public interface ReconnectPolicy {
             }
         },
 
+        /**
+         * Makes a new connection roughly every half an hour, spreading the
+         * reconnections of pooled connections over the period.
+         * <p>
+         * This is the recommended mode for pooled connections, as it avoids
+         * all the connections of a pool reconnecting at the same time.
+         */
+        EVERY_HALF_HOUR_STAGGERED {
+            @Override
+            public ReconnectPolicy newObject() {
+                return new ReconnectPolicies.Staggered();
+            }
+        },
+
         /**
          * Makes a new connection for every message being sent.
          *
@@ -0,0 +1,29 @@
+package com.notnoop.apns;
+
+import java.util.Date;
+
+/**
+ * A notification scheduled with
+ * {@link ApnsService#push(ApnsNotification, Date)}, waiting for its
+ * delivery time.
+ */
+public interface ScheduledNotification {
+
+    /**
+     * Returns the scheduled notification.
+     */
+    ApnsNotification getNotification();
+
+    /**
+     * Returns the time at which the notification is sent.
+     */
+    Date getSendAt();
+
+    /**
+     * Cancels the delivery of the notification.
+     *
+     * @return {@code true} if the notification was cancelled, or
+     *      {@code false} if it was already sent or cancelled
+     */
+    boolean cancel();
+}
@@ -0,0 +1,46 @@
+package com.notnoop.apns;
+
+import java.util.List;
+
+/**
+ * The outcome of {@link ApnsService#stop(long, java.util.concurrent.TimeUnit)
+ * stopping a service}: the notifications sent while draining it, and those
+ * left unsent when the timeout expired.
+ */
+public class StopReport {
+    private final long sent;
+    private final List<ApnsNotification> abandoned;
+
+    public StopReport(long sent, List<ApnsNotification> abandoned) {
+        this.sent = sent;
+        this.abandoned = abandoned;
+    }
+
+    /**
+     * Returns the number of notifications sent while the service drained.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns the notifications still waiting to be sent when the timeout
+     * expired.
+     */
+    public List<ApnsNotification> getAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * Returns whether every pending notification was sent before the
+     * timeout expired.
+     */
+    public boolean isDrained() {
+        return abandoned.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "StopReport[sent=" + sent + ", abandoned=" + abandoned.size() + "]";
+    }
+}
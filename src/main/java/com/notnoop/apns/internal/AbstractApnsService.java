@@ -32,38 +32,78 @@ package com.notnoop.apns.internal;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsNotification.Priority;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.BulkPushResult;
+import com.notnoop.apns.DeviceTokenSource;
+import com.notnoop.apns.PayloadCacheStatistics;
+import com.notnoop.apns.ScheduledNotification;
+import com.notnoop.apns.StopReport;
+import com.notnoop.exceptions.ApnsException;
 import com.notnoop.exceptions.NetworkIOException;
 
-abstract class AbstractApnsService implements ApnsService {
+abstract class AbstractApnsService implements ApnsService, PayloadCacheStatistics {
+	/**
+	 * Time left to APNs to report an error on the last notifications sent
+	 * before a draining service closes its connections, in milliseconds.
+	 * Stopping waits for it, so it is much shorter than the error windows
+	 * of {@link NotificationJournal#DEFAULT_ERROR_WINDOW the journal} and of
+	 * {@link com.notnoop.apns.ApnsCampaign#DEFAULT_ERROR_WINDOW a campaign},
+	 * which only delay forgetting a notification: APNs usually reports an
+	 * error within a few hundred milliseconds.
+	 */
+	static final long ERROR_WINDOW = 1000;
+
+	/**
+	 * Number of notifications of a bulk push handed to the service at once.
+	 */
+	static final int BULK_CHUNK = 1000;
+
 	private ApnsFeedbackConnection feedback;
+	protected final ApnsDelegate delegate;
 	private AtomicInteger c = new AtomicInteger();
+	private final Object schedulerLock = new Object();
+	private NotificationScheduler scheduler;
+	private volatile PayloadCache payloadCache;
 
 	public AbstractApnsService(ApnsFeedbackConnection feedback) {
+		this(feedback, null);
+	}
+
+	/**
+	 * @param delegate  told about the notifications of a collection that
+	 *                  aren't pushed after a failure (may be null)
+	 */
+	public AbstractApnsService(ApnsFeedbackConnection feedback, ApnsDelegate delegate) {
 		this.feedback = feedback;
+		this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
 	}
 
 	public ApnsNotification push(String deviceToken, String payload)
 			throws NetworkIOException {
-		ApnsNotification notification = new ApnsNotification(
+		ApnsNotification notification = ApnsNotification.withSharedPayload(
 				c.incrementAndGet(), ApnsNotification.MAXIMUM_EXPIRY,
-				deviceToken, payload, Priority.SEND_IMMEDIATELY);
+				Utilities.decodeHex(deviceToken), encodePayload(payload),
+				Priority.SEND_IMMEDIATELY);
 		push(notification);
 		return notification;
 	}
 
 	public ApnsNotification push(String deviceToken, String payload,
 			Date expiry, Priority priority) throws NetworkIOException {
-		ApnsNotification notification = new ApnsNotification(
+		ApnsNotification notification = ApnsNotification.withSharedPayload(
 				c.incrementAndGet(), (int) (expiry.getTime() / 1000),
-				deviceToken, payload, priority);
+				Utilities.decodeHex(deviceToken), encodePayload(payload), priority);
 		push(notification);
 		return notification;
 	}
@@ -87,34 +127,34 @@ abstract class AbstractApnsService implements ApnsService {
 
 	public Collection<ApnsNotification> push(Collection<String> deviceTokens,
 			String payload) throws NetworkIOException {
-		byte[] messageBytes = Utilities.toUTF8Bytes(payload);
+		byte[] messageBytes = encodePayload(payload);
 		List<ApnsNotification> notifications = new ArrayList<ApnsNotification>(
 				deviceTokens.size());
 		for (String deviceToken : deviceTokens) {
 			byte[] dtBytes = Utilities.decodeHex(deviceToken);
-			ApnsNotification notification = new ApnsNotification(
+			ApnsNotification notification = ApnsNotification.withSharedPayload(
 					c.incrementAndGet(), ApnsNotification.MAXIMUM_EXPIRY,
 					dtBytes, messageBytes, Priority.SEND_IMMEDIATELY);
 			notifications.add(notification);
-			push(notification);
 		}
+		pushNotifications(notifications);
 		return notifications;
 	}
 
 	public Collection<ApnsNotification> push(Collection<String> deviceTokens,
 			String payload, Date expiry, Priority priority)
 			throws NetworkIOException {
-		byte[] messageBytes = Utilities.toUTF8Bytes(payload);
+		byte[] messageBytes = encodePayload(payload);
 		List<ApnsNotification> notifications = new ArrayList<ApnsNotification>(
 				deviceTokens.size());
 		for (String deviceToken : deviceTokens) {
 			byte[] dtBytes = Utilities.decodeHex(deviceToken);
-			ApnsNotification notification = new ApnsNotification(
+			ApnsNotification notification = ApnsNotification.withSharedPayload(
 					c.incrementAndGet(), (int) (expiry.getTime() / 1000),
 					dtBytes, messageBytes, priority);
 			notifications.add(notification);
-			push(notification);
 		}
+		pushNotifications(notifications);
 		return notifications;
 	}
 
@@ -127,8 +167,8 @@ abstract class AbstractApnsService implements ApnsService {
 					c.incrementAndGet(), ApnsNotification.MAXIMUM_EXPIRY,
 					deviceToken, payload, Priority.SEND_IMMEDIATELY);
 			notifications.add(notification);
-			push(notification);
 		}
+		pushNotifications(notifications);
 		return notifications;
 	}
 
@@ -141,15 +181,301 @@ abstract class AbstractApnsService implements ApnsService {
 			ApnsNotification notification = new ApnsNotification(
 					c.incrementAndGet(), expiry, deviceToken, payload, priority);
 			notifications.add(notification);
-			push(notification);
 		}
+		pushNotifications(notifications);
 		return notifications;
 	}
 
+	public BulkPushResult pushAll(Iterator<String> deviceTokens, String payload) {
+		return pushAll(deviceTokens, payload, ApnsNotification.MAXIMUM_EXPIRY,
+				Priority.SEND_IMMEDIATELY);
+	}
+
+	public BulkPushResult pushAll(Iterator<String> deviceTokens, String payload,
+			Date expiry, Priority priority) {
+		return pushAll(deviceTokens, payload, (int) (expiry.getTime() / 1000), priority);
+	}
+
+	public BulkPushResult pushAll(Iterable<String> deviceTokens, String payload) {
+		return pushAll(deviceTokens.iterator(), payload);
+	}
+
+	public BulkPushResult pushAll(Iterable<String> deviceTokens, String payload,
+			Date expiry, Priority priority) {
+		return pushAll(deviceTokens.iterator(), payload, expiry, priority);
+	}
+
+	private BulkPushResult pushAll(Iterator<String> deviceTokens, String payload,
+			int expiry, Priority priority) {
+		BulkPush bulk = new BulkPush(encodePayload(payload), expiry, priority);
+		while (deviceTokens.hasNext()) {
+			String deviceToken = deviceTokens.next();
+			byte[] dtBytes;
+			try {
+				dtBytes = Utilities.decodeHex(deviceToken);
+			} catch (RuntimeException e) {
+				bulk.failed(deviceToken, -1, e);
+				continue;
+			}
+			bulk.add(dtBytes);
+		}
+		return bulk.finish();
+	}
+
+	public BulkPushResult pushAll(Iterator<byte[]> deviceTokens, byte[] payload) {
+		return pushAll(deviceTokens, payload, ApnsNotification.MAXIMUM_EXPIRY,
+				Priority.SEND_IMMEDIATELY);
+	}
+
+	public BulkPushResult pushAll(Iterator<byte[]> deviceTokens, byte[] payload,
+			int expiry, Priority priority) {
+		BulkPush bulk = new BulkPush(payload, expiry, priority);
+		while (deviceTokens.hasNext()) {
+			bulk.add(deviceTokens.next());
+		}
+		return bulk.finish();
+	}
+
+	public BulkPushResult pushAll(Iterable<byte[]> deviceTokens, byte[] payload) {
+		return pushAll(deviceTokens.iterator(), payload);
+	}
+
+	public BulkPushResult pushAll(Iterable<byte[]> deviceTokens, byte[] payload,
+			int expiry, Priority priority) {
+		return pushAll(deviceTokens.iterator(), payload, expiry, priority);
+	}
+
+	public BulkPushResult pushAll(DeviceTokenSource deviceTokens, byte[] payload) {
+		return pushAll(deviceTokens, payload, ApnsNotification.MAXIMUM_EXPIRY,
+				Priority.SEND_IMMEDIATELY);
+	}
+
+	public BulkPushResult pushAll(DeviceTokenSource deviceTokens, byte[] payload,
+			int expiry, Priority priority) {
+		BulkPush bulk = new BulkPush(payload, expiry, priority);
+		byte[] deviceToken;
+		while ((deviceToken = deviceTokens.nextToken()) != null) {
+			bulk.add(deviceToken);
+		}
+		return bulk.finish();
+	}
+
+	public void pushAll(List<ApnsNotification> messages) throws NetworkIOException {
+		pushNotifications(messages);
+	}
+
+	public int newIdentifier() {
+		return c.incrementAndGet();
+	}
+
+	/**
+	 * Makes the identifiers given from now on follow {@code identifier},
+	 * so that they don't collide with the identifier of a notification
+	 * replayed from a journal.
+	 */
+	void skipIdentifier(int identifier) {
+		while (true) {
+			int current = c.get();
+			if (current >= identifier || c.compareAndSet(current, identifier)) {
+				return;
+			}
+		}
+	}
+
 	public abstract void push(ApnsNotification message)
 			throws NetworkIOException;
 
+	public ScheduledNotification push(ApnsNotification message, Date sendAt)
+			throws NetworkIOException {
+		NotificationScheduler s;
+		synchronized (schedulerLock) {
+			if (scheduler == null) {
+				new NotificationScheduler(NotificationScheduler.DEFAULT_TICK, null).attach(this);
+			}
+			s = scheduler;
+		}
+		return s.schedule(message, sendAt);
+	}
+
+	void setPayloadCache(PayloadCache payloadCache) {
+		this.payloadCache = payloadCache;
+	}
+
+	/**
+	 * Returns the UTF-8 encoding of the payload, shared with the other
+	 * notifications of the same payload when the service has a cache.
+	 */
+	private byte[] encodePayload(String payload) {
+		PayloadCache cache = payloadCache;
+		return cache == null ? Utilities.toUTF8Bytes(payload) : cache.encode(payload);
+	}
+
+	public long getPayloadCacheHits() {
+		PayloadCache cache = payloadCache;
+		return cache == null ? 0 : cache.getPayloadCacheHits();
+	}
+
+	public long getPayloadCacheMisses() {
+		PayloadCache cache = payloadCache;
+		return cache == null ? 0 : cache.getPayloadCacheMisses();
+	}
+
+	public double getPayloadCacheHitRate() {
+		PayloadCache cache = payloadCache;
+		return cache == null ? 0 : cache.getPayloadCacheHitRate();
+	}
+
+	public long getPayloadCacheEvictions() {
+		PayloadCache cache = payloadCache;
+		return cache == null ? 0 : cache.getPayloadCacheEvictions();
+	}
+
+	public int getPayloadCacheSize() {
+		PayloadCache cache = payloadCache;
+		return cache == null ? 0 : cache.getPayloadCacheSize();
+	}
+
+	void setScheduler(NotificationScheduler scheduler) {
+		synchronized (schedulerLock) {
+			this.scheduler = scheduler;
+		}
+	}
+
+	/**
+	 * Stops the scheduler of the notifications pushed for a later
+	 * delivery, if any.
+	 */
+	protected void stopScheduler() {
+		NotificationScheduler s;
+		synchronized (schedulerLock) {
+			s = scheduler;
+			scheduler = null;
+		}
+		if (s != null) {
+			s.stop();
+		}
+	}
+
+	public StopReport stop(long timeout, TimeUnit unit) {
+		stop();
+		return new StopReport(0, Collections.<ApnsNotification>emptyList());
+	}
+
+	/**
+	 * Sleeps for the {@link #ERROR_WINDOW error window}, or until
+	 * {@code deadline} (in {@link System#nanoTime()}) if sooner, so that
+	 * the connections may resend the notifications following a failed one.
+	 */
+	static void awaitErrorWindow(long deadline) {
+		long remaining = Math.min(TimeUnit.MILLISECONDS.toNanos(ERROR_WINDOW),
+				deadline - System.nanoTime());
+		if (remaining > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Pushes the notifications created for a collection of devices.
+	 * Services able to enqueue them at once override this method.  When
+	 * pushing fails partway, the exception tells how many notifications
+	 * were {@link ApnsException#getAccepted() accepted} before.
+	 */
+	protected void pushNotifications(List<ApnsNotification> notifications)
+			throws NetworkIOException {
+		for (int i = 0; i < notifications.size(); i++) {
+			try {
+				push(notifications.get(i));
+			} catch (ApnsException e) {
+				e.setAccepted(i);
+				rejected(notifications, i + 1, e);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Reports the notifications of a collection from index {@code from}
+	 * on, which aren't pushed after a failure, to the delegate.
+	 */
+	void rejected(List<ApnsNotification> notifications, int from, ApnsException e) {
+		for (ApnsNotification notification : notifications.subList(from, notifications.size())) {
+			delegate.messageSendFailed(notification, e);
+		}
+	}
+
 	public Map<String, Date> getInactiveDevices() throws NetworkIOException {
 		return feedback.getInactiveDevices();
 	}
+
+	/**
+	 * Pushes the notifications of a bulk push by chunks, keeping only the
+	 * counts and the first failures.
+	 */
+	private class BulkPush {
+		private final byte[] payload;
+		private final int expiry;
+		private final Priority priority;
+		private List<ApnsNotification> chunk = new ArrayList<ApnsNotification>(BULK_CHUNK);
+		private long pushed;
+		private long failed;
+		private int firstIdentifier = -1;
+		private int lastIdentifier = -1;
+		private final List<BulkPushResult.Failure> failures = new ArrayList<BulkPushResult.Failure>();
+
+		BulkPush(byte[] payload, int expiry, Priority priority) {
+			// copied once, and shared by the notifications
+			this.payload = Utilities.copyOf(payload);
+			this.expiry = expiry;
+			this.priority = priority;
+		}
+
+		void add(byte[] deviceToken) {
+			ApnsNotification notification = ApnsNotification.withSharedPayload(
+					c.incrementAndGet(), expiry, deviceToken, payload, priority);
+			if (firstIdentifier == -1) {
+				firstIdentifier = notification.getIdentifier();
+			}
+			lastIdentifier = notification.getIdentifier();
+			chunk.add(notification);
+			if (chunk.size() == BULK_CHUNK) {
+				flush();
+			}
+		}
+
+		void failed(String deviceToken, int identifier, Exception cause) {
+			failed++;
+			if (failures.size() < BulkPushResult.MAX_FAILURES) {
+				failures.add(new BulkPushResult.Failure(deviceToken, identifier, cause));
+			}
+		}
+
+		private void flush() {
+			if (chunk.isEmpty()) {
+				return;
+			}
+			List<ApnsNotification> notifications = chunk;
+			chunk = new ArrayList<ApnsNotification>(BULK_CHUNK);
+			try {
+				pushNotifications(notifications);
+				pushed += notifications.size();
+			} catch (ApnsException e) {
+				// only the notifications the service didn't take failed
+				int accepted = Math.min(e.getAccepted(), notifications.size());
+				pushed += accepted;
+				for (ApnsNotification notification : notifications.subList(accepted, notifications.size())) {
+					failed(Utilities.encodeHex(notification.getDeviceToken()),
+							notification.getIdentifier(), e);
+				}
+			}
+		}
+
+		BulkPushResult finish() {
+			flush();
+			return new BulkPushResult(pushed, failed, firstIdentifier, lastIdentifier, failures);
+		}
+	}
 }
@@ -31,6 +31,7 @@
 package com.notnoop.apns.internal;
 
 import java.io.Closeable;
+import java.util.Collection;
 
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.exceptions.NetworkIOException;
@@ -42,6 +43,10 @@ public interface ApnsConnection extends Closeable {
 
     void sendMessage(ApnsNotification m) throws NetworkIOException;
 
+    // Sends the notifications in order, writing them to the socket by batches
+    // of at most the cache length
+    void sendMessages(Collection<ApnsNotification> messages) throws NetworkIOException;
+
     void testConnection() throws NetworkIOException;
 
     ApnsConnection copy();
@@ -36,20 +36,29 @@ import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Socket;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.CircuitBreaker;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsNotification.Priority;
 import com.notnoop.apns.DeliveryError;
@@ -77,9 +86,17 @@ public class ApnsConnectionImpl implements ApnsConnection {
 	private final boolean errorDetection;
 	private final ThreadFactory threadFactory;
 	private final boolean autoAdjustCacheLength;
+	private final CircuitBreaker circuitBreaker;
 	private final ConcurrentLinkedQueue<ApnsNotification> cachedNotifications,
 			notificationsBuffer;
 	private Socket socket;
+	// Sockets whose monitoring thread hasn't finished yet, guarded by this
+	private final Set<Socket> monitoredSockets = new HashSet<Socket>();
+	// Notifications of the batch being written that no error response has
+	// accounted for yet
+	private final Set<ApnsNotification> unconfirmed = Collections
+			.synchronizedSet(Collections
+					.newSetFromMap(new IdentityHashMap<ApnsNotification, Boolean>()));
 	private final AtomicInteger threadId = new AtomicInteger(0);
 
 	public ApnsConnectionImpl(SocketFactory factory, String host, int port) {
@@ -105,6 +122,17 @@ public class ApnsConnectionImpl implements ApnsConnection {
 			ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
 			boolean errorDetection, ThreadFactory tf, int cacheLength,
 			boolean autoAdjustCacheLength, int readTimeout, int connectTimeout) {
+		this(factory, host, port, proxy, proxyUsername, proxyPassword,
+				reconnectPolicy, delegate, errorDetection, tf, cacheLength,
+				autoAdjustCacheLength, readTimeout, connectTimeout, null);
+	}
+
+	public ApnsConnectionImpl(SocketFactory factory, String host, int port,
+			Proxy proxy, String proxyUsername, String proxyPassword,
+			ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
+			boolean errorDetection, ThreadFactory tf, int cacheLength,
+			boolean autoAdjustCacheLength, int readTimeout, int connectTimeout,
+			CircuitBreaker circuitBreaker) {
 		this.factory = factory;
 		this.host = host;
 		this.port = port;
@@ -119,6 +147,7 @@ public class ApnsConnectionImpl implements ApnsConnection {
 		this.connectTimeout = connectTimeout;
 		this.proxyUsername = proxyUsername;
 		this.proxyPassword = proxyPassword;
+		this.circuitBreaker = circuitBreaker;
 		cachedNotifications = new ConcurrentLinkedQueue<ApnsNotification>();
 		notificationsBuffer = new ConcurrentLinkedQueue<ApnsNotification>();
 	}
@@ -187,6 +216,7 @@ public class ApnsConnectionImpl implements ApnsConnection {
 
 						while (!cachedNotifications.isEmpty()) {
 							notification = cachedNotifications.poll();
+							unconfirmed.remove(notification);
 							logger.debug(
 									"Candidate for removal, message id {}",
 									notification.getIdentifier());
@@ -226,6 +256,7 @@ public class ApnsConnectionImpl implements ApnsConnection {
 							resendSize++;
 							final ApnsNotification resendNotification = cachedNotifications
 									.poll();
+							unconfirmed.remove(resendNotification);
 							logger.debug("Queuing for resend {}",
 									resendNotification.getIdentifier());
 							notificationsBuffer.add(resendNotification);
@@ -245,8 +276,17 @@ public class ApnsConnectionImpl implements ApnsConnection {
 					logger.info("Exception while waiting for error code", e);
 					delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
 				} finally {
-					close();
-					drainBuffer();
+					// Close under the connection lock, so that no thread is
+					// writing to the socket meanwhile.  A socket retired by a
+					// reconnection leaves its replacement alone.
+					synchronized (ApnsConnectionImpl.this) {
+						Utilities.close(socket);
+						if (ApnsConnectionImpl.this.socket == socket) {
+							drainBuffer();
+						}
+						monitoredSockets.remove(socket);
+						ApnsConnectionImpl.this.notifyAll();
+					}
 				}
 			}
 
@@ -291,50 +331,15 @@ public class ApnsConnectionImpl implements ApnsConnection {
 
 	private synchronized Socket getOrCreateSocket(boolean resend)
 			throws NetworkIOException {
-		if (reconnectPolicy.shouldReconnect()) {
+		if (socket != null && !socket.isClosed()
+				&& reconnectPolicy.shouldReconnect()) {
 			logger.debug("Reconnecting due to reconnectPolicy dictating it");
-			Utilities.close(socket);
-			socket = null;
+			replaceSocket();
 		}
 
 		if (socket == null || socket.isClosed()) {
 			try {
-				if (proxy == null) {
-					socket = factory.createSocket(host, port);
-					logger.debug("Connected new socket {}", socket);
-				} else if (proxy.type() == Proxy.Type.HTTP) {
-					TlsTunnelBuilder tunnelBuilder = new TlsTunnelBuilder();
-					socket = tunnelBuilder.build((SSLSocketFactory) factory,
-							proxy, proxyUsername, proxyPassword, host, port);
-					logger.debug("Connected new socket through http tunnel {}",
-							socket);
-				} else {
-					boolean success = false;
-					Socket proxySocket = null;
-					try {
-						proxySocket = new Socket(proxy);
-						proxySocket.connect(new InetSocketAddress(host, port),
-								connectTimeout);
-						socket = ((SSLSocketFactory) factory).createSocket(
-								proxySocket, host, port, false);
-						success = true;
-					} finally {
-						if (!success) {
-							Utilities.close(proxySocket);
-						}
-					}
-					logger.debug(
-							"Connected new socket through socks tunnel {}",
-							socket);
-				}
-
-				socket.setSoTimeout(readTimeout);
-				socket.setKeepAlive(true);
-
-				if (errorDetection) {
-					monitorSocket(socket);
-				}
-
+				socket = newSocket();
 				reconnectPolicy.reconnected();
 				logger.debug("Made a new connection to APNS");
 			} catch (IOException e) {
@@ -346,13 +351,256 @@ public class ApnsConnectionImpl implements ApnsConnection {
 		return socket;
 	}
 
+	/**
+	 * Opens and handshakes the replacement socket before retiring the current
+	 * one, so that a policy driven reconnection never leaves the connection
+	 * without a usable socket.  If the replacement cannot be opened, the
+	 * current socket is kept.
+	 */
+	private synchronized void replaceSocket() {
+		Socket replacement = null;
+		try {
+			replacement = newSocket();
+			if (replacement instanceof SSLSocket) {
+				((SSLSocket) replacement).startHandshake();
+			}
+		} catch (IOException e) {
+			logger.warn("Couldn't open replacement connection, keeping the current one", e);
+			Utilities.close(replacement);
+			return;
+		}
+		Socket retired = socket;
+		socket = replacement;
+		reconnectPolicy.reconnected();
+		logger.debug("Replaced socket {} with {}", retired, replacement);
+		Utilities.close(retired);
+	}
+
+	private Socket newSocket() throws IOException {
+		Socket newSocket;
+		if (proxy == null) {
+			newSocket = factory.createSocket(host, port);
+			logger.debug("Connected new socket {}", newSocket);
+		} else if (proxy.type() == Proxy.Type.HTTP) {
+			TlsTunnelBuilder tunnelBuilder = new TlsTunnelBuilder();
+			newSocket = tunnelBuilder.build((SSLSocketFactory) factory,
+					proxy, proxyUsername, proxyPassword, host, port);
+			logger.debug("Connected new socket through http tunnel {}",
+					newSocket);
+		} else {
+			boolean success = false;
+			Socket proxySocket = null;
+			try {
+				proxySocket = new Socket(proxy);
+				proxySocket.connect(new InetSocketAddress(host, port),
+						connectTimeout);
+				newSocket = ((SSLSocketFactory) factory).createSocket(
+						proxySocket, host, port, false);
+				success = true;
+			} finally {
+				if (!success) {
+					Utilities.close(proxySocket);
+				}
+			}
+			logger.debug(
+					"Connected new socket through socks tunnel {}",
+					newSocket);
+		}
+
+		newSocket.setSoTimeout(readTimeout);
+		newSocket.setKeepAlive(true);
+
+		if (errorDetection) {
+			monitoredSockets.add(newSocket);
+			monitorSocket(newSocket);
+		}
+		return newSocket;
+	}
+
 	int DELAY_IN_MS = 1000;
 	private static final int RETRIES = 3;
+	// How long a failed batch write waits for the error response
+	int ERROR_RESPONSE_WAIT_IN_MS = 500;
+
+	public void sendMessage(ApnsNotification m) throws NetworkIOException {
+		rejectIfCircuitOpen(Collections.singleton(m));
+		synchronized (this) {
+			sendMessage(m, false);
+			drainBuffer();
+		}
+	}
 
-	public synchronized void sendMessage(ApnsNotification m)
+	/**
+	 * Writes the notifications to the socket by batches of at most the cache
+	 * length, each of them at once.  If a write fails, the monitoring thread
+	 * resends the notifications from the bad one on; only those no error
+	 * response accounts for are sent again one by one, with the usual
+	 * retries.
+	 */
+	public void sendMessages(Collection<ApnsNotification> messages)
 			throws NetworkIOException {
-		sendMessage(m, false);
-		drainBuffer();
+		rejectIfCircuitOpen(messages);
+		synchronized (this) {
+			sendMessages(messages, false);
+			drainBuffer();
+		}
+	}
+
+	// Fail fast without waiting for the lock held by a sending thread
+	private void rejectIfCircuitOpen(Collection<ApnsNotification> messages)
+			throws NetworkIOException {
+		if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+			NetworkIOException e = new NetworkIOException(
+					"Circuit breaker open, retrying in "
+							+ circuitBreaker.getRetryDelay() + " ms");
+			for (ApnsNotification m : messages) {
+				delegate.messageSendFailed(m, e);
+			}
+			throw e;
+		}
+	}
+
+	private synchronized void sendMessages(Collection<ApnsNotification> messages,
+			boolean fromBuffer) throws NetworkIOException {
+		logger.debug("sendMessages {} notifications fromBuffer: {}",
+				messages.size(), fromBuffer);
+
+		// Every notification of a batch stays cached until the error
+		// response for it may have arrived
+		int batchSize = Math.max(1, cacheLength);
+		List<ApnsNotification> batch = new ArrayList<ApnsNotification>(
+				Math.min(batchSize, messages.size()));
+		int sent = 0;
+		try {
+			for (ApnsNotification m : messages) {
+				batch.add(m);
+				if (batch.size() == batchSize) {
+					sendBatch(batch, fromBuffer);
+					sent += batch.size();
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				sendBatch(batch, fromBuffer);
+			}
+		} catch (NetworkIOException e) {
+			e.setAccepted(sent + e.getAccepted());
+			// the failed batch is reported, not the notifications after it
+			int i = 0;
+			for (ApnsNotification m : messages) {
+				if (i++ >= sent + batch.size()) {
+					delegate.messageSendFailed(m, e);
+				}
+			}
+			throw e;
+		}
+	}
+
+	private synchronized void sendBatch(List<ApnsNotification> batch,
+			boolean fromBuffer) throws NetworkIOException {
+		int length = 0;
+		for (ApnsNotification m : batch) {
+			if (delegate instanceof StartSendingApnsDelegate) {
+				((StartSendingApnsDelegate) delegate).startSending(m, fromBuffer);
+			}
+			length += m.length();
+		}
+		byte[] frames = new byte[length];
+		int offset = 0;
+		for (ApnsNotification m : batch) {
+			byte[] frame = m.marshall();
+			System.arraycopy(frame, 0, frames, offset, frame.length);
+			offset += frame.length;
+		}
+
+		Socket socket;
+		try {
+			socket = getOrCreateSocket(fromBuffer);
+		} catch (NetworkIOException e) {
+			// couldn't connect at all
+			if (circuitBreaker != null) {
+				circuitBreaker.recordFailure();
+			}
+			for (ApnsNotification m : batch) {
+				delegate.messageSendFailed(m, e);
+			}
+			throw e;
+		}
+
+		// Cached before the write, so that an error response arriving while
+		// writing finds the bad notification and the ones after it
+		unconfirmed.addAll(batch);
+		for (ApnsNotification m : batch) {
+			cacheNotification(m);
+		}
+		try {
+			socket.getOutputStream().write(frames);
+			socket.getOutputStream().flush();
+		} catch (IOException e) {
+			logger.info("Failed to send " + batch.size()
+					+ " notifications at once", e);
+			awaitErrorResponse(socket);
+			List<ApnsNotification> unsent = new ArrayList<ApnsNotification>();
+			for (ApnsNotification m : batch) {
+				if (unconfirmed.remove(m)) {
+					cachedNotifications.remove(m);
+					unsent.add(m);
+				} else {
+					delegate.messageSent(m, fromBuffer);
+				}
+			}
+			logger.info("Sending {} notifications one by one", unsent.size());
+			int accepted = batch.size() - unsent.size();
+			for (int i = 0; i < unsent.size(); i++) {
+				try {
+					deliver(unsent.get(i), fromBuffer);
+				} catch (NetworkIOException ne) {
+					ne.setAccepted(accepted + i);
+					for (ApnsNotification m : unsent.subList(i + 1, unsent.size())) {
+						delegate.messageSendFailed(m, ne);
+					}
+					throw ne;
+				}
+			}
+			return;
+		}
+		unconfirmed.clear();
+
+		if (circuitBreaker != null) {
+			circuitBreaker.recordSuccess();
+		}
+		for (ApnsNotification m : batch) {
+			delegate.messageSent(m, fromBuffer);
+		}
+	}
+
+	/**
+	 * Gives the monitoring thread of a socket that failed a write the time
+	 * to read the error response, if any, then closes the socket and waits
+	 * for the thread to finish, so that the notifications the response
+	 * accounts for are known.
+	 */
+	private synchronized void awaitErrorResponse(Socket socket) {
+		long deadline = System.currentTimeMillis() + ERROR_RESPONSE_WAIT_IN_MS;
+		boolean closed = false;
+		try {
+			while (monitoredSockets.contains(socket)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining > 0) {
+					wait(remaining);
+				} else if (!closed) {
+					Utilities.close(socket);
+					closed = true;
+					deadline = System.currentTimeMillis() + ERROR_RESPONSE_WAIT_IN_MS;
+				} else {
+					logger.warn("Monitoring thread of {} didn't finish", socket);
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Utilities.close(socket);
 	}
 
 	private synchronized void sendMessage(ApnsNotification m, boolean fromBuffer)
@@ -362,7 +610,11 @@ public class ApnsConnectionImpl implements ApnsConnection {
 		if (delegate instanceof StartSendingApnsDelegate) {
 			((StartSendingApnsDelegate) delegate).startSending(m, fromBuffer);
 		}
+		deliver(m, fromBuffer);
+	}
 
+	private synchronized void deliver(ApnsNotification m, boolean fromBuffer)
+			throws NetworkIOException {
 		int attempts = 0;
 		while (true) {
 			try {
@@ -372,15 +624,29 @@ public class ApnsConnectionImpl implements ApnsConnection {
 				socket.getOutputStream().flush();
 				cacheNotification(m);
 
+				if (circuitBreaker != null) {
+					circuitBreaker.recordSuccess();
+				}
 				delegate.messageSent(m, fromBuffer);
 
 				// logger.debug("Message \"{}\" sent", m);
 				attempts = 0;
 				break;
+			} catch (NetworkIOException e) {
+				// couldn't connect at all
+				if (circuitBreaker != null) {
+					circuitBreaker.recordFailure();
+				}
+				throw e;
 			} catch (IOException e) {
 				Utilities.close(socket);
-				if (attempts >= RETRIES) {
-					logger.error("Couldn't send message after " + RETRIES
+				boolean open = false;
+				if (circuitBreaker != null && attempts != 1) {
+					circuitBreaker.recordFailure();
+					open = !circuitBreaker.allowRequest();
+				}
+				if (attempts >= RETRIES || open) {
+					logger.error("Couldn't send message after " + attempts
 							+ " retries." + m, e);
 					delegate.messageSendFailed(m, e);
 					Utilities.wrapAndThrowAsRuntimeException(e);
@@ -393,11 +659,15 @@ public class ApnsConnectionImpl implements ApnsConnection {
 				// Additionally we don't want to spam the log file in this case,
 				// only after the second retry
 				// which uses the delay.
+				//
+				// With a circuit breaker, the delay is jittered, so that many
+				// clients don't retry at the same time.
 
 				if (attempts != 1) {
 					logger.info("Failed to send message " + m
 							+ "... trying again after delay", e);
-					Utilities.sleep(DELAY_IN_MS);
+					Utilities.sleep(circuitBreaker == null ? DELAY_IN_MS
+							: circuitBreaker.nextRetryDelay());
 				}
 			}
 		}
@@ -430,7 +700,8 @@ public class ApnsConnectionImpl implements ApnsConnection {
 		return new ApnsConnectionImpl(factory, host, port, proxy,
 				proxyUsername, proxyPassword, reconnectPolicy.copy(), delegate,
 				errorDetection, threadFactory, cacheLength,
-				autoAdjustCacheLength, readTimeout, connectTimeout);
+				autoAdjustCacheLength, readTimeout, connectTimeout,
+				circuitBreaker);
 	}
 
 	public void testConnection() throws NetworkIOException {
@@ -41,6 +41,7 @@ import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.notnoop.apns.CircuitBreaker;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsFeedbackConnection {
@@ -54,6 +55,7 @@ public class ApnsFeedbackConnection {
     private final int connectTimeout;
     private final String proxyUsername;
     private final String proxyPassword;
+    private final CircuitBreaker circuitBreaker;
 
     public ApnsFeedbackConnection(final SocketFactory factory, final String host, final int port) {
         this(factory, host, port, null, 0, 0, null, null);
@@ -61,6 +63,12 @@ public class ApnsFeedbackConnection {
 
     public ApnsFeedbackConnection(final SocketFactory factory, final String host, final int port,
             final Proxy proxy, int readTimeout, int connectTimeout, final String proxyUsername, final String proxyPassword) {
+        this(factory, host, port, proxy, readTimeout, connectTimeout, proxyUsername, proxyPassword, null);
+    }
+
+    public ApnsFeedbackConnection(final SocketFactory factory, final String host, final int port,
+            final Proxy proxy, int readTimeout, int connectTimeout, final String proxyUsername, final String proxyPassword,
+            final CircuitBreaker circuitBreaker) {
         this.factory = factory;
         this.host = host;
         this.port = port;
@@ -69,27 +77,40 @@ public class ApnsFeedbackConnection {
         this.connectTimeout = connectTimeout;
         this.proxyUsername = proxyUsername;
         this.proxyPassword = proxyPassword;
+        this.circuitBreaker = circuitBreaker;
     }
 
     int DELAY_IN_MS = 1000;
     private static final int RETRIES = 3;
 
     public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new NetworkIOException("Circuit breaker open, retrying in "
+                    + circuitBreaker.getRetryDelay() + " ms");
+        }
         int attempts = 0;
         while (true) {
             try {
                 attempts++;
                 final Map<String, Date> result = getInactiveDevicesImpl();
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordSuccess();
+                }
 
                 attempts = 0;
                 return result;
             } catch (final Exception e) {
                 logger.warn("Failed to retrieve invalid devices", e);
-                if (attempts >= RETRIES) {
+                boolean open = false;
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordFailure();
+                    open = !circuitBreaker.allowRequest();
+                }
+                if (attempts >= RETRIES || open) {
                     logger.error("Couldn't get feedback connection", e);
                     Utilities.wrapAndThrowAsRuntimeException(e);
                 }
-                Utilities.sleep(DELAY_IN_MS);
+                Utilities.sleep(circuitBreaker == null ? DELAY_IN_MS : circuitBreaker.nextRetryDelay());
             }
         }
     }
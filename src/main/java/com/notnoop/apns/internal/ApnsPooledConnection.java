@@ -1,7 +1,9 @@
 package com.notnoop.apns.internal;
 
+import java.util.Collection;
 import java.util.concurrent.*;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.exceptions.ApnsException;
 import com.notnoop.exceptions.NetworkIOException;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.slf4j.Logger;
@@ -38,19 +40,32 @@ public class ApnsPooledConnection implements ApnsConnection {
     };
 
     public void sendMessage(final ApnsNotification m) throws NetworkIOException {
-        Future<Void> future = executors.submit(new Callable<Void>() {
+        await(executors.submit(new Callable<Void>() {
             public Void call() throws Exception {
                 uniquePrototype.get().sendMessage(m);
                 return null;
             }
-        });
+        }));
+    }
+
+    public void sendMessages(final Collection<ApnsNotification> messages) throws NetworkIOException {
+        // a single task, so that the batch is written to one connection
+        await(executors.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                uniquePrototype.get().sendMessages(messages);
+                return null;
+            }
+        }));
+    }
+
+    private void await(Future<Void> future) {
         try {
             future.get();
         } catch (InterruptedException ie) {
             Thread.currentThread().interrupt();
         } catch (ExecutionException ee) {
-            if (ee.getCause() instanceof NetworkIOException) {
-                throw (NetworkIOException) ee.getCause();
+            if (ee.getCause() instanceof ApnsException) {
+                throw (ApnsException) ee.getCause();
             }
         }
     }
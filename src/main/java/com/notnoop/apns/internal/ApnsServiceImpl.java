@@ -30,14 +30,23 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.List;
+
+import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.exceptions.ApnsException;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsServiceImpl extends AbstractApnsService {
     private ApnsConnection connection;
 
     public ApnsServiceImpl(ApnsConnection connection, ApnsFeedbackConnection feedback) {
-        super(feedback);
+        this(connection, feedback, null);
+    }
+
+    public ApnsServiceImpl(ApnsConnection connection, ApnsFeedbackConnection feedback,
+            ApnsDelegate delegate) {
+        super(feedback, delegate);
         this.connection = connection;
     }
 
@@ -46,10 +55,36 @@ public class ApnsServiceImpl extends AbstractApnsService {
         connection.sendMessage(msg);
     }
 
+    /**
+     * Writes the notifications of a collection or bulk push to the
+     * connection, by chunks of {@link #BULK_CHUNK} so that a large
+     * collection isn't framed into a single buffer.
+     */
+    @Override
+    protected void pushNotifications(List<ApnsNotification> notifications) throws NetworkIOException {
+        int size = notifications.size();
+        if (size <= BULK_CHUNK) {
+            connection.sendMessages(notifications);
+            return;
+        }
+        for (int from = 0; from < size; from += BULK_CHUNK) {
+            int to = Math.min(from + BULK_CHUNK, size);
+            try {
+                connection.sendMessages(notifications.subList(from, to));
+            } catch (ApnsException e) {
+                // the connection reported the failed chunk, not the next ones
+                e.setAccepted(from + e.getAccepted());
+                rejected(notifications, to, e);
+                throw e;
+            }
+        }
+    }
+
     public void start() {
     }
 
     public void stop() {
+        stopScheduler();
         Utilities.close(connection);
     }
 
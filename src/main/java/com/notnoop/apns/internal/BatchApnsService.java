@@ -2,47 +2,94 @@ package com.notnoop.apns.internal;
 
 import static java.util.concurrent.Executors.defaultThreadFactory;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BatchApnsDelegate;
+import com.notnoop.apns.BatchPartition;
+import com.notnoop.apns.ExpiredApnsDelegate;
+import com.notnoop.apns.StopReport;
 import com.notnoop.exceptions.NetworkIOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Collects the pushed notifications into batches, and writes each batch to
+ * a persistent connection.
+ *
+ * A batch is flushed when it holds {@code maxBatchSize} notifications or
+ * {@code maxBatchBytes} bytes, or when no notification was pushed for
+ * {@code linger} milliseconds.  Each notification postpones the flush by
+ * the linger, until {@code maxLinger} milliseconds after the first
+ * notification of the batch.
+ *
+ * With an adaptive linger, the mean time between notifications is measured:
+ * when it exceeds the linger, the next notification is unlikely to arrive in
+ * time to join the batch, so the batch is flushed right away instead.
+ *
+ * Large batches are split into up to {@code partitions} contiguous
+ * partitions, written in parallel to as many persistent connections.  The
+ * next batch is only flushed once all the partitions are written.
+ */
 public class BatchApnsService extends AbstractApnsService {
 
     private static final Logger logger = LoggerFactory.getLogger(BatchApnsService.class);
 
 	/**
-	 * How many seconds to wait for more messages before batch is send.
-	 * Each message reset the wait time
-	 * 
-	 * @see #maxBatchWaitTimeInSec
+	 * Notifications are written to the socket in chunks of about this size,
+	 * so large batches don't need a buffer for the whole batch.
 	 */
-	private int batchWaitTimeInSec = 5;
-	
-	/**
-	 * How many seconds can be batch delayed before execution.
-	 * This time is not exact amount after which the batch will run its roughly the time
-	 */
-	private int maxBatchWaitTimeInSec = 10;
-	
-	private long firstMessageArrivedTime; 
-	
+	private static final int WRITE_CHUNK_BYTES = 64 * 1024;
+
+	private final long lingerNanos;
+	private final long maxLingerNanos;
+	private final int maxBatchSize;
+	private final int maxBatchBytes;
+	private final boolean adaptiveLinger;
+
 	private ApnsConnection prototype;
 
-	private Queue<ApnsNotification> batch = new ConcurrentLinkedQueue<ApnsNotification>();
+	private final ApnsConnection[] connections;
+	private final ExecutorService partitionService;
+	private long batchCount;
+
+	private List<ApnsNotification> batch = new ArrayList<ApnsNotification>();
+	private int batchBytes;
+	private long firstMessageArrivedTime;
+	private long lastMessageArrivedTime;
+	private boolean anyMessageArrived;
+	private long meanGap;
+	private long flushAt;
+	private boolean timerPending;
 
 	private ScheduledExecutorService scheduleService;
-	private ScheduledFuture<?> taskFuture;
 
-	private Runnable batchRunner = new SendMessagesBatch();
+	private final Runnable flushTimer = new FlushTimer();
+
+	private final boolean earliestDeadlineFirst;
+	private final boolean dropExpired;
+	private final NotificationCoalescer coalescer;
+
+	/** batches taken but not sent yet, to drain them when stopping */
+	private final Set<SendMessagesBatch> pendingBatches = new LinkedHashSet<SendMessagesBatch>();
+	private final AtomicLong sentCount = new AtomicLong();
+	private volatile boolean stopping;
 
     public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback, int batchWaitTimeInSec, int maxBachWaitTimeInSec, ThreadFactory tf) {
         this(prototype, feedback, batchWaitTimeInSec, maxBachWaitTimeInSec,
@@ -51,11 +98,74 @@ public class BatchApnsService extends AbstractApnsService {
     }
 
     public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback, int batchWaitTimeInSec, int maxBachWaitTimeInSec, ScheduledExecutorService executor) {
-		super(feedback);
+        this(prototype, feedback, batchWaitTimeInSec * 1000L, maxBachWaitTimeInSec * 1000L,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, false, executor, null, false, false);
+    }
+
+    public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback,
+            long lingerMillis, long maxLingerMillis, int maxBatchSize, int maxBatchBytes,
+            boolean adaptiveLinger, ScheduledExecutorService executor,
+            ApnsDelegate delegate, boolean earliestDeadlineFirst, boolean dropExpired) {
+        this(prototype, feedback, lingerMillis, maxLingerMillis, maxBatchSize, maxBatchBytes,
+                adaptiveLinger, executor, delegate, earliestDeadlineFirst, dropExpired, 1, null);
+    }
+
+    /**
+     * @param lingerMillis          time to wait for more notifications
+     *                              before flushing the batch
+     * @param maxLingerMillis       time after the first notification of a
+     *                              batch after which notifications no longer
+     *                              postpone the flush
+     * @param maxBatchSize          number of notifications flushing the batch
+     * @param maxBatchBytes         size in bytes flushing the batch
+     * @param adaptiveLinger        whether to flush right away when
+     *                              notifications arrive less often than the
+     *                              linger
+     * @param earliestDeadlineFirst whether to send each batch in the order
+     *                              of the expiry dates
+     * @param dropExpired           whether to drop the notifications that
+     *                              expired while waiting for the batch
+     * @param partitions            maximum number of connections a batch
+     *                              is written to in parallel
+     * @param partitionThreadFactory thread factory of the threads writing
+     *                              the partitions (may be null)
+     */
+    public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback,
+            long lingerMillis, long maxLingerMillis, int maxBatchSize, int maxBatchBytes,
+            boolean adaptiveLinger, ScheduledExecutorService executor,
+            ApnsDelegate delegate, boolean earliestDeadlineFirst, boolean dropExpired,
+            int partitions, ThreadFactory partitionThreadFactory) {
+        this(prototype, feedback, lingerMillis, maxLingerMillis, maxBatchSize, maxBatchBytes,
+                adaptiveLinger, executor, delegate, earliestDeadlineFirst, dropExpired,
+                partitions, partitionThreadFactory, null);
+    }
+
+    /**
+     * @param coalescer             replaces the batched notifications
+     *                              superseded by newer ones (may be null)
+     */
+    public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback,
+            long lingerMillis, long maxLingerMillis, int maxBatchSize, int maxBatchBytes,
+            boolean adaptiveLinger, ScheduledExecutorService executor,
+            ApnsDelegate delegate, boolean earliestDeadlineFirst, boolean dropExpired,
+            int partitions, ThreadFactory partitionThreadFactory, NotificationCoalescer coalescer) {
+		super(feedback, delegate);
 		this.prototype = prototype;
-		this.batchWaitTimeInSec = batchWaitTimeInSec;
-		this.maxBatchWaitTimeInSec = maxBachWaitTimeInSec;
+		this.connections = new ApnsConnection[Math.max(1, partitions)];
+		this.connections[0] = prototype;
+		this.partitionService = connections.length > 1
+				? Executors.newFixedThreadPool(connections.length,
+						partitionThreadFactory != null ? partitionThreadFactory : defaultThreadFactory())
+				: null;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchBytes = maxBatchBytes;
+		this.adaptiveLinger = adaptiveLinger;
 		this.scheduleService = executor != null ? executor : new ScheduledThreadPoolExecutor(1, defaultThreadFactory());
+		this.earliestDeadlineFirst = earliestDeadlineFirst;
+		this.dropExpired = dropExpired;
+		this.coalescer = coalescer;
 	}
 
 	public void start() {
@@ -63,11 +173,72 @@ public class BatchApnsService extends AbstractApnsService {
 	}
 
 	public void stop() {
-		Utilities.close(prototype);
-		if (taskFuture != null) {
-			taskFuture.cancel(true);
+		stopScheduler();
+		synchronized (connections) {
+			for (ApnsConnection connection : connections) {
+				Utilities.close(connection);
+			}
 		}
 		scheduleService.shutdownNow();
+		if (partitionService != null) {
+			partitionService.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stops taking notifications, flushes the current batch, and waits for
+	 * the pending batches to be written until the timeout expires.  The
+	 * batches not started by then are reported as abandoned.
+	 */
+	@Override
+	public StopReport stop(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		stopScheduler();
+		long sentBefore = sentCount.get();
+		SendMessagesBatch last = null;
+		synchronized (this) {
+			stopping = true;
+			if (!batch.isEmpty()) {
+				last = new SendMessagesBatch(takeBatch());
+			}
+		}
+		if (last != null) {
+			scheduleService.execute(last);
+		}
+		List<ApnsNotification> abandoned = new ArrayList<ApnsNotification>();
+		synchronized (pendingBatches) {
+			long remaining;
+			while (!pendingBatches.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.timedWait(pendingBatches, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			for (SendMessagesBatch pending : pendingBatches) {
+				if (pending.started.compareAndSet(false, true)) {
+					for (ApnsNotification msg : pending.messages) {
+						abandoned.add(coalescer != null ? coalescer.release(msg) : msg);
+					}
+				}
+			}
+		}
+		long sent = sentCount.get() - sentBefore;
+		if (sent > 0) {
+			awaitErrorWindow(deadline);
+		}
+		stop();
+		return new StopReport(sent, abandoned);
+	}
+
+	private ApnsConnection connection(int partition) {
+		synchronized (connections) {
+			if (connections[partition] == null) {
+				connections[partition] = prototype.copy();
+			}
+			return connections[partition];
+		}
 	}
 
 	public void testConnection() throws NetworkIOException {
@@ -76,38 +247,216 @@ public class BatchApnsService extends AbstractApnsService {
 
 	@Override
 	public void push(ApnsNotification message) throws NetworkIOException {
-		if (batch.isEmpty()) {
-			firstMessageArrivedTime = System.nanoTime();
+		if (stopping) {
+			throw new IllegalStateException("service is stopping");
 		}
-		
-		long sinceFirstMessageSec = (System.nanoTime() - firstMessageArrivedTime) / 1000 / 1000 / 1000;
-		
-		if (taskFuture != null && sinceFirstMessageSec < maxBatchWaitTimeInSec) {
-			taskFuture.cancel(false);
+		if (coalescer != null && coalescer.offer(message) != null) {
+			// sent in place of a notification of the batch
+			return;
 		}
-		
-		batch.add(message);
-		
-		if (taskFuture == null || taskFuture.isDone()) {
-			taskFuture = scheduleService.schedule(batchRunner, batchWaitTimeInSec, TimeUnit.SECONDS);
+		SendMessagesBatch full = null;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (anyMessageArrived) {
+				long gap = now - lastMessageArrivedTime;
+				meanGap = meanGap == 0 ? gap : meanGap + (gap - meanGap) / 8;
+			}
+			lastMessageArrivedTime = now;
+			anyMessageArrived = true;
+
+			if (batch.isEmpty()) {
+				firstMessageArrivedTime = now;
+				flushAt = now + lingerNanos;
+			} else if (now - firstMessageArrivedTime < maxLingerNanos) {
+				flushAt = now + lingerNanos;
+			}
+			batch.add(message);
+			batchBytes += message.length();
+
+			if (batch.size() >= maxBatchSize || batchBytes >= maxBatchBytes
+					|| (adaptiveLinger && meanGap > lingerNanos)) {
+				full = new SendMessagesBatch(takeBatch());
+			} else if (!timerPending) {
+				timerPending = true;
+				scheduleService.schedule(flushTimer, flushAt - now, TimeUnit.NANOSECONDS);
+			}
+		}
+		if (full != null) {
+			scheduleService.execute(full);
+		}
+	}
+
+	private List<ApnsNotification> takeBatch() {
+		List<ApnsNotification> result = batch;
+		batch = new ArrayList<ApnsNotification>();
+		batchBytes = 0;
+		return result;
+	}
+
+	/**
+	 * Flushes the batch once its deadline has passed.  Notifications pushed
+	 * meanwhile only move the deadline, so there is a single pending timer
+	 * rather than one per notification.
+	 */
+	class FlushTimer implements Runnable {
+		public void run() {
+			SendMessagesBatch due;
+			synchronized (BatchApnsService.this) {
+				timerPending = false;
+				if (batch.isEmpty()) {
+					return;
+				}
+				long delay = flushAt - System.nanoTime();
+				if (delay > 0) {
+					timerPending = true;
+					scheduleService.schedule(this, delay, TimeUnit.NANOSECONDS);
+					return;
+				}
+				due = new SendMessagesBatch(takeBatch());
+			}
+			due.run();
 		}
 	}
 
 	class SendMessagesBatch implements Runnable {
+		private final List<ApnsNotification> messages;
+		private final AtomicBoolean started = new AtomicBoolean(false);
+
+		SendMessagesBatch(List<ApnsNotification> messages) {
+			this.messages = messages;
+			synchronized (pendingBatches) {
+				pendingBatches.add(this);
+			}
+		}
+
 		public void run() {
-			ApnsConnection newConnection = prototype.copy();
+			if (!started.compareAndSet(false, true)) {
+				// abandoned by stop
+				return;
+			}
 			try {
-				ApnsNotification msg;
-				while ((msg = batch.poll()) != null) {
-					try {
-						newConnection.sendMessage(msg);
-					} catch (NetworkIOException e) {
-                        logger.warn("Network exception sending message msg "+ msg.getIdentifier(), e);
-                    }
-				}
+				send();
 			} finally {
-				Utilities.close(newConnection);
+				synchronized (pendingBatches) {
+					pendingBatches.remove(this);
+					pendingBatches.notifyAll();
+				}
+			}
+		}
+
+		private void send() {
+			if (coalescer != null) {
+				for (int i = 0; i < messages.size(); i++) {
+					messages.set(i, coalescer.release(messages.get(i)));
+				}
+			}
+			if (dropExpired) {
+				long now = System.currentTimeMillis();
+				for (Iterator<ApnsNotification> it = messages.iterator(); it.hasNext();) {
+					ApnsNotification msg = it.next();
+					if (NotificationQueue.isExpired(msg, now)) {
+						it.remove();
+						if (delegate instanceof ExpiredApnsDelegate) {
+							((ExpiredApnsDelegate) delegate).messageExpired(msg);
+						}
+					}
+				}
+			}
+			if (earliestDeadlineFirst) {
+				Collections.sort(messages, NotificationQueue.EXPIRY_ORDER);
+			}
+
+			if (messages.isEmpty()) {
+				return;
+			}
+			long batch = ++batchCount;
+
+			// only split batches large enough for a chunk per partition
+			long bytes = 0;
+			for (ApnsNotification msg : messages) {
+				bytes += msg.length();
+			}
+			int partitions = (int) Math.min(connections.length,
+					Math.min(messages.size(), Math.max(1, bytes / WRITE_CHUNK_BYTES)));
+			if (partitions == 1) {
+				new WritePartition(batch, 0, 1, messages).run();
+				return;
 			}
+
+			List<Future<?>> futures = new ArrayList<Future<?>>(partitions);
+			int from = 0;
+			for (int i = 0; i < partitions; i++) {
+				int to = from + (messages.size() - from) / (partitions - i);
+				futures.add(partitionService.submit(
+						new WritePartition(batch, i, partitions, messages.subList(from, to))));
+				from = to;
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (ExecutionException e) {
+					logger.warn("Unexpected exception writing a partition of batch " + batch, e.getCause());
+				}
+			}
+		}
+	}
+
+	class WritePartition implements Runnable {
+		private final long batch;
+		private final int partition;
+		private final int partitions;
+		private final List<ApnsNotification> messages;
+		private int written;
+		private int failed;
+
+		WritePartition(long batch, int partition, int partitions, List<ApnsNotification> messages) {
+			this.batch = batch;
+			this.partition = partition;
+			this.partitions = partitions;
+			this.messages = messages;
+		}
+
+		public void run() {
+			ApnsConnection connection = connection(partition);
+			List<ApnsNotification> chunk = new ArrayList<ApnsNotification>();
+			int chunkBytes = 0;
+			for (ApnsNotification msg : messages) {
+				chunk.add(msg);
+				chunkBytes += msg.length();
+				if (chunkBytes >= WRITE_CHUNK_BYTES) {
+					write(connection, chunk);
+					chunk = new ArrayList<ApnsNotification>();
+					chunkBytes = 0;
+				}
+			}
+			if (!chunk.isEmpty()) {
+				write(connection, chunk);
+			}
+			if (delegate instanceof BatchApnsDelegate) {
+				((BatchApnsDelegate) delegate).batchPartitionCompleted(progress());
+			}
+		}
+
+		private void write(ApnsConnection connection, List<ApnsNotification> chunk) {
+			try {
+				connection.sendMessages(chunk);
+				written += chunk.size();
+				sentCount.addAndGet(chunk.size());
+			} catch (NetworkIOException e) {
+				failed += chunk.size();
+				logger.warn("Network exception sending " + chunk.size() + " messages from "
+						+ chunk.get(0).getIdentifier(), e);
+			}
+			if (delegate instanceof BatchApnsDelegate) {
+				((BatchApnsDelegate) delegate).batchPartitionProgress(progress());
+			}
+		}
+
+		private BatchPartition progress() {
+			return new BatchPartition(batch, partition, partitions, messages.size(), written, failed);
 		}
 	}
 }
@@ -0,0 +1,140 @@
+package com.notnoop.apns.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.CollapseKeyResolver;
+
+/**
+ * Replaces the pending notifications superseded by newer notifications to
+ * the same device with the same collapse key.
+ *
+ * The first notification of a device and collapse key is queued as usual.
+ * Notifications pushed while it is still queued replace it without being
+ * queued themselves, and the latest one is sent in its place once it is
+ * {@link #release(ApnsNotification) released} from the queue.
+ *
+ * Pending notifications are keyed by a 64-bit fingerprint of the device
+ * token and collapse key; on the rare fingerprint collision between
+ * different devices, the notification is queued without coalescing.
+ */
+public class NotificationCoalescer {
+
+    private final CollapseKeyResolver resolver;
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<Long, Pending>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public NotificationCoalescer(CollapseKeyResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Offers a pushed notification.
+     *
+     * @return {@code null} if the notification must be queued, or the
+     *      pending notification it replaced
+     */
+    public ApnsNotification offer(ApnsNotification notification) {
+        String key = resolver.getCollapseKey(notification);
+        if (key == null) {
+            return null;
+        }
+        byte[] token = notification.getDeviceToken();
+        Long fingerprint = fingerprint(token, key);
+        while (true) {
+            Pending p = pending.get(fingerprint);
+            if (p == null) {
+                if (pending.putIfAbsent(fingerprint, new Pending(token, key, notification)) == null) {
+                    return null;
+                }
+                continue;
+            }
+            synchronized (p) {
+                if (p.released) {
+                    pending.remove(fingerprint, p);
+                    continue;
+                }
+                if (!p.matches(token, key)) {
+                    return null;
+                }
+                ApnsNotification replaced = p.latest;
+                p.latest = notification;
+                coalesced.incrementAndGet();
+                return replaced;
+            }
+        }
+    }
+
+    /**
+     * Releases a notification taken from the queue.
+     *
+     * @return the notification to send in its place: the latest
+     *      notification that replaced it, or the notification itself
+     */
+    public ApnsNotification release(ApnsNotification queued) {
+        String key = resolver.getCollapseKey(queued);
+        if (key == null) {
+            return queued;
+        }
+        Long fingerprint = fingerprint(queued.getDeviceToken(), key);
+        Pending p = pending.get(fingerprint);
+        if (p == null || p.queued != queued) {
+            return queued;
+        }
+        synchronized (p) {
+            p.released = true;
+            pending.remove(fingerprint, p);
+            return p.latest;
+        }
+    }
+
+    /**
+     * Returns the number of notifications replaced by newer ones.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of queued notifications that may still be
+     * replaced.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /** 64-bit FNV-1a of the token and the key */
+    private static long fingerprint(byte[] token, String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : token) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static class Pending {
+        final byte[] token;
+        final String key;
+        final ApnsNotification queued;
+        ApnsNotification latest;
+        boolean released;
+
+        Pending(byte[] token, String key, ApnsNotification queued) {
+            this.token = token;
+            this.key = key;
+            this.queued = queued;
+            this.latest = queued;
+        }
+
+        boolean matches(byte[] token, String key) {
+            return Arrays.equals(this.token, token) && this.key.equals(key);
+        }
+    }
+}
@@ -0,0 +1,525 @@
+package com.notnoop.apns.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.exceptions.RuntimeIOException;
+
+/**
+ * A write-ahead journal of the queued notifications, so that the
+ * notifications still pending when the process dies are sent once it is
+ * restarted.
+ *
+ * The journal is a directory of append-only segment files, each mapped in
+ * memory: appending a notification copies it into the mapped segment, and
+ * marking it done flips the state byte of its record.  Both survive the
+ * process dying as soon as they return.  To survive the machine crashing,
+ * the segments are also forced to disk according to the sync interval:
+ * <ul>
+ *   <li>0 forces them before {@link #append(ApnsNotification)} returns.
+ *       Threads appending concurrently share a single force (group
+ *       commit);</li>
+ *   <li>a positive interval forces them in the background every
+ *       {@code syncInterval} milliseconds;</li>
+ *   <li>a negative interval leaves it to the operating system.</li>
+ * </ul>
+ *
+ * A segment is deleted once all its notifications are done and the last
+ * one has been done for longer than the error window, during which Apple
+ * may still reject it.  When the journal is opened, the notifications that
+ * weren't done are {@link #replay() replayed}.
+ *
+ * Record layout: state (1 byte), identifier (4), expiry (4), priority (1),
+ * delivery time (8), token length (2), token, payload length (4),
+ * payload.  The state byte is written last, so a record torn by a crash
+ * reads as the end of the segment.
+ */
+public class NotificationJournal {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationJournal.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default time a segment is kept once its notifications are done, in
+     * milliseconds.  Keeping it only costs disk space, so this is the
+     * longest of the error windows.
+     */
+    public static final long DEFAULT_ERROR_WINDOW = 60 * 1000;
+
+    private static final int MAGIC = 0x41504e4a; // "APNJ"
+    private static final int VERSION = 2;
+    private static final int SEGMENT_HEADER = 8;
+    private static final int RECORD_HEADER = 1 + 4 + 4 + 1 + 8 + 2 + 4;
+
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d+)\\.seg");
+
+    private final File directory;
+    private final int segmentSize;
+    private final long syncInterval;
+    private final long errorWindow;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    /** positions of the pending records of each notification, oldest first */
+    private final Map<ApnsNotification, Object> positions = new IdentityHashMap<ApnsNotification, Object>();
+    private final Map<ApnsNotification, Long> replayedDeliveries = new IdentityHashMap<ApnsNotification, Long>();
+    private int pending;
+    private final List<Segment> dirty = new ArrayList<Segment>();
+    private List<ApnsNotification> replayed = new ArrayList<ApnsNotification>();
+    private Segment current;
+    private long nextSegment;
+    private long appended;
+    private boolean closed;
+
+    private final Object syncLock = new Object();
+    private long synced;
+
+    private final ScheduledExecutorService maintenance;
+
+    /**
+     * Opens the journal in {@code directory} with the default segment size
+     * and error window, creating the directory if needed.
+     *
+     * @param syncInterval  time in milliseconds between forcing the journal
+     *                      to disk, 0 to force it on every append, or a
+     *                      negative value to never force it
+     */
+    public NotificationJournal(File directory, long syncInterval) {
+        this(directory, DEFAULT_SEGMENT_SIZE, syncInterval, DEFAULT_ERROR_WINDOW);
+    }
+
+    /**
+     * Opens the journal in {@code directory}, creating the directory if
+     * needed, and reads the notifications to replay.
+     *
+     * @param segmentSize   size of the segment files, in bytes
+     * @param syncInterval  time in milliseconds between forcing the journal
+     *                      to disk, 0 to force it on every append, or a
+     *                      negative value to never force it
+     * @param errorWindow   time in milliseconds during which a notification
+     *                      done may still be rejected by Apple
+     */
+    public NotificationJournal(File directory, int segmentSize, long syncInterval, long errorWindow) {
+        if (segmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("segmentSize must be at least 64KB");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        this.errorWindow = errorWindow;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeIOException("Can't create journal directory " + directory);
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            throw new RuntimeIOException("Can't read journal " + directory, e);
+        }
+
+        long period = syncInterval > 0 ? syncInterval : Math.max(1, errorWindow / 2);
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ApnsJournal-" + NotificationJournal.this.directory.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    if (NotificationJournal.this.syncInterval > 0) {
+                        sync();
+                    }
+                    compact();
+                } catch (RuntimeException e) {
+                    logger.warn("Journal maintenance failed", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the notifications that weren't done when the journal was
+     * last closed, in the order they were appended.  They stay in the
+     * journal until they are {@link #complete(ApnsNotification) done}.
+     * Following calls return an empty list.
+     */
+    public synchronized List<ApnsNotification> replay() {
+        List<ApnsNotification> result = replayed;
+        replayed = new ArrayList<ApnsNotification>();
+        return result;
+    }
+
+    /**
+     * Returns the delivery time a replayed notification was appended with,
+     * or 0.
+     */
+    public synchronized long getDeliveryTime(ApnsNotification notification) {
+        Long deliverAt = replayedDeliveries.get(notification);
+        return deliverAt == null ? 0 : deliverAt;
+    }
+
+    /**
+     * Appends a notification to the journal.
+     *
+     * @throws RuntimeIOException if a new segment can't be created
+     */
+    public void append(ApnsNotification notification) {
+        append(notification, 0);
+    }
+
+    /**
+     * Appends a notification to be delivered at a given time.
+     *
+     * @param deliverAt the delivery time in milliseconds since the epoch,
+     *                  returned by {@link #getDeliveryTime(ApnsNotification)}
+     *                  once replayed
+     * @throws RuntimeIOException if a new segment can't be created
+     */
+    public void append(ApnsNotification notification, long deliverAt) {
+        byte[] token = notification.getDeviceToken();
+        byte[] payload = notification.getPayload();
+        int length = RECORD_HEADER + token.length + payload.length;
+        if (length > segmentSize - SEGMENT_HEADER) {
+            throw new IllegalArgumentException("Notification larger than a journal segment");
+        }
+
+        long sequence;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("journal is closed");
+            }
+            if (current == null || current.buffer.remaining() < length) {
+                roll();
+            }
+            MappedByteBuffer buffer = current.buffer;
+            int offset = buffer.position();
+            buffer.position(offset + 1);
+            buffer.putInt(notification.getIdentifier());
+            buffer.putInt(notification.getExpiry());
+            buffer.put((byte) notification.getPriority().ordinal());
+            buffer.putLong(deliverAt);
+            buffer.putShort((short) token.length);
+            buffer.put(token);
+            buffer.putInt(payload.length);
+            buffer.put(payload);
+            buffer.put(offset, PENDING);
+
+            addPosition(notification, position(current.index, offset));
+            current.pending++;
+            markDirty(current);
+            sequence = ++appended;
+        }
+        if (syncInterval == 0) {
+            awaitSync(sequence);
+        }
+    }
+
+    /**
+     * Marks a notification done: it was sent, dropped or rejected, and
+     * won't be replayed.  Unknown notifications are ignored.
+     */
+    public synchronized void complete(ApnsNotification notification) {
+        Long position = removePosition(notification);
+        if (position == null) {
+            return;
+        }
+        if (!positions.containsKey(notification)) {
+            replayedDeliveries.remove(notification);
+        }
+        Segment segment = segments.get(position >>> 32);
+        if (segment != null) {
+            segment.buffer.put((int) (position & 0xFFFFFFFFL), DONE);
+            segment.pending--;
+            segment.lastDone = System.currentTimeMillis();
+            markDirty(segment);
+        }
+    }
+
+    /**
+     * Marks notifications done.
+     *
+     * @see #complete(ApnsNotification)
+     */
+    public synchronized void complete(Collection<ApnsNotification> notifications) {
+        for (ApnsNotification notification : notifications) {
+            complete(notification);
+        }
+    }
+
+    /**
+     * Returns the number of notifications appended but not done yet.
+     */
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    private void addPosition(ApnsNotification notification, Long position) {
+        Object existing = positions.put(notification, position);
+        if (existing instanceof Long) {
+            // the same notification was pushed several times
+            LinkedList<Long> list = new LinkedList<Long>();
+            list.add((Long) existing);
+            list.add(position);
+            positions.put(notification, list);
+        } else if (existing != null) {
+            @SuppressWarnings("unchecked")
+            LinkedList<Long> list = (LinkedList<Long>) existing;
+            list.add(position);
+            positions.put(notification, list);
+        }
+        pending++;
+    }
+
+    private Long removePosition(ApnsNotification notification) {
+        Object existing = positions.remove(notification);
+        if (existing == null) {
+            return null;
+        }
+        pending--;
+        if (existing instanceof Long) {
+            return (Long) existing;
+        }
+        @SuppressWarnings("unchecked")
+        LinkedList<Long> list = (LinkedList<Long>) existing;
+        Long position = list.removeFirst();
+        if (!list.isEmpty()) {
+            positions.put(notification, list);
+        }
+        return position;
+    }
+
+    /**
+     * Forces the segments written since the last sync to disk.
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            long target;
+            List<Segment> toForce;
+            synchronized (this) {
+                target = appended;
+                toForce = new ArrayList<Segment>(dirty);
+                dirty.clear();
+                for (Segment segment : toForce) {
+                    segment.dirty = false;
+                }
+            }
+            for (Segment segment : toForce) {
+                segment.buffer.force();
+            }
+            synced = Math.max(synced, target);
+        }
+    }
+
+    private void awaitSync(long sequence) {
+        // the first thread forces the appends of all the waiting threads
+        synchronized (syncLock) {
+            if (synced < sequence) {
+                sync();
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments whose notifications are all done and out of
+     * the error window.  This is called periodically.
+     */
+    public void compact() {
+        List<Segment> deleted = new ArrayList<Segment>();
+        long deadline = System.currentTimeMillis() - errorWindow;
+        synchronized (this) {
+            for (Iterator<Segment> it = segments.values().iterator(); it.hasNext();) {
+                Segment segment = it.next();
+                if (segment != current && segment.pending == 0 && segment.lastDone <= deadline) {
+                    it.remove();
+                    dirty.remove(segment);
+                    deleted.add(segment);
+                }
+            }
+        }
+        for (Segment segment : deleted) {
+            if (!segment.file.delete()) {
+                logger.warn("Can't delete journal segment {}", segment.file);
+            }
+        }
+    }
+
+    /**
+     * Forces the journal to disk and stops its maintenance thread.  The
+     * notifications not done yet are replayed when the journal is opened
+     * again.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        maintenance.shutdownNow();
+        if (syncInterval >= 0) {
+            sync();
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles();
+        List<File> found = new ArrayList<File>();
+        for (File file : files == null ? new File[0] : files) {
+            if (SEGMENT_NAME.matcher(file.getName()).matches()) {
+                found.add(file);
+            }
+        }
+        Collections.sort(found, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = index(a);
+                long y = index(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        for (File file : found) {
+            long index = index(file);
+            nextSegment = Math.max(nextSegment, index + 1);
+            MappedByteBuffer buffer = map(file, file.length());
+            if (buffer.capacity() < SEGMENT_HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                logger.warn("Ignoring invalid journal segment {}", file);
+                continue;
+            }
+            Segment segment = new Segment(index, file, buffer);
+            buffer.position(SEGMENT_HEADER);
+            while (readRecord(segment)) {
+                // next record
+            }
+            segments.put(index, segment);
+        }
+        if (!replayed.isEmpty()) {
+            logger.info("Replaying {} notifications from journal {}", replayed.size(), directory);
+        }
+    }
+
+    private boolean readRecord(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = buffer.position();
+        if (buffer.remaining() < RECORD_HEADER) {
+            return false;
+        }
+        byte state = buffer.get();
+        if (state != PENDING && state != DONE) {
+            return false;
+        }
+        int identifier = buffer.getInt();
+        int expiry = buffer.getInt();
+        int priority = buffer.get();
+        long deliverAt = buffer.getLong();
+        int tokenLength = buffer.getShort() & 0xFFFF;
+        if (priority < 0 || priority >= Priority.values().length || tokenLength > buffer.remaining() - 4) {
+            logger.warn("Corrupt record at {} in journal segment {}", offset, segment.file);
+            return false;
+        }
+        byte[] token = new byte[tokenLength];
+        buffer.get(token);
+        int payloadLength = buffer.getInt();
+        if (payloadLength < 0 || payloadLength > buffer.remaining()) {
+            logger.warn("Corrupt record at {} in journal segment {}", offset, segment.file);
+            return false;
+        }
+        byte[] payload = new byte[payloadLength];
+        buffer.get(payload);
+        if (state == PENDING) {
+            ApnsNotification notification = new ApnsNotification(identifier, expiry, token, payload,
+                    Priority.values()[priority]);
+            replayed.add(notification);
+            if (deliverAt != 0) {
+                replayedDeliveries.put(notification, deliverAt);
+            }
+            addPosition(notification, position(segment.index, offset));
+            segment.pending++;
+        }
+        return true;
+    }
+
+    private void roll() {
+        File file = new File(directory, "journal-" + nextSegment + ".seg");
+        try {
+            MappedByteBuffer buffer = map(file, segmentSize);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.position(SEGMENT_HEADER);
+            current = new Segment(nextSegment, file, buffer);
+            segments.put(nextSegment, current);
+            markDirty(current);
+            nextSegment++;
+        } catch (IOException e) {
+            throw new RuntimeIOException("Can't create journal segment " + file, e);
+        }
+    }
+
+    private void markDirty(Segment segment) {
+        if (!segment.dirty) {
+            segment.dirty = true;
+            dirty.add(segment);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long index(File file) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    private static long position(long segment, int offset) {
+        return (segment << 32) | offset;
+    }
+
+    private static class Segment {
+        final long index;
+        final File file;
+        final MappedByteBuffer buffer;
+        int pending;
+        long lastDone;
+        boolean dirty;
+
+        Segment(long index, File file, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
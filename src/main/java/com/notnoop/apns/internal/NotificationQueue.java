@@ -0,0 +1,485 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.ApnsQueueStatistics;
+import com.notnoop.apns.QueueOverflowPolicy;
+import com.notnoop.exceptions.QueueFullException;
+
+/**
+ * A bounded queue of notifications waiting to be sent, between the threads
+ * pushing to a queued service and its consumer threads.
+ *
+ * Producers and consumers share a single lock, so that a consumer can take
+ * a whole batch of notifications at once.
+ *
+ * With priority lanes, {@link Priority#SEND_IMMEDIATELY} and
+ * {@link Priority#SEND_AT_CONVENIENCE} notifications wait in separate FIFO
+ * lanes sharing the capacity.  Consumers take {@code immediateWeight}
+ * immediate notifications for every notification sent at convenience,
+ * unless the oldest notification sent at convenience waited longer than
+ * {@code maxConvenienceWait}, in which case it is taken first.
+ *
+ * Lanes are FIFO, or ordered by expiry date (earliest deadline first) when
+ * {@code earliestDeadlineFirst} is set.  With {@code dropExpired}, the
+ * notifications whose expiry date has passed are dropped instead of being
+ * taken.
+ */
+public class NotificationQueue implements ApnsQueueStatistics {
+
+    private final int capacity;
+    private final QueueOverflowPolicy policy;
+    private final long offerTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Queue<Entry> immediate;
+    private final Queue<Entry> convenience;
+    private final int immediateWeight;
+    private final long maxConvenienceWait;
+    private final boolean dropExpired;
+    private int credits;
+    private int size;
+    private long sequence;
+
+    // statistics, by priority ordinal
+    private final int[] depth = new int[Priority.values().length];
+    private final long[] dequeued = new long[Priority.values().length];
+    private final long[] totalWait = new long[Priority.values().length];
+    private final long[] maxWait = new long[Priority.values().length];
+    private long rejected;
+    private long dropped;
+    private long expired;
+
+    /**
+     * Constructs an unbounded queue.
+     */
+    public NotificationQueue() {
+        this(Integer.MAX_VALUE, QueueOverflowPolicy.BLOCK, 0);
+    }
+
+    /**
+     * Constructs a bounded queue.
+     *
+     * @param capacity      maximum number of queued notifications
+     * @param policy        what to do when the queue is full
+     * @param offerTimeout  time in milliseconds to wait for room in the
+     *                      queue with the {@link QueueOverflowPolicy#TIMEOUT}
+     *                      policy
+     */
+    public NotificationQueue(int capacity, QueueOverflowPolicy policy, long offerTimeout) {
+        this(capacity, policy, offerTimeout, 0, 0);
+    }
+
+    /**
+     * Constructs a bounded queue with priority lanes.
+     *
+     * @param capacity              maximum number of queued notifications
+     * @param policy                what to do when the queue is full
+     * @param offerTimeout          time in milliseconds to wait for room in
+     *                              the queue with the
+     *                              {@link QueueOverflowPolicy#TIMEOUT} policy
+     * @param immediateWeight       number of immediate notifications taken
+     *                              for every notification sent at
+     *                              convenience, or 0 for a single FIFO lane
+     * @param maxConvenienceWait    time in milliseconds after which a
+     *                              notification sent at convenience is taken
+     *                              first, or 0 for no limit
+     */
+    public NotificationQueue(int capacity, QueueOverflowPolicy policy, long offerTimeout,
+            int immediateWeight, long maxConvenienceWait) {
+        this(capacity, policy, offerTimeout, immediateWeight, maxConvenienceWait, false, false);
+    }
+
+    /**
+     * Constructs a bounded queue with priority lanes and deadline
+     * scheduling.
+     *
+     * @param earliestDeadlineFirst whether to take the notifications in the
+     *                              order of their expiry dates
+     * @param dropExpired           whether to drop expired notifications
+     *                              instead of taking them
+     * @see #NotificationQueue(int, QueueOverflowPolicy, long, int, long)
+     */
+    public NotificationQueue(int capacity, QueueOverflowPolicy policy, long offerTimeout,
+            int immediateWeight, long maxConvenienceWait,
+            boolean earliestDeadlineFirst, boolean dropExpired) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy == null ? QueueOverflowPolicy.BLOCK : policy;
+        this.offerTimeout = offerTimeout;
+        this.immediateWeight = immediateWeight;
+        this.maxConvenienceWait = TimeUnit.MILLISECONDS.toNanos(maxConvenienceWait);
+        this.dropExpired = dropExpired;
+        this.immediate = newLane(earliestDeadlineFirst);
+        this.convenience = immediateWeight > 0 ? newLane(earliestDeadlineFirst) : immediate;
+    }
+
+    private static Queue<Entry> newLane(boolean earliestDeadlineFirst) {
+        return earliestDeadlineFirst
+                ? new PriorityQueue<Entry>(16, DEADLINE_ORDER)
+                : new ArrayDeque<Entry>();
+    }
+
+    /**
+     * Queues a notification, applying the overflow policy if the queue is
+     * full.
+     *
+     * @return the notification dropped to make room for the new one, or
+     *      {@code null}
+     * @throws QueueFullException if the notification could not be queued
+     */
+    public ApnsNotification offer(ApnsNotification notification) throws QueueFullException {
+        lock.lock();
+        try {
+            ApnsNotification droppedNotification = null;
+            if (size >= capacity) {
+                switch (policy) {
+                case REJECT:
+                    rejected++;
+                    throw new QueueFullException("Queue is full (" + capacity + " notifications)");
+                case DROP_OLDEST:
+                    // sacrifice notifications sent at convenience first, taking
+                    // the head of the lane: the oldest, or the closest to expire
+                    Entry oldest = convenience.isEmpty() ? immediate.poll() : convenience.poll();
+                    size--;
+                    depth[oldest.priority]--;
+                    droppedNotification = oldest.notification;
+                    dropped++;
+                    break;
+                case TIMEOUT:
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(offerTimeout);
+                    while (size >= capacity) {
+                        if (nanos <= 0) {
+                            rejected++;
+                            throw new QueueFullException("Queue still full after " + offerTimeout + " ms");
+                        }
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                    break;
+                default:
+                    while (size >= capacity) {
+                        notFull.await();
+                    }
+                }
+            }
+            Entry entry = new Entry(notification, System.nanoTime(), sequence++);
+            (entry.priority == Priority.SEND_AT_CONVENIENCE.ordinal() ? convenience : immediate).add(entry);
+            size++;
+            depth[entry.priority]++;
+            notEmpty.signal();
+            return droppedNotification;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected++;
+            throw new QueueFullException("Interrupted while waiting for room in the queue", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes up to {@code max} notifications, waiting until at least one is
+     * available.
+     *
+     * @param out   the list the notifications are added to
+     * @param max   maximum number of notifications to take
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void take(List<ApnsNotification> out, int max) throws InterruptedException {
+        take(out, max, null);
+    }
+
+    /**
+     * Takes up to {@code max} notifications, waiting until at least one
+     * notification is available.  When dropping expired notifications, the
+     * notifications taken may all have been dropped, leaving {@code out}
+     * unchanged.
+     *
+     * @param out       the list the notifications are added to
+     * @param max       maximum number of notifications to take
+     * @param expired   the list the dropped expired notifications are added
+     *                  to, or {@code null}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void take(List<ApnsNotification> out, int max, List<ApnsNotification> expired)
+            throws InterruptedException {
+        take(out, max, expired, -1);
+    }
+
+    /**
+     * Takes up to {@code max} notifications, waiting up to {@code timeout}
+     * nanoseconds for a notification to be available, or without limit if
+     * {@code timeout} is negative.
+     *
+     * @return false if no notification was available in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean take(List<ApnsNotification> out, int max, List<ApnsNotification> expired,
+            long timeout) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long nanos = timeout;
+            while (size == 0) {
+                if (timeout < 0) {
+                    notEmpty.await();
+                } else if (nanos <= 0) {
+                    return false;
+                } else {
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            }
+            long now = System.nanoTime();
+            long nowMillis = System.currentTimeMillis();
+            int taken = 0;
+            while (taken < max && size > 0) {
+                Entry entry = nextLane(now).poll();
+                size--;
+                depth[entry.priority]--;
+                if (dropExpired && isExpired(entry.notification, nowMillis)) {
+                    this.expired++;
+                    if (expired != null) {
+                        expired.add(entry.notification);
+                    }
+                    continue;
+                }
+                long wait = now - entry.enqueued;
+                dequeued[entry.priority]++;
+                totalWait[entry.priority] += wait;
+                maxWait[entry.priority] = Math.max(maxWait[entry.priority], wait);
+                out.add(entry.notification);
+                taken++;
+            }
+            notFull.signalAll();
+            if (size > 0) {
+                // let another consumer take the rest
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Queue<Entry> nextLane(long now) {
+        if (convenience.isEmpty()) {
+            return immediate;
+        }
+        if (immediate.isEmpty()) {
+            return convenience;
+        }
+        if (maxConvenienceWait > 0 && now - convenience.peek().enqueued >= maxConvenienceWait) {
+            // starving
+            credits = 0;
+            return convenience;
+        }
+        if (credits < immediateWeight) {
+            credits++;
+            return immediate;
+        }
+        credits = 0;
+        return convenience;
+    }
+
+    /**
+     * Removes all the queued notifications, without waiting.
+     */
+    public List<ApnsNotification> drain() {
+        lock.lock();
+        try {
+            List<ApnsNotification> result = new ArrayList<ApnsNotification>(size);
+            for (Entry entry : immediate) {
+                result.add(entry.notification);
+            }
+            if (convenience != immediate) {
+                for (Entry entry : convenience) {
+                    result.add(entry.notification);
+                }
+                convenience.clear();
+            }
+            immediate.clear();
+            size = 0;
+            Arrays.fill(depth, 0);
+            notFull.signalAll();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueDepth(Priority priority) {
+        lock.lock();
+        try {
+            return depth[priority.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    public double getAverageWaitTime() {
+        lock.lock();
+        try {
+            return averageMillis(sum(totalWait), sum(dequeued));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getAverageWaitTime(Priority priority) {
+        lock.lock();
+        try {
+            return averageMillis(totalWait[priority.ordinal()], dequeued[priority.ordinal()]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxWaitTime() {
+        lock.lock();
+        try {
+            long max = 0;
+            for (long wait : maxWait) {
+                max = Math.max(max, wait);
+            }
+            return TimeUnit.NANOSECONDS.toMillis(max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxWaitTime(Priority priority) {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(maxWait[priority.ordinal()]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDequeuedCount() {
+        lock.lock();
+        try {
+            return sum(dequeued);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean dropsExpired() {
+        return dropExpired;
+    }
+
+    public long getExpiredCount() {
+        lock.lock();
+        try {
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the expiry date of the notification has passed.  An
+     * expiry of 0, meaning that Apple only attempts the delivery once, never
+     * expires while waiting.
+     */
+    static boolean isExpired(ApnsNotification notification, long nowMillis) {
+        int expiry = notification.getExpiry();
+        return expiry > 0 && expiry != ApnsNotification.MAXIMUM_EXPIRY
+                && expiry * 1000L < nowMillis;
+    }
+
+    /**
+     * Orders notifications by expiry date, so that the notifications that
+     * never expire come last.
+     */
+    static final Comparator<ApnsNotification> EXPIRY_ORDER = new Comparator<ApnsNotification>() {
+        public int compare(ApnsNotification a, ApnsNotification b) {
+            int x = a.getExpiry();
+            int y = b.getExpiry();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Entry> DEADLINE_ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int result = EXPIRY_ORDER.compare(a.notification, b.notification);
+            if (result == 0) {
+                result = a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+            }
+            return result;
+        }
+    };
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private static double averageMillis(long totalNanos, long count) {
+        return count == 0 ? 0 : (double) totalNanos / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static class Entry {
+        final ApnsNotification notification;
+        final long enqueued;
+        final long sequence;
+        final int priority;
+
+        Entry(ApnsNotification notification, long enqueued, long sequence) {
+            this.notification = notification;
+            this.enqueued = enqueued;
+            this.sequence = sequence;
+            Priority p = notification.getPriority();
+            this.priority = (p == null ? Priority.SEND_IMMEDIATELY : p).ordinal();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.notnoop.apns.internal;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.exceptions.QueueFullException;
+
+/**
+ * A preallocated ring of notification slots, shared by any number of
+ * producers and a fixed number of writers.
+ *
+ * Producers {@link #claim(int) claim} a range of sequence numbers, fill the
+ * matching slots and {@link #publish(long, long) publish} them.  Writers
+ * {@link #take(int, List, int) take} the longest contiguous range of
+ * published slots, so that it can be written to their connection at once.
+ * Apart from a compare-and-set on the claimed sequences, producers and
+ * writers never contend on a lock, and no node is allocated per
+ * notification.
+ *
+ * A producer claiming slots that haven't been taken yet spins until a
+ * writer frees them, the ring is {@link #close() closed} or the producer
+ * is interrupted; writers finding the ring empty spin briefly, then sleep
+ * until a producer publishes.
+ */
+public class NotificationRingBuffer {
+
+    private static final int SPINS = 100;
+    private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ApnsNotification[] slots;
+    private final int mask;
+    private final int indexShift;
+    /** round of the sequence last published in each slot */
+    private final AtomicIntegerArray published;
+
+    /** highest sequence claimed by producers */
+    private final AtomicLong claimed = new AtomicLong(-1);
+    /** highest sequence taken by writers */
+    private final AtomicLong taken = new AtomicLong(-1);
+    /** sequence each writer is taking after, while it copies its range */
+    private final AtomicLong[] writerSequences;
+    private volatile long gatingCache = -1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile int sleepingWriters;
+    private volatile boolean closed;
+
+    /**
+     * @param size      number of slots, rounded up to a power of two
+     * @param writers   number of threads taking from the ring
+     */
+    public NotificationRingBuffer(int size, int writers) {
+        if (size < 1 || writers < 1) {
+            throw new IllegalArgumentException("size and writers must be positive");
+        }
+        int capacity = Integer.highestOneBit(size);
+        if (capacity < size) {
+            capacity <<= 1;
+        }
+        this.slots = new ApnsNotification[capacity];
+        this.mask = capacity - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(capacity);
+        this.published = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        // one more for the thread draining the ring
+        this.writerSequences = new AtomicLong[writers + 1];
+        for (int i = 0; i < writerSequences.length; i++) {
+            writerSequences[i] = new AtomicLong(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Returns the number of slots of the ring.
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Returns the number of notifications claimed but not taken yet.
+     */
+    public int size() {
+        return (int) Math.max(0, claimed.get() - taken.get());
+    }
+
+    /**
+     * Claims the next {@code n} slots, waiting for the writers to free
+     * them if the ring is full.  The slots are only claimed once free, so
+     * that a producer giving up leaves no gap in the sequences.
+     *
+     * @return the highest sequence claimed; the claimed range starts at
+     *      {@code n - 1} before it
+     * @throws IllegalStateException if the ring is closed
+     * @throws QueueFullException if the thread is interrupted while
+     *      waiting for free slots
+     */
+    public long claim(int n) {
+        if (n < 1 || n > slots.length) {
+            throw new IllegalArgumentException("Can't claim " + n + " slots out of " + slots.length);
+        }
+        int spins = 0;
+        while (true) {
+            long current = claimed.get();
+            long hi = current + n;
+            long wrapPoint = hi - slots.length;
+            if (wrapPoint > gatingCache) {
+                long min = minimumWriterSequence();
+                if (wrapPoint > min) {
+                    if (closed) {
+                        throw new IllegalStateException("ring buffer was closed");
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new QueueFullException("Interrupted while waiting for free slots in the ring");
+                    }
+                    idle(spins++);
+                    continue;
+                }
+                gatingCache = min;
+            }
+            if (claimed.compareAndSet(current, hi)) {
+                return hi;
+            }
+        }
+    }
+
+    /**
+     * Closes the ring: producers waiting for free slots give up.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Fills the slot of a claimed sequence.
+     */
+    public void set(long sequence, ApnsNotification notification) {
+        slots[(int) sequence & mask] = notification;
+    }
+
+    /**
+     * Publishes the slots of the claimed range {@code [lo, hi]} to the
+     * writers.
+     */
+    public void publish(long lo, long hi) {
+        for (long s = lo; s < hi; s++) {
+            published.lazySet((int) s & mask, round(s));
+        }
+        // a volatile write, so that a writer going to sleep either sees the
+        // range or is seen as sleeping below
+        published.set((int) hi & mask, round(hi));
+        if (sleepingWriters > 0) {
+            wakeWriters();
+        }
+    }
+
+    /**
+     * Takes up to {@code max} published notifications in sequence order,
+     * without blocking.
+     *
+     * @param writer    the index of the calling writer
+     * @return the number of notifications added to {@code out}
+     */
+    public int take(int writer, List<ApnsNotification> out, int max) {
+        AtomicLong sequence = writerSequences[writer];
+        while (true) {
+            long current = taken.get();
+            // keep the producers from overwriting the range until it is copied
+            sequence.set(current);
+            long start = current + 1;
+            long end = current;
+            long limit = current + max;
+            while (end < limit && isPublished(end + 1)) {
+                end++;
+            }
+            if (end == current) {
+                sequence.set(Long.MAX_VALUE);
+                return 0;
+            }
+            if (taken.compareAndSet(current, end)) {
+                for (long s = start; s <= end; s++) {
+                    int index = (int) s & mask;
+                    out.add(slots[index]);
+                    slots[index] = null;
+                }
+                sequence.set(Long.MAX_VALUE);
+                return (int) (end - current);
+            }
+        }
+    }
+
+    /**
+     * Takes up to {@code max} published notifications, waiting up to
+     * {@code timeout} nanoseconds for one to be published.
+     *
+     * @return the number of notifications added to {@code out}
+     */
+    public int take(int writer, List<ApnsNotification> out, int max, long timeout)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + timeout;
+        for (int spins = 0; ; spins++) {
+            int n = take(writer, out, max);
+            if (n > 0) {
+                return n;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return 0;
+            }
+            if (spins < SPINS) {
+                Thread.yield();
+                continue;
+            }
+            lock.lockInterruptibly();
+            try {
+                sleepingWriters++;
+                try {
+                    if (!isPublished(taken.get() + 1)) {
+                        notEmpty.awaitNanos(Math.min(remaining, MAX_SLEEP));
+                    }
+                } finally {
+                    sleepingWriters--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes every published notification, on behalf of a thread that is
+     * not a writer.
+     *
+     * @return the number of notifications added to {@code out}
+     */
+    public int drain(List<ApnsNotification> out) {
+        int total = 0;
+        int n;
+        while ((n = take(writerSequences.length - 1, out, slots.length)) > 0) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Wakes up the writers waiting for notifications.
+     */
+    public void wakeWriters() {
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == round(sequence);
+    }
+
+    private int round(long sequence) {
+        return (int) (sequence >>> indexShift);
+    }
+
+    private long minimumWriterSequence() {
+        // read taken first: a writer taking past it has already set its sequence
+        long min = taken.get();
+        for (AtomicLong sequence : writerSequences) {
+            min = Math.min(min, sequence.get());
+        }
+        return min;
+    }
+
+    private static void idle(int spins) {
+        if (spins < SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+    }
+}
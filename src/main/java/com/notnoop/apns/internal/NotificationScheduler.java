@@ -0,0 +1,335 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ScheduledNotification;
+
+/**
+ * Holds the notifications scheduled for a later delivery in a hierarchical
+ * timing wheel, and releases them to their service once due.
+ *
+ * The wheel has 4 levels of 256 buckets each: the first level holds the
+ * notifications due within the next 256 ticks, one bucket per tick, and
+ * each following level spans 256 times longer.  Scheduling and cancelling
+ * a notification link or unlink it from a bucket in constant time,
+ * whatever the number of pending notifications.  On every tick the due
+ * bucket is released in batches, and once a level completes a rotation,
+ * the next bucket of the level above is spread over it.
+ *
+ * With a journal, the scheduled notifications are journaled until they
+ * are released or cancelled, and rescheduled when the scheduler is
+ * created again.
+ */
+public class NotificationScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationScheduler.class);
+
+    public static final long DEFAULT_TICK = 100;
+
+    private static final int LEVEL_BITS = 8;
+    private static final int SLOTS = 1 << LEVEL_BITS;
+    private static final int LEVELS = 4;
+    private static final int RELEASE_BATCH = 1000;
+
+    private final long tick;
+    private final NotificationJournal journal;
+    private final Entry[][] wheel = new Entry[LEVELS][SLOTS];
+    private long currentTick;
+    private int size;
+
+    private AbstractApnsService target;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param tick      resolution of the delivery times, in milliseconds
+     * @param journal   journal of the scheduled notifications (may be null)
+     */
+    public NotificationScheduler(long tick, NotificationJournal journal) {
+        if (tick < 1) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        this.tick = tick;
+        this.journal = journal;
+        this.currentTick = System.currentTimeMillis() / tick;
+    }
+
+    /**
+     * Starts releasing the due notifications to {@code service}, which
+     * then schedules its notifications with this scheduler.  The journaled
+     * notifications are rescheduled first.
+     *
+     * @throws IllegalArgumentException if the service wasn't built by
+     *      {@link com.notnoop.apns.ApnsServiceBuilder}
+     */
+    public void attach(ApnsService service) {
+        if (!(service instanceof AbstractApnsService)) {
+            throw new IllegalArgumentException("Can't schedule the notifications of " + service);
+        }
+        AbstractApnsService target = (AbstractApnsService) service;
+        List<ApnsNotification> due = new ArrayList<ApnsNotification>();
+        synchronized (this) {
+            if (this.target != null) {
+                throw new IllegalStateException("scheduler already attached");
+            }
+            this.target = target;
+            if (journal != null) {
+                for (ApnsNotification notification : journal.replay()) {
+                    target.skipIdentifier(notification.getIdentifier());
+                    if (!link(new Entry(notification, journal.getDeliveryTime(notification)))) {
+                        due.add(notification);
+                    }
+                }
+            }
+            running = true;
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    advanceLoop();
+                }
+            }, "ApnsScheduler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        target.setScheduler(this);
+        if (!due.isEmpty()) {
+            release(due);
+        }
+    }
+
+    /**
+     * Schedules a notification for delivery at {@code sendAt}; a
+     * notification already due is released right away.
+     */
+    public ScheduledNotification schedule(ApnsNotification notification, Date sendAt) {
+        if (!running) {
+            throw new IllegalStateException("scheduler is stopped");
+        }
+        Entry entry = new Entry(notification, sendAt.getTime());
+        if (journal != null) {
+            journal.append(notification, entry.deliverAt);
+        }
+        boolean due;
+        synchronized (this) {
+            if (!running) {
+                // stopped while journaling: don't reschedule a rejected notification
+                if (journal != null) {
+                    journal.complete(notification);
+                }
+                throw new IllegalStateException("scheduler is stopped");
+            }
+            due = !link(entry);
+        }
+        if (due) {
+            List<ApnsNotification> now = new ArrayList<ApnsNotification>(1);
+            now.add(notification);
+            release(now);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the number of notifications waiting for their delivery time.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Stops releasing notifications.  The journaled notifications are
+     * rescheduled by the next scheduler using the same journal.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            notifyAll();
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Links an entry in the bucket of its delivery tick.
+     *
+     * @return false if the entry is already due
+     */
+    private boolean link(Entry entry) {
+        long delta = entry.tick - currentTick;
+        if (delta <= 0) {
+            return false;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (LEVEL_BITS * (level + 1))) {
+            level++;
+        }
+        long position = entry.tick >>> (LEVEL_BITS * level);
+        if (delta >= 1L << (LEVEL_BITS * LEVELS)) {
+            // beyond the wheel: park in the farthest bucket until it cascades
+            position = (currentTick >>> (LEVEL_BITS * level)) + SLOTS - 1;
+        }
+        int slot = (int) (position & (SLOTS - 1));
+        entry.level = level;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = wheel[level][slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        wheel[level][slot] = entry;
+        size++;
+        return true;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            wheel[entry.level][entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.level = -1;
+        size--;
+    }
+
+    private synchronized boolean cancel(Entry entry) {
+        if (entry.level < 0) {
+            return false;
+        }
+        unlink(entry);
+        if (journal != null) {
+            journal.complete(entry.notification);
+        }
+        return true;
+    }
+
+    /**
+     * Moves the wheel to the current time.
+     *
+     * @return the notifications that became due
+     */
+    synchronized List<ApnsNotification> advance(long now) {
+        List<ApnsNotification> due = new ArrayList<ApnsNotification>();
+        long target = now / tick;
+        while (currentTick < target) {
+            currentTick++;
+            // spread the next bucket of each level completing a rotation
+            int level = 1;
+            while (level < LEVELS && (currentTick & ((1L << (LEVEL_BITS * level)) - 1)) == 0) {
+                level++;
+            }
+            for (int l = level - 1; l >= 1; l--) {
+                int slot = (int) ((currentTick >>> (LEVEL_BITS * l)) & (SLOTS - 1));
+                Entry entry = wheel[l][slot];
+                wheel[l][slot] = null;
+                while (entry != null) {
+                    Entry next = entry.next;
+                    size--;
+                    if (!link(entry)) {
+                        entry.level = -1;
+                        due.add(entry.notification);
+                    }
+                    entry = next;
+                }
+            }
+            int slot = (int) (currentTick & (SLOTS - 1));
+            Entry entry = wheel[0][slot];
+            wheel[0][slot] = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                size--;
+                entry.level = -1;
+                entry.prev = null;
+                entry.next = null;
+                due.add(entry.notification);
+                entry = next;
+            }
+        }
+        return due;
+    }
+
+    private void advanceLoop() {
+        while (running) {
+            try {
+                long now = System.currentTimeMillis();
+                List<ApnsNotification> due = advance(now);
+                if (!due.isEmpty()) {
+                    release(due);
+                }
+                long sleep = tick - (System.currentTimeMillis() % tick);
+                synchronized (this) {
+                    if (running) {
+                        wait(Math.max(1, sleep));
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            } catch (RuntimeException e) {
+                logger.warn("Unexpected exception while releasing scheduled notifications", e);
+            }
+        }
+    }
+
+    private void release(List<ApnsNotification> due) {
+        for (int from = 0; from < due.size(); from += RELEASE_BATCH) {
+            List<ApnsNotification> batch = due.subList(from, Math.min(due.size(), from + RELEASE_BATCH));
+            try {
+                target.pushNotifications(batch);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to release " + batch.size() + " scheduled notifications", e);
+            }
+            if (journal != null) {
+                journal.complete(batch);
+            }
+        }
+    }
+
+    private class Entry implements ScheduledNotification {
+        final ApnsNotification notification;
+        final long deliverAt;
+        final long tick;
+        Entry prev;
+        Entry next;
+        int level = -1;
+        int slot;
+
+        Entry(ApnsNotification notification, long deliverAt) {
+            this.notification = notification;
+            this.deliverAt = deliverAt;
+            // round up, so that notifications are never sent early
+            this.tick = (deliverAt + NotificationScheduler.this.tick - 1) / NotificationScheduler.this.tick;
+        }
+
+        public ApnsNotification getNotification() {
+            return notification;
+        }
+
+        public Date getSendAt() {
+            return new Date(deliverAt);
+        }
+
+        public boolean cancel() {
+            return NotificationScheduler.this.cancel(this);
+        }
+
+        @Override
+        public String toString() {
+            return notification + " at " + getSendAt();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.notnoop.apns.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.PayloadCacheStatistics;
+
+/**
+ * Maps the payload strings pushed to their UTF-8 encoding, so that the
+ * notifications pushed with the same payload string share one encoded
+ * buffer rather than each encoding and copying it.
+ *
+ * The cache holds at most {@code maxEntries} payloads, evicting the least
+ * recently used.  The cached buffers are shared by the notifications and
+ * are never modified.
+ */
+public class PayloadCache implements PayloadCacheStatistics {
+
+    private final Map<String, byte[]> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PayloadCache(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Makes {@code service} encode its payload strings through this cache.
+     *
+     * @throws IllegalArgumentException if the service wasn't built by
+     *      {@link com.notnoop.apns.ApnsServiceBuilder}
+     */
+    public void attach(ApnsService service) {
+        if (!(service instanceof AbstractApnsService)) {
+            throw new IllegalArgumentException("Can't cache the payloads of " + service);
+        }
+        ((AbstractApnsService) service).setPayloadCache(this);
+    }
+
+    /**
+     * Returns the UTF-8 encoding of {@code payload}, shared with the other
+     * callers: the returned array must not be modified.
+     */
+    public byte[] encode(String payload) {
+        byte[] encoded;
+        synchronized (entries) {
+            encoded = entries.get(payload);
+        }
+        if (encoded != null) {
+            hits.incrementAndGet();
+            return encoded;
+        }
+        misses.incrementAndGet();
+        encoded = Utilities.toUTF8Bytes(payload);
+        synchronized (entries) {
+            // another thread may have encoded it meanwhile
+            byte[] existing = entries.get(payload);
+            if (existing != null) {
+                return existing;
+            }
+            entries.put(payload, encoded);
+        }
+        return encoded;
+    }
+
+    public long getPayloadCacheHits() {
+        return hits.get();
+    }
+
+    public long getPayloadCacheMisses() {
+        return misses.get();
+    }
+
+    public double getPayloadCacheHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getPayloadCacheEvictions() {
+        return evictions.get();
+    }
+
+    public int getPayloadCacheSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.notnoop.apns.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes payloads as UTF-8 JSON straight from the fields of a payload
+ * builder, without building a tree of maps for Jackson.
+ *
+ * The keys APNs defines are encoded once, strings are copied byte by byte
+ * while they are plain ASCII, and the payload is written to a buffer
+ * reused by each thread.  Jackson only serializes the custom field values
+ * other than strings, numbers, booleans, and collections, arrays or maps
+ * of these.
+ */
+public final class PayloadEncoder {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /** largest buffer kept for the next payload of a thread */
+    private static final int MAX_RETAINED = 16 * 1024;
+
+    private static final Map<String, byte[]> KEYS = new HashMap<String, byte[]>();
+    static {
+        for (String key : new String[] { "aps", "alert", "badge", "sound", "category",
+                "content-available", "url-args", "body", "title", "title-loc-key",
+                "title-loc-args", "action", "action-loc-key", "loc-key", "loc-args",
+                "launch-image" }) {
+            KEYS.put(key, Utilities.toUTF8Bytes("\"" + key + "\":"));
+        }
+    }
+    private static final byte[] APS = KEYS.get("aps");
+    private static final byte[] ALERT = KEYS.get("alert");
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+
+    private static final ThreadLocal<PayloadEncoder> encoders = new ThreadLocal<PayloadEncoder>() {
+        @Override
+        protected PayloadEncoder initialValue() {
+            return new PayloadEncoder();
+        }
+    };
+
+    private byte[] buffer = new byte[512];
+    private int length;
+
+    private PayloadEncoder() {
+    }
+
+    /**
+     * Returns the encoder of the current thread, reset.  The encoded
+     * payload must be copied out before the thread encodes another one.
+     */
+    public static PayloadEncoder get() {
+        PayloadEncoder encoder = encoders.get();
+        if (encoder.buffer.length > MAX_RETAINED) {
+            encoder.buffer = new byte[512];
+        }
+        encoder.length = 0;
+        return encoder;
+    }
+
+    /**
+     * Encodes a payload: {@code aps} holding the alert, followed by the
+     * custom fields of {@code root}.  The alert is the body alone when
+     * {@code customAlert} only has a body, the {@code customAlert}
+     * dictionary otherwise, and left out when it is empty.  With a null
+     * {@code aps}, only the custom fields are encoded.
+     *
+     * @return  this
+     */
+    public PayloadEncoder encode(Map<String, Object> root, Map<String, Object> aps,
+            Map<String, Object> customAlert) {
+        write('{');
+        boolean first = true;
+        if (aps != null) {
+            write(APS);
+            write('{');
+            boolean firstAps = true;
+            for (Map.Entry<String, Object> entry : aps.entrySet()) {
+                if (!firstAps) {
+                    write(',');
+                }
+                writeKey(entry.getKey());
+                writeValue(entry.getValue());
+                firstAps = false;
+            }
+            if (!customAlert.isEmpty()) {
+                if (!firstAps) {
+                    write(',');
+                }
+                write(ALERT);
+                if (customAlert.size() == 1 && customAlert.containsKey("body")) {
+                    writeValue(customAlert.get("body"));
+                } else {
+                    writeValue(customAlert);
+                }
+            }
+            write('}');
+            first = false;
+        }
+        for (Map.Entry<String, Object> entry : root.entrySet()) {
+            if (aps != null && "aps".equals(entry.getKey())) {
+                // replaced by the aps dictionary of the builder
+                continue;
+            }
+            if (!first) {
+                write(',');
+            }
+            writeKey(entry.getKey());
+            writeValue(entry.getValue());
+            first = false;
+        }
+        write('}');
+        return this;
+    }
+
+    /**
+     * Returns the length in bytes of the encoded payload.
+     */
+    public int length() {
+        return length;
+    }
+
+    public byte[] toBytes() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return new String(buffer, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the encoded length of a dictionary entry, key and colon
+     * included.
+     */
+    public static int entryLength(String key, Object value) {
+        return keyLength(key) + valueLength(value);
+    }
+
+    /**
+     * Returns the encoded length of a dictionary key, quotes and colon
+     * included.
+     */
+    public static int keyLength(String key) {
+        return Utilities.jsonEscapedLength(key) + 3;
+    }
+
+    /**
+     * Returns the encoded length of a dictionary whose entries take
+     * {@code entriesLength} bytes, commas excluded.
+     */
+    public static int objectLength(int entriesLength, int count) {
+        return 2 + entriesLength + Math.max(count - 1, 0);
+    }
+
+    /**
+     * Returns the encoded length of a value, as written by
+     * {@link #encode(Map, Map, Map)}.
+     */
+    public static int valueLength(Object value) {
+        if (value == null) {
+            return NULL.length;
+        } else if (value instanceof String) {
+            return Utilities.jsonEscapedLength((String) value) + 2;
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            return value.toString().length();
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? TRUE.length : FALSE.length;
+        } else if (value instanceof Collection) {
+            int length = 0;
+            for (Object element : (Collection<?>) value) {
+                length += valueLength(element);
+            }
+            return 2 + length + Math.max(((Collection<?>) value).size() - 1, 0);
+        } else if (value instanceof Object[]) {
+            return valueLength(Arrays.asList((Object[]) value));
+        } else if (value.getClass().isArray()
+                && !(value instanceof byte[]) && !(value instanceof char[])) {
+            int n = Array.getLength(value);
+            int length = 0;
+            for (int i = 0; i < n; i++) {
+                length += valueLength(Array.get(value, i));
+            }
+            return 2 + length + Math.max(n - 1, 0);
+        } else if (value instanceof Map && hasStringKeys((Map<?, ?>) value)) {
+            int length = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                length += entryLength((String) entry.getKey(), entry.getValue());
+            }
+            return objectLength(length, ((Map<?, ?>) value).size());
+        }
+        try {
+            return mapper.writeValueAsBytes(value).length;
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writeKey(String key) {
+        byte[] bytes = KEYS.get(key);
+        if (bytes != null) {
+            write(bytes);
+        } else {
+            writeString(key);
+            write(':');
+        }
+    }
+
+    private void writeValue(Object value) {
+        if (value == null) {
+            write(NULL);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            writeAscii(value.toString());
+        } else if (value instanceof Boolean) {
+            write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Collection) {
+            write('[');
+            boolean first = true;
+            for (Object element : (Collection<?>) value) {
+                if (!first) {
+                    write(',');
+                }
+                writeValue(element);
+                first = false;
+            }
+            write(']');
+        } else if (value instanceof Object[]) {
+            writeValue(Arrays.asList((Object[]) value));
+        } else if (value.getClass().isArray()
+                && !(value instanceof byte[]) && !(value instanceof char[])) {
+            write('[');
+            for (int i = 0; i < Array.getLength(value); i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                writeValue(Array.get(value, i));
+            }
+            write(']');
+        } else if (value instanceof Map && hasStringKeys((Map<?, ?>) value)) {
+            write('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    write(',');
+                }
+                writeString((String) entry.getKey());
+                write(':');
+                writeValue(entry.getValue());
+                first = false;
+            }
+            write('}');
+        } else {
+            try {
+                write(mapper.writeValueAsBytes(value));
+            } catch (final Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static boolean hasStringKeys(Map<?, ?> map) {
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeString(String s) {
+        int n = s.length();
+        ensure(n + 2);
+        buffer[length++] = '"';
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x20 || c >= 0x80 || c == '"' || c == '\\') {
+                // escaped or multi-byte characters from here on
+                String rest = s.substring(i);
+                ensure(Utilities.jsonEscapedLength(rest) + 1);
+                length = Utilities.writeJsonEscaped(rest, buffer, length);
+                break;
+            }
+            buffer[length++] = (byte) c;
+        }
+        buffer[length++] = '"';
+    }
+
+    private void writeAscii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void write(char c) {
+        ensure(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensure(int more) {
+        if (length + more > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+        }
+    }
+}
@@ -30,39 +30,91 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.ApnsQueueStatistics;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ExpiredApnsDelegate;
+import com.notnoop.apns.StopReport;
+import com.notnoop.exceptions.ApnsException;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.QueueFullException;
 
-public class QueuedApnsService extends AbstractApnsService {
+public class QueuedApnsService extends AbstractApnsService implements ApnsQueueStatistics {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueuedApnsService.class);
+
+    private static final long CONSUMER_WAKEUP = TimeUnit.MILLISECONDS.toNanos(100);
 
-	private static final Logger logger = LoggerFactory.getLogger(QueuedApnsService.class);
-	
     private ApnsService service;
-    private BlockingQueue<ApnsNotification> queue;
+    private NotificationQueue queue;
     private AtomicBoolean started = new AtomicBoolean(false);
+    private final ThreadFactory threadFactory;
+    private final Thread[] threads;
+    private final int batchSize;
+    private final NotificationJournal journal;
+    private final NotificationCoalescer coalescer;
+    private volatile boolean shouldContinue;
+    private volatile boolean draining;
+    private final AtomicLong sentCount = new AtomicLong();
 
     public QueuedApnsService(ApnsService service) {
         this(service, null);
     }
 
     public QueuedApnsService(ApnsService service, final ThreadFactory tf) {
-        super(null);
+        this(service, tf, new NotificationQueue(), 1, 1, null);
+    }
+
+    /**
+     * @param consumers number of threads sending the queued notifications
+     * @param batchSize maximum number of notifications a thread takes from
+     *                  the queue and writes to its connection at once
+     */
+    public QueuedApnsService(ApnsService service, final ThreadFactory tf, NotificationQueue queue,
+            int consumers, int batchSize, ApnsDelegate delegate) {
+        this(service, tf, queue, consumers, batchSize, delegate, null);
+    }
+
+    /**
+     * @param journal   journal of the queued notifications, replayed when
+     *                  the service starts (may be null)
+     */
+    public QueuedApnsService(ApnsService service, final ThreadFactory tf, NotificationQueue queue,
+            int consumers, int batchSize, ApnsDelegate delegate, NotificationJournal journal) {
+        this(service, tf, queue, consumers, batchSize, delegate, journal, null);
+    }
+
+    /**
+     * @param coalescer replaces the queued notifications superseded by
+     *                  newer ones (may be null)
+     */
+    public QueuedApnsService(ApnsService service, final ThreadFactory tf, NotificationQueue queue,
+            int consumers, int batchSize, ApnsDelegate delegate, NotificationJournal journal,
+            NotificationCoalescer coalescer) {
+        super(null, delegate);
         this.service = service;
-        this.queue = new LinkedBlockingQueue<ApnsNotification>();
+        this.queue = queue;
         this.threadFactory = tf == null ? Executors.defaultThreadFactory() : tf;
-        this.thread = null;
+        this.threads = new Thread[Math.max(1, consumers)];
+        this.batchSize = Math.max(1, batchSize);
+        this.journal = journal;
+        this.coalescer = coalescer;
     }
 
     @Override
@@ -70,12 +122,35 @@ public class QueuedApnsService extends AbstractApnsService {
         if (!started.get()) {
             throw new IllegalStateException("service hasn't be started or was closed");
         }
-        queue.add(msg);
+        if (journal != null) {
+            journal.append(msg);
+        }
+        ApnsNotification replaced = coalescer != null ? coalescer.offer(msg) : null;
+        if (replaced != null) {
+            // msg takes the place of the queued notification
+            complete(replaced);
+            return;
+        }
+        try {
+            offer(msg);
+        } catch (QueueFullException e) {
+            // notifications pushed meanwhile may have replaced msg
+            ApnsNotification latest = release(msg);
+            complete(latest);
+            delegate.messageSendFailed(latest, e);
+            throw e;
+        }
     }
 
-    private final ThreadFactory threadFactory;
-    private Thread thread;
-    private volatile boolean shouldContinue;
+    private void offer(ApnsNotification msg) {
+        ApnsNotification dropped = queue.offer(msg);
+        if (dropped != null) {
+            dropped = release(dropped);
+            complete(dropped);
+            delegate.messageSendFailed(dropped,
+                    new QueueFullException("Dropped from the full queue to make room for " + msg.getIdentifier()));
+        }
+    }
 
     public void start() {
         if (started.getAndSet(true)) {
@@ -87,31 +162,183 @@ public class QueuedApnsService extends AbstractApnsService {
 
         service.start();
         shouldContinue = true;
-        thread = threadFactory.newThread(new Runnable() {
-            public void run() {
-                while (shouldContinue) {
-                    try {
-                        ApnsNotification msg = queue.take();
-                        service.push(msg);
-                    } catch (InterruptedException e) {
-                    	// ignore
-                    } catch (NetworkIOException e) {
-                    	// ignore: failed connect...
-                    } catch (Exception e) {
-                    	// weird if we reached here - something wrong is happening, but we shouldn't stop the service anyway!
-                    	logger.warn("Unexpected message caught... Shouldn't be here", e);
+        draining = false;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = threadFactory.newThread(new Runnable() {
+                public void run() {
+                    List<ApnsNotification> batch = new ArrayList<ApnsNotification>(batchSize);
+                    List<ApnsNotification> expired = new ArrayList<ApnsNotification>();
+                    while (shouldContinue) {
+                        try {
+                            batch.clear();
+                            expired.clear();
+                            if (!queue.take(batch, batchSize, expired, CONSUMER_WAKEUP)) {
+                                if (draining) {
+                                    // the queue is empty and takes no more notifications
+                                    return;
+                                }
+                                continue;
+                            }
+                            release(batch);
+                            release(expired);
+                            recheckExpiry(batch, expired);
+                            reportExpired(expired);
+                            try {
+                                send(batch);
+                            } catch (ApnsException e) {
+                                // the rest stays pending, and is replayed once restarted
+                                complete(batch.subList(0, e.getAccepted()));
+                                throw e;
+                            }
+                            complete(batch);
+                        } catch (InterruptedException e) {
+                            // ignore
+                        } catch (NetworkIOException e) {
+                            // ignore: failed connect...
+                        } catch (Exception e) {
+                            // weird if we reached here - something wrong is happening, but we shouldn't stop the service anyway!
+                            logger.warn("Unexpected message caught... Shouldn't be here", e);
+                        }
                     }
                 }
+            });
+            threads[i].start();
+        }
+        // replay once the consumers run, the journal may hold more than the queue
+        if (journal != null) {
+            for (ApnsNotification msg : journal.replay()) {
+                skipIdentifier(msg.getIdentifier());
+                try {
+                    offer(msg);
+                } catch (QueueFullException e) {
+                    complete(msg);
+                    delegate.messageSendFailed(msg, e);
+                }
+            }
+        }
+    }
+
+    private ApnsNotification release(ApnsNotification msg) {
+        return coalescer != null ? coalescer.release(msg) : msg;
+    }
+
+    private void release(List<ApnsNotification> batch) {
+        if (coalescer != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                batch.set(i, coalescer.release(batch.get(i)));
             }
-        });
-        thread.start();
+        }
+    }
+
+    /**
+     * The queue drops the queued notifications that expired, while a
+     * coalesced notification is sent as its newest replacement: once
+     * released, the replacements are checked again.
+     */
+    private void recheckExpiry(List<ApnsNotification> batch, List<ApnsNotification> expired) {
+        if (coalescer == null || !queue.dropsExpired()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Iterator<ApnsNotification> it = expired.iterator(); it.hasNext();) {
+            ApnsNotification msg = it.next();
+            if (!NotificationQueue.isExpired(msg, now)) {
+                it.remove();
+                batch.add(msg);
+            }
+        }
+        for (Iterator<ApnsNotification> it = batch.iterator(); it.hasNext();) {
+            ApnsNotification msg = it.next();
+            if (NotificationQueue.isExpired(msg, now)) {
+                it.remove();
+                expired.add(msg);
+            }
+        }
+    }
+
+    private void complete(ApnsNotification msg) {
+        if (journal != null) {
+            journal.complete(msg);
+        }
+    }
+
+    private void complete(List<ApnsNotification> batch) {
+        if (journal != null) {
+            journal.complete(batch);
+        }
+    }
+
+    private void reportExpired(List<ApnsNotification> expired) {
+        complete(expired);
+        if (delegate instanceof ExpiredApnsDelegate) {
+            for (ApnsNotification msg : expired) {
+                ((ExpiredApnsDelegate) delegate).messageExpired(msg);
+            }
+        }
+    }
+
+    private void send(List<ApnsNotification> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (batch.size() > 1) {
+            // a service writing to a connection writes the whole batch at once
+            service.pushAll(batch);
+            sentCount.addAndGet(batch.size());
+        } else {
+            service.push(batch.get(0));
+            sentCount.incrementAndGet();
+        }
     }
 
     public void stop() {
+        stopScheduler();
         started.set(false);
         shouldContinue = false;
-        thread.interrupt();
+        for (Thread thread : threads) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
         service.stop();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Stops taking notifications, and lets the consumers send the queued
+     * ones until the queue is empty or the timeout expires.  The
+     * notifications still queued are then reported as abandoned; with a
+     * journal, they are replayed by the next service using it.
+     */
+    @Override
+    public StopReport stop(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        stopScheduler();
+        started.set(false);
+        long sentBefore = sentCount.get();
+        draining = true;
+        for (Thread thread : threads) {
+            long remaining = deadline - System.nanoTime();
+            if (thread == null || remaining <= 0) {
+                continue;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        long sent = sentCount.get() - sentBefore;
+        List<ApnsNotification> abandoned = queue.drain();
+        release(abandoned);
+        if (sent > 0) {
+            awaitErrorWindow(deadline);
+        }
+        stop();
+        return new StopReport(sent, abandoned);
     }
 
     @Override
@@ -123,4 +350,48 @@ public class QueuedApnsService extends AbstractApnsService {
         service.testConnection();
     }
 
+    public int getQueueDepth() {
+        return queue.getQueueDepth();
+    }
+
+    public int getQueueDepth(Priority priority) {
+        return queue.getQueueDepth(priority);
+    }
+
+    public int getQueueCapacity() {
+        return queue.getQueueCapacity();
+    }
+
+    public double getAverageWaitTime() {
+        return queue.getAverageWaitTime();
+    }
+
+    public double getAverageWaitTime(Priority priority) {
+        return queue.getAverageWaitTime(priority);
+    }
+
+    public long getMaxWaitTime() {
+        return queue.getMaxWaitTime();
+    }
+
+    public long getMaxWaitTime(Priority priority) {
+        return queue.getMaxWaitTime(priority);
+    }
+
+    public long getDequeuedCount() {
+        return queue.getDequeuedCount();
+    }
+
+    public long getRejectedCount() {
+        return queue.getRejectedCount();
+    }
+
+    public long getDroppedCount() {
+        return queue.getDroppedCount();
+    }
+
+    public long getExpiredCount() {
+        return queue.getExpiredCount();
+    }
+
 }
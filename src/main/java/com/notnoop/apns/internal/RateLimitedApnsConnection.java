@@ -0,0 +1,100 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.RateLimiter;
+import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.RateLimitExceededException;
+
+/**
+ * Limits the rate of the notifications sent through the wrapped connection.
+ *
+ * When {@code perConnection} is set, each copy of the connection gets its
+ * own copy of the limiter, otherwise all the copies share the same one.
+ *
+ * A limiter rejecting part of a collection of notifications lets the
+ * notifications that fit under the limit through, and rejects the rest,
+ * so that a collection larger than the bucket is never rejected as a
+ * whole.
+ */
+public class RateLimitedApnsConnection implements ApnsConnection {
+    private final ApnsConnection connection;
+    private final RateLimiter limiter;
+    private final boolean perConnection;
+    private final ApnsDelegate delegate;
+
+    public RateLimitedApnsConnection(ApnsConnection connection, RateLimiter limiter, boolean perConnection) {
+        this(connection, limiter, perConnection, null);
+    }
+
+    /**
+     * @param delegate  told about the notifications the limiter rejects
+     *                  (may be null)
+     */
+    public RateLimitedApnsConnection(ApnsConnection connection, RateLimiter limiter, boolean perConnection,
+            ApnsDelegate delegate) {
+        this.connection = connection;
+        this.limiter = limiter;
+        this.perConnection = perConnection;
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+    }
+
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
+        try {
+            limiter.acquire(m.length());
+        } catch (RateLimitExceededException e) {
+            delegate.messageSendFailed(m, e);
+            throw e;
+        }
+        connection.sendMessage(m);
+    }
+
+    public void sendMessages(Collection<ApnsNotification> messages) throws NetworkIOException {
+        List<ApnsNotification> acquired = new ArrayList<ApnsNotification>(messages.size());
+        try {
+            for (ApnsNotification m : messages) {
+                limiter.acquire(m.length());
+                acquired.add(m);
+            }
+        } catch (RateLimitExceededException e) {
+            // send the notifications that fit, and reject the rest
+            if (!acquired.isEmpty()) {
+                connection.sendMessages(acquired);
+            }
+            e.setAccepted(acquired.size());
+            int i = 0;
+            for (ApnsNotification m : messages) {
+                if (i++ >= acquired.size()) {
+                    delegate.messageSendFailed(m, e);
+                }
+            }
+            throw e;
+        }
+        connection.sendMessages(messages);
+    }
+
+    public void testConnection() throws NetworkIOException {
+        connection.testConnection();
+    }
+
+    public ApnsConnection copy() {
+        return new RateLimitedApnsConnection(connection.copy(),
+                perConnection ? limiter.copy() : limiter, perConnection, delegate);
+    }
+
+    public void close() {
+        Utilities.close(connection);
+    }
+
+    public void setCacheLength(int cacheLength) {
+        connection.setCacheLength(cacheLength);
+    }
+
+    public int getCacheLength() {
+        return connection.getCacheLength();
+    }
+}
@@ -30,6 +30,10 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.notnoop.apns.ReconnectPolicy;
 
 public final class ReconnectPolicies {
@@ -64,4 +68,83 @@ public final class ReconnectPolicies {
             return new EveryHalfHour();
         }
     }
+
+    /**
+     * Reconnects every {@code period} milliseconds, but spreads the
+     * reconnections of all the copies of the policy over the period.
+     *
+     * Copies share a schedule: the n-th copy gets its first reconnection
+     * offset by a low-discrepancy fraction of the period, and every
+     * reconnection gets a random jitter, so the members of a pool never
+     * come due together.  The shared schedule additionally lets only one
+     * copy reconnect within {@code minimumGap} milliseconds, making pool
+     * reconnections rolling.
+     */
+    public static class Staggered implements ReconnectPolicy {
+        private static final long PERIOD = 30 * 60 * 1000;
+        private static final long JITTER = 60 * 1000;
+        private static final long MINIMUM_GAP = 10 * 1000;
+        private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+
+        private final Schedule schedule;
+        private final long period;
+        private final long jitter;
+        private final long firstOffset;
+        private long nextReconnect = Long.MAX_VALUE;
+
+        public Staggered() {
+            this(PERIOD, JITTER, MINIMUM_GAP);
+        }
+
+        public Staggered(long period, long jitter, long minimumGap) {
+            this(new Schedule(minimumGap), period, jitter);
+        }
+
+        private Staggered(Schedule schedule, long period, long jitter) {
+            this.schedule = schedule;
+            this.period = period;
+            this.jitter = jitter;
+            int slot = schedule.slots.getAndIncrement();
+            double fraction = (slot * GOLDEN_RATIO_FRACTION) % 1.0;
+            this.firstOffset = slot == 0 ? period : (long) (period * fraction);
+        }
+
+        public synchronized boolean shouldReconnect() {
+            long now = System.currentTimeMillis();
+            return now >= nextReconnect && schedule.tryAcquire(now);
+        }
+
+        public synchronized void reconnected() {
+            long offset = nextReconnect == Long.MAX_VALUE ? firstOffset : period;
+            nextReconnect = System.currentTimeMillis() + offset + schedule.jitter(jitter);
+        }
+
+        public Staggered copy() {
+            return new Staggered(schedule, period, jitter);
+        }
+
+        synchronized long getNextReconnect() {
+            return nextReconnect;
+        }
+
+        private static class Schedule {
+            private final AtomicInteger slots = new AtomicInteger();
+            private final AtomicLong lastReconnect = new AtomicLong();
+            private final Random random = new Random();
+            private final long minimumGap;
+
+            Schedule(long minimumGap) {
+                this.minimumGap = minimumGap;
+            }
+
+            boolean tryAcquire(long now) {
+                long last = lastReconnect.get();
+                return now - last >= minimumGap && lastReconnect.compareAndSet(last, now);
+            }
+
+            synchronized long jitter(long jitter) {
+                return jitter <= 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * jitter);
+            }
+        }
+    }
 }
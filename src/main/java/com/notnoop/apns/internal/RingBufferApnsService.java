@@ -0,0 +1,238 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.StopReport;
+import com.notnoop.exceptions.ApnsException;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Sends the notifications through a preallocated {@link NotificationRingBuffer}
+ * rather than a blocking queue.
+ *
+ * Pushing a notification claims a slot of the ring and returns; a
+ * collection of notifications claims all its slots at once.  Every writer
+ * thread owns a connection (the first one uses the given connection, the
+ * others {@link ApnsConnection#copy() copies} of it), takes the longest
+ * contiguous range of notifications published in the ring, and writes it
+ * to its connection at once.
+ */
+public class RingBufferApnsService extends AbstractApnsService {
+	private static final Logger logger = LoggerFactory.getLogger(RingBufferApnsService.class);
+
+	private static final long WRITER_WAKEUP = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final ApnsConnection prototype;
+	private final NotificationRingBuffer ring;
+	private final int batchSize;
+	private final ThreadFactory threadFactory;
+	private final Thread[] writers;
+	private final ApnsConnection[] connections;
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	private volatile boolean shouldContinue;
+	private volatile boolean draining;
+	private final AtomicLong sentCount = new AtomicLong();
+
+	/**
+	 * @param ringSize      number of slots of the ring
+	 * @param writers       number of writer threads, each with its own
+	 *                      connection
+	 * @param batchSize     maximum number of notifications written at once
+	 */
+	public RingBufferApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback,
+			int ringSize, int writers, int batchSize, ThreadFactory tf) {
+		this(prototype, feedback, ringSize, writers, batchSize, tf, null);
+	}
+
+	/**
+	 * @param delegate      told about the notifications the ring rejects
+	 *                      (may be null)
+	 */
+	public RingBufferApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback,
+			int ringSize, int writers, int batchSize, ThreadFactory tf, ApnsDelegate delegate) {
+		super(feedback, delegate);
+		if (writers < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("writers and batchSize must be positive");
+		}
+		this.prototype = prototype;
+		this.ring = new NotificationRingBuffer(ringSize, writers);
+		this.batchSize = Math.min(batchSize, ring.getCapacity());
+		this.threadFactory = tf == null ? Executors.defaultThreadFactory() : tf;
+		this.writers = new Thread[writers];
+		this.connections = new ApnsConnection[writers];
+	}
+
+	@Override
+	public void push(ApnsNotification message) throws NetworkIOException {
+		checkStarted();
+		long sequence;
+		try {
+			sequence = ring.claim(1);
+		} catch (ApnsException e) {
+			delegate.messageSendFailed(message, e);
+			throw e;
+		}
+		ring.set(sequence, message);
+		ring.publish(sequence, sequence);
+	}
+
+	@Override
+	protected void pushNotifications(List<ApnsNotification> messages) throws NetworkIOException {
+		checkStarted();
+		int chunk = Math.max(1, ring.getCapacity() / 2);
+		for (int from = 0; from < messages.size(); from += chunk) {
+			int n = Math.min(chunk, messages.size() - from);
+			long hi;
+			try {
+				hi = ring.claim(n);
+			} catch (ApnsException e) {
+				e.setAccepted(from);
+				rejected(messages, from, e);
+				throw e;
+			}
+			long lo = hi - n + 1;
+			for (int i = 0; i < n; i++) {
+				ring.set(lo + i, messages.get(from + i));
+			}
+			ring.publish(lo, hi);
+		}
+	}
+
+	private void checkStarted() {
+		if (!started.get()) {
+			throw new IllegalStateException("service hasn't be started or was closed");
+		}
+	}
+
+	/**
+	 * Returns the number of notifications waiting in the ring.
+	 */
+	public int getQueueDepth() {
+		return ring.size();
+	}
+
+	/**
+	 * Returns the number of slots of the ring.
+	 */
+	public int getQueueCapacity() {
+		return ring.getCapacity();
+	}
+
+	public void start() {
+		if (started.getAndSet(true)) {
+			return;
+		}
+		shouldContinue = true;
+		draining = false;
+		for (int i = 0; i < writers.length; i++) {
+			connections[i] = i == 0 ? prototype : prototype.copy();
+			writers[i] = threadFactory.newThread(new Writer(i, connections[i]));
+			writers[i].start();
+		}
+	}
+
+	public void stop() {
+		stopScheduler();
+		started.set(false);
+		shouldContinue = false;
+		ring.close();
+		ring.wakeWriters();
+		for (Thread writer : writers) {
+			if (writer != null) {
+				writer.interrupt();
+			}
+		}
+		for (ApnsConnection connection : connections) {
+			Utilities.close(connection);
+		}
+	}
+
+	/**
+	 * Stops taking notifications and lets the writers send the ones left in
+	 * the ring until {@code timeout}; the notifications still in the ring
+	 * then are abandoned.
+	 */
+	@Override
+	public StopReport stop(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		stopScheduler();
+		started.set(false);
+		ring.close();
+		long sentBefore = sentCount.get();
+		draining = true;
+		ring.wakeWriters();
+		for (Thread writer : writers) {
+			long remaining = deadline - System.nanoTime();
+			if (writer == null || remaining <= 0) {
+				continue;
+			}
+			try {
+				TimeUnit.NANOSECONDS.timedJoin(writer, remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		long sent = sentCount.get() - sentBefore;
+		List<ApnsNotification> abandoned = new ArrayList<ApnsNotification>();
+		ring.drain(abandoned);
+		if (sent > 0) {
+			awaitErrorWindow(deadline);
+		}
+		stop();
+		return new StopReport(sent, abandoned);
+	}
+
+	public void testConnection() throws NetworkIOException {
+		prototype.testConnection();
+	}
+
+	private class Writer implements Runnable {
+		private final int index;
+		private final ApnsConnection connection;
+
+		Writer(int index, ApnsConnection connection) {
+			this.index = index;
+			this.connection = connection;
+		}
+
+		public void run() {
+			List<ApnsNotification> batch = new ArrayList<ApnsNotification>(batchSize);
+			while (shouldContinue) {
+				try {
+					batch.clear();
+					if (ring.take(index, batch, batchSize, WRITER_WAKEUP) == 0) {
+						if (draining) {
+							// the ring is empty and takes no more notifications
+							return;
+						}
+						continue;
+					}
+					if (batch.size() == 1) {
+						connection.sendMessage(batch.get(0));
+					} else {
+						connection.sendMessages(batch);
+					}
+					sentCount.addAndGet(batch.size());
+				} catch (InterruptedException e) {
+					// ignore
+				} catch (NetworkIOException e) {
+					// ignore: failed connect...
+				} catch (Exception e) {
+					logger.warn("Unexpected exception while writing notifications", e);
+				}
+			}
+		}
+	}
+}
@@ -257,7 +257,7 @@ public final class Utilities {
         }
     }
 
-    public static void sleep(final int delay) {
+    public static void sleep(final long delay) {
         try {
             Thread.sleep(delay);
         } catch (final InterruptedException e1) {
@@ -334,4 +334,124 @@ public final class Utilities {
         return s;
     }
 
+    /**
+     * Returns the length of {@code s} once escaped as a JSON string, the
+     * way Jackson writes it, and encoded in UTF-8; without the quotes.
+     */
+    public static int jsonEscapedLength(final CharSequence s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final int more = jsonEscapedLength(s, i);
+            if (more == 4) {
+                // surrogate pair
+                i++;
+            }
+            length += more;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the longest prefix of {@code s} whose length once escaped as
+     * a JSON string and encoded in UTF-8 is at most {@code maxBytes},
+     * without splitting a surrogate pair.
+     */
+    public static String truncateWhenJsonEscaped(final String s, final int maxBytes) {
+        int b = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final int more = jsonEscapedLength(s, i);
+            if (b + more > maxBytes) {
+                return s.substring(0, i);
+            }
+            b += more;
+            if (more == 4) {
+                i++;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Returns the escaped length of the character at {@code i}, 4 for a
+     * surrogate pair.
+     */
+    private static int jsonEscapedLength(final CharSequence s, final int i) {
+        final char c = s.charAt(i);
+        if (c < 0x20) {
+            return shortEscape(c) != 0 ? 2 : 6;
+        } else if (c == '"' || c == '\\') {
+            return 2;
+        } else if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            return 4;
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            // unpaired surrogates are replaced like String.getBytes does
+            return 1;
+        }
+        return 3;
+    }
+
+    /**
+     * Writes {@code s} escaped as a JSON string and encoded in UTF-8 at
+     * {@code offset} of {@code out}, which must hold
+     * {@link #jsonEscapedLength(CharSequence)} bytes.
+     *
+     * @return the offset following the written bytes
+     */
+    public static int writeJsonEscaped(final CharSequence s, final byte[] out, int offset) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x20) {
+                out[offset++] = '\\';
+                final char escape = shortEscape(c);
+                if (escape != 0) {
+                    out[offset++] = (byte) escape;
+                } else {
+                    out[offset++] = 'u';
+                    out[offset++] = '0';
+                    out[offset++] = '0';
+                    out[offset++] = (byte) base[c >> 4];
+                    out[offset++] = (byte) base[c & 0xf];
+                }
+            } else if (c == '"' || c == '\\') {
+                out[offset++] = '\\';
+                out[offset++] = (byte) c;
+            } else if (c < 0x80) {
+                out[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                out[offset++] = (byte) (0xc0 | c >> 6);
+                out[offset++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[offset++] = (byte) (0xf0 | cp >> 18);
+                out[offset++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                out[offset++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                out[offset++] = (byte) (0x80 | cp & 0x3f);
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                out[offset++] = '?';
+            } else {
+                out[offset++] = (byte) (0xe0 | c >> 12);
+                out[offset++] = (byte) (0x80 | c >> 6 & 0x3f);
+                out[offset++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return offset;
+    }
+
+    private static char shortEscape(final char c) {
+        switch (c) {
+            case '\b': return 'b';
+            case '\t': return 't';
+            case '\n': return 'n';
+            case '\f': return 'f';
+            case '\r': return 'r';
+            default: return 0;
+        }
+    }
+
 }
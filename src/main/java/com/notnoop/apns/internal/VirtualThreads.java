@@ -0,0 +1,82 @@
+package com.notnoop.apns.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates virtual threads when running on Java 21 or later.
+ *
+ * The library is compiled for Java 1.6, so the virtual thread builder is
+ * looked up reflectively; on older runtimes {@link #isSupported()} returns
+ * {@code false} and platform threads keep being used.
+ */
+public final class VirtualThreads {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            // previews of Java 19 and 20 throw unless enabled
+            ofVirtual.invoke(null);
+        } catch (Exception e) {
+            logger.debug("Virtual threads are not supported", e);
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() { throw new AssertionError("Uninstantiable class"); }
+
+    /**
+     * Returns {@code true} if the runtime supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns a factory of virtual threads named {@code prefix} followed by
+     * a counter, or a factory of daemon platform threads if the runtime
+     * doesn't support virtual threads.
+     */
+    public static ThreadFactory newThreadFactory(final String prefix) {
+        if (isSupported()) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L);
+                return (ThreadFactory) FACTORY.invoke(builder);
+            } catch (Exception e) {
+                logger.warn("Couldn't create virtual thread factory", e);
+            }
+        } else {
+            logger.warn("Virtual threads require Java 21, using platform threads instead");
+        }
+        return new ThreadFactory() {
+            private final ThreadFactory wrapped = Executors.defaultThreadFactory();
+            private final AtomicInteger threadId = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r) {
+                Thread result = wrapped.newThread(r);
+                result.setName(prefix + threadId.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        };
+    }
+}
@@ -37,9 +37,24 @@ package com.notnoop.exceptions;
 public abstract class ApnsException extends RuntimeException {
     private static final long serialVersionUID = -4756693306121825229L;
 
+    private int accepted;
+
     public ApnsException()                      { super(); }
     public ApnsException(String message)        { super(message); }
     public ApnsException(Throwable cause)       { super(cause); }
     public ApnsException(String m, Throwable c) { super(m, c); }
 
+    /**
+     * Returns the number of notifications of a collection that were taken
+     * before the failure: only the notifications following them were
+     * rejected.
+     */
+    public int getAccepted() {
+        return accepted;
+    }
+
+    public void setAccepted(int accepted) {
+        this.accepted = accepted;
+    }
+
 }
@@ -0,0 +1,157 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.notnoop.apns.internal.ApnsConnection;
+import com.notnoop.apns.internal.ApnsServiceImpl;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.exceptions.NetworkIOException;
+
+public class ApnsCampaignTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int AUDIENCE = 2500;
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private DeviceTokenFile audience;
+    private File checkpoint;
+    private ApnsCampaign campaign;
+    private int stopAfter = Integer.MAX_VALUE;
+    private int failAt = Integer.MAX_VALUE;
+
+    private final ApnsService service = new ApnsServiceImpl(new ApnsConnection() {
+        public void sendMessage(ApnsNotification m) {
+            if (sent.size() == failAt) {
+                failAt = Integer.MAX_VALUE;
+                throw new NetworkIOException("outage");
+            }
+            sent.add(Utilities.encodeHex(m.getDeviceToken()));
+            if (sent.size() == stopAfter) {
+                campaign.stop();
+            }
+        }
+        public void sendMessages(Collection<ApnsNotification> messages) {
+            for (ApnsNotification m : messages) {
+                sendMessage(m);
+            }
+        }
+        public void testConnection() throws NetworkIOException {
+        }
+        public ApnsConnection copy() {
+            return this;
+        }
+        public void setCacheLength(int cacheLength) {
+        }
+        public int getCacheLength() {
+            return 0;
+        }
+        public void close() {
+        }
+    }, null);
+
+    @Before
+    public void writeAudience() throws IOException {
+        File file = folder.newFile("audience.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < AUDIENCE; i++) {
+                byte[] token = new byte[DeviceTokenFile.TOKEN_LENGTH];
+                token[0] = (byte) (i >> 8);
+                token[1] = (byte) i;
+                out.write(token);
+            }
+        } finally {
+            out.close();
+        }
+        audience = new DeviceTokenFile(file, DeviceTokenFile.Format.BINARY);
+        checkpoint = new File(folder.getRoot(), "campaign.checkpoint");
+    }
+
+    private ApnsCampaign newCampaign(long errorWindow) {
+        campaign = new ApnsCampaign(service, audience, "{}".getBytes(), checkpoint, errorWindow, 0);
+        return campaign;
+    }
+
+    @Test
+    public void completeCampaign() {
+        BulkPushResult result = newCampaign(0).run();
+        assertEquals(AUDIENCE, result.getPushed());
+        assertTrue(campaign.isCompleted());
+        assertEquals(AUDIENCE, new HashSet<String>(sent).size());
+
+        // nothing left to send
+        assertEquals(0, newCampaign(0).run().getPushed());
+        assertEquals(AUDIENCE, sent.size());
+    }
+
+    @Test
+    public void resumeFromCheckpoint() {
+        stopAfter = 1500;
+        newCampaign(0).run();
+        // the chunk being pushed is completed
+        assertEquals(2000, sent.size());
+        assertFalse(campaign.isCompleted());
+        assertEquals(2000 * DeviceTokenFile.TOKEN_LENGTH, campaign.getCheckpoint());
+
+        stopAfter = Integer.MAX_VALUE;
+        BulkPushResult result = newCampaign(0).run();
+        assertEquals(500, result.getPushed());
+        assertEquals(AUDIENCE, sent.size());
+        assertEquals(AUDIENCE, new HashSet<String>(sent).size());
+    }
+
+    @Test
+    public void checkpointOnlyPastErrorWindow() {
+        stopAfter = 1500;
+        newCampaign(60 * 60 * 1000).run();
+        assertEquals(0, campaign.getCheckpoint());
+        assertEquals(0, newCampaign(0).getCheckpoint());
+    }
+
+    @Test
+    public void resumeBeforeRejectedChunk() {
+        failAt = 1500;
+        BulkPushResult result = newCampaign(0).run();
+        assertEquals(1000, result.getPushed());
+        assertEquals(1000, result.getFailed());
+        assertFalse(campaign.isCompleted());
+        assertEquals(1000 * DeviceTokenFile.TOKEN_LENGTH, campaign.getCheckpoint());
+
+        result = newCampaign(0).run();
+        assertEquals(1500, result.getPushed());
+        assertTrue(campaign.isCompleted());
+        assertEquals(AUDIENCE, new HashSet<String>(sent).size());
+    }
+
+    @Test
+    public void reportProgress() {
+        stopAfter = 1500;
+        newCampaign(0).run();
+
+        stopAfter = Integer.MAX_VALUE;
+        BulkProgress progress = new BulkProgress();
+        newCampaign(0).withProgress(progress).run();
+        assertEquals(500, progress.getTotal());
+        assertEquals(500, progress.getQueued());
+        assertEquals(0, progress.getFailed());
+        assertEquals(0, progress.getEta());
+    }
+}
@@ -0,0 +1,148 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.internal.ApnsConnection;
+import com.notnoop.apns.internal.ApnsServiceImpl;
+import com.notnoop.apns.internal.NotificationQueue;
+import com.notnoop.apns.internal.QueuedApnsService;
+
+public class ApnsSubscriberTest {
+
+    // the shape of java.util.concurrent.Flow and org.reactivestreams
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription s);
+        void onNext(T t);
+        void onError(Throwable t);
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+        void cancel();
+    }
+
+    static class Demand implements Subscription {
+        final AtomicLong requested = new AtomicLong();
+        volatile boolean cancelled;
+
+        public void request(long n) {
+            requested.addAndGet(n);
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final ApnsNotification notification = new ApnsNotification(1,
+            ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}", Priority.SEND_IMMEDIATELY);
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void requestOneAtATimeFromSynchronousService() {
+        ApnsConnection connection = mock(ApnsConnection.class);
+        ApnsSubscriber apnsSubscriber = new ApnsSubscriber(new ApnsServiceImpl(connection, null));
+        Subscriber<ApnsNotification> subscriber = apnsSubscriber.as(Subscriber.class);
+        Demand demand = new Demand();
+
+        subscriber.onSubscribe(demand);
+        assertEquals(1, demand.requested.get());
+        subscriber.onNext(notification);
+        subscriber.onNext(notification);
+        assertEquals(3, demand.requested.get());
+        subscriber.onComplete();
+
+        verify(connection, times(2)).sendMessage(notification);
+        assertEquals(2, apnsSubscriber.getPushed());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void serializeCallsOfSynchronousPublisher() {
+        ApnsConnection connection = mock(ApnsConnection.class);
+        ApnsSubscriber apnsSubscriber = new ApnsSubscriber(new ApnsServiceImpl(connection, null));
+        final Subscriber<ApnsNotification> subscriber = apnsSubscriber.as(Subscriber.class);
+        // emits from within request, like a publisher of an in-memory list
+        Subscription publisher = new Subscription() {
+            int depth;
+            int emitted;
+
+            public void request(long n) {
+                assertEquals(0, depth++);
+                for (long i = 0; i < n && emitted < 1000; i++) {
+                    emitted++;
+                    subscriber.onNext(notification);
+                }
+                depth--;
+            }
+
+            public void cancel() {
+                assertEquals(0, depth);
+            }
+        };
+
+        subscriber.onSubscribe(publisher);
+
+        assertEquals(1000, apnsSubscriber.getPushed());
+        apnsSubscriber.cancel();
+    }
+
+    @Test(timeout = 10000)
+    @SuppressWarnings("unchecked")
+    public void requestWithinQueueCapacity() throws InterruptedException {
+        final Semaphore writable = new Semaphore(0);
+        ApnsConnection connection = mock(ApnsConnection.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                writable.acquire();
+                return null;
+            }
+        }).when(connection).sendMessage(any(ApnsNotification.class));
+        QueuedApnsService service = new QueuedApnsService(new ApnsServiceImpl(connection, null), null,
+                new NotificationQueue(4, QueueOverflowPolicy.REJECT, 0), 1, 1, null);
+        service.start();
+        ApnsSubscriber apnsSubscriber = new ApnsSubscriber(service);
+        Subscriber<ApnsNotification> subscriber = apnsSubscriber.as(Subscriber.class);
+        Demand demand = new Demand();
+
+        subscriber.onSubscribe(demand);
+        assertEquals(4, demand.requested.get());
+        for (int i = 0; i < 4; i++) {
+            subscriber.onNext(notification);
+        }
+        while (service.getQueueDepth() == 4) {
+            Thread.sleep(5);
+        }
+        // the consumer is blocked on the socket with the first one
+        subscriber.onNext(notification);
+        Thread.sleep(50);
+        assertEquals(5, demand.requested.get());
+        assertEquals(4, service.getQueueDepth());
+
+        // once the socket drains, demand resumes without any onNext
+        writable.release(100);
+        while (demand.requested.get() == 5) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, apnsSubscriber.getFailed());
+
+        apnsSubscriber.cancel();
+        assertTrue(demand.cancelled);
+        service.stop();
+    }
+}
@@ -0,0 +1,194 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.notnoop.apns.ApnsNotification.Priority;
+
+public class ApnsTenantManagerTest {
+
+    private final Map<String, ApnsService> services =
+            Collections.synchronizedMap(new HashMap<String, ApnsService>());
+    private final ApnsNotification notification = new ApnsNotification(1,
+            ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}", Priority.SEND_IMMEDIATELY);
+
+    private final ApnsTenantManager.TenantConfigurer configurer = new ApnsTenantManager.TenantConfigurer() {
+        public void configure(String tenant, ApnsServiceBuilder builder) {
+            if (tenant.startsWith("pooled")) {
+                builder.asPool(2);
+            }
+        }
+    };
+
+    private ApnsTenantManager newManager(int maxConnections, long idleTimeout) {
+        return new ApnsTenantManager(configurer, maxConnections, idleTimeout) {
+            @Override
+            ApnsService newService(String tenant, ApnsServiceBuilder builder) {
+                ApnsService service = mock(ApnsService.class);
+                services.put(tenant, service);
+                return service;
+            }
+        };
+    }
+
+    @Test
+    public void createsServicesLazily() {
+        ApnsTenantManager manager = newManager(10, 0);
+        assertEquals(0, manager.getActiveTenants());
+
+        manager.push("a", notification);
+        manager.push("a", notification);
+
+        assertEquals(1, manager.getActiveTenants());
+        verify(services.get("a"), times(2)).push(notification);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedTenant() {
+        ApnsTenantManager manager = newManager(2, 0);
+        manager.push("a", notification);
+        manager.push("b", notification);
+        manager.push("a", notification);
+        manager.push("c", notification);
+
+        assertEquals(2, manager.getActiveTenants());
+        verify(services.get("b")).stop();
+        verify(services.get("a"), never()).stop();
+    }
+
+    @Test
+    public void capsConnectionsOfPooledTenants() {
+        ApnsTenantManager manager = newManager(3, 0);
+        manager.push("a", notification);
+        manager.push("b", notification);
+        manager.push("pooled", notification);
+
+        assertEquals(3, manager.getOpenConnections());
+        verify(services.get("a")).stop();
+        verify(services.get("b"), never()).stop();
+    }
+
+    @Test
+    public void waitsForTenantsInUse() throws InterruptedException {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch sent = new CountDownLatch(1);
+        final ApnsTenantManager manager = new ApnsTenantManager(configurer, 1, 0) {
+            @Override
+            ApnsService newService(String tenant, ApnsServiceBuilder builder) {
+                ApnsService service = mock(ApnsService.class);
+                if (tenant.equals("a")) {
+                    doAnswer(new Answer<Void>() {
+                        public Void answer(InvocationOnMock invocation) throws Throwable {
+                            sending.countDown();
+                            sent.await();
+                            return null;
+                        }
+                    }).when(service).push(notification);
+                }
+                services.put(tenant, service);
+                return service;
+            }
+        };
+        Thread a = pushInBackground(manager, "a");
+        sending.await();
+        Thread b = pushInBackground(manager, "b");
+        b.join(200);
+
+        // b can't evict a while a is sending, nor build its service meanwhile
+        assertTrue(b.isAlive());
+        assertEquals(1, manager.getOpenConnections());
+        assertFalse(services.containsKey("b"));
+
+        sent.countDown();
+        b.join(5000);
+        a.join(5000);
+        assertFalse(b.isAlive());
+        assertEquals(1, manager.getOpenConnections());
+        verify(services.get("a")).stop();
+        verify(services.get("b")).push(notification);
+    }
+
+    @Test
+    public void buildsServiceOnce() throws InterruptedException {
+        final CountDownLatch building = new CountDownLatch(1);
+        final CountDownLatch built = new CountDownLatch(1);
+        final AtomicInteger builds = new AtomicInteger();
+        final ApnsTenantManager manager = new ApnsTenantManager(configurer, 10, 0) {
+            @Override
+            ApnsService newService(String tenant, ApnsServiceBuilder builder) {
+                builds.incrementAndGet();
+                building.countDown();
+                try {
+                    built.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ApnsService service = mock(ApnsService.class);
+                services.put(tenant, service);
+                return service;
+            }
+        };
+        Thread first = pushInBackground(manager, "a");
+        building.await();
+        Thread second = pushInBackground(manager, "a");
+        second.join(200);
+
+        // the second push waits for the service being built
+        assertTrue(second.isAlive());
+        built.countDown();
+        first.join(5000);
+        second.join(5000);
+        assertEquals(1, builds.get());
+        assertEquals(1, manager.getOpenConnections());
+        verify(services.get("a"), times(2)).push(notification);
+    }
+
+    private Thread pushInBackground(final ApnsTenantManager manager, final String tenant) {
+        Thread thread = new Thread() {
+            public void run() {
+                manager.push(tenant, notification);
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void evictsIdleTenants() throws InterruptedException {
+        ApnsTenantManager manager = newManager(10, 0);
+        manager.push("a", notification);
+        Thread.sleep(10);
+        manager.evictIdle();
+
+        assertEquals(0, manager.getActiveTenants());
+        verify(services.get("a")).stop();
+    }
+
+    @Test
+    public void stopsAllTenants() {
+        ApnsTenantManager manager = newManager(10, 1000);
+        manager.push("a", notification);
+        manager.push("b", notification);
+        manager.stop();
+
+        assertEquals(0, manager.getOpenConnections());
+        verify(services.get("a")).stop();
+        verify(services.get("b")).stop();
+    }
+}
@@ -0,0 +1,110 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BulkProgressTest {
+
+    private final ApnsNotification notification = new ApnsNotification(1, ApnsNotification.MAXIMUM_EXPIRY, "abcd", "{}",
+            ApnsNotification.Priority.SEND_IMMEDIATELY);
+
+    @Test
+    public void countsDelegateEvents() {
+        final List<String> events = new ArrayList<String>();
+        BulkProgress progress = new BulkProgress(new ApnsDelegateAdapter() {
+            @Override
+            public void messageSent(ApnsNotification message, boolean resent) {
+                events.add(resent ? "resent" : "sent");
+            }
+            @Override
+            public void messageSendFailed(ApnsNotification message, Throwable e) {
+                events.add("failed");
+            }
+            @Override
+            public void notificationsResent(int resendCount) {
+                events.add("resent " + resendCount);
+            }
+        }, 1000);
+
+        progress.messageSent(notification, false);
+        progress.messageSent(notification, false);
+        progress.messageSendFailed(notification, new RuntimeException());
+        progress.notificationsResent(2);
+        progress.messageSent(notification, true);
+
+        assertEquals(2, progress.getWritten());
+        assertEquals(1, progress.getFailed());
+        assertEquals(2, progress.getResent());
+        assertEquals(Arrays.asList("sent", "sent", "failed", "resent 2", "resent"), events);
+    }
+
+    @Test
+    public void countsRejectionsOnce() {
+        BulkProgress progress = new BulkProgress();
+        progress.rejected(2);
+        progress.failed(1);
+        assertEquals(3, progress.getFailed());
+
+        // the delegate of the service counts the rejections from its events
+        BulkProgress delegate = new BulkProgress();
+        delegate.setServiceDelegate();
+        delegate.messageSendFailed(notification, new RuntimeException());
+        delegate.messageSendFailed(notification, new RuntimeException());
+        delegate.rejected(2);
+        delegate.failed(1);
+        assertEquals(3, delegate.getFailed());
+    }
+
+    @Test
+    public void tracksQueuedTokens() {
+        BulkProgress progress = new BulkProgress();
+        progress.setTotal(3);
+        Iterator<String> tokens = progress.track(Arrays.asList("aa", "bb", "cc").iterator());
+        tokens.next();
+        assertEquals(1, progress.getQueued());
+        while (tokens.hasNext()) {
+            tokens.next();
+        }
+        assertEquals(3, progress.getQueued());
+        assertEquals(0, progress.getEta());
+    }
+
+    @Test
+    public void pastErrorWindow() throws InterruptedException {
+        BulkProgress progress = new BulkProgress(null, 200);
+        for (int i = 0; i < 10; i++) {
+            progress.messageSent(notification, false);
+        }
+        assertEquals(0, progress.getPastErrorWindow());
+        Thread.sleep(150);
+        // samples the 10 notifications written
+        assertTrue(progress.getThroughput() > 0);
+        Thread.sleep(250);
+        progress.messageSent(notification, false);
+        assertEquals(10, progress.getPastErrorWindow());
+        assertEquals(11, progress.getWritten());
+    }
+
+    @Test
+    public void throughputAndEta() throws InterruptedException {
+        BulkProgress progress = new BulkProgress();
+        assertEquals(-1, progress.getEta());
+        progress.setTotal(1000);
+        assertEquals(-1, progress.getEta());
+
+        progress.queued(100);
+        Thread.sleep(200);
+        assertTrue(progress.getThroughput() > 0);
+        assertTrue(progress.getAverageThroughput() > 0);
+        long eta = progress.getEta();
+        // 900 left at about 500 per second
+        assertTrue("eta " + eta, eta > 0 && eta < 60 * 1000);
+    }
+}
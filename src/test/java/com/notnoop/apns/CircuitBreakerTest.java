@@ -0,0 +1,75 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 10000, 10000);
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.getRetryDelay() >= 5000);
+    }
+
+    @Test
+    public void successResetsFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 10000, 10000);
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void singleProbeWhenHalfOpen() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20, 10000);
+        breaker.recordFailure();
+        Thread.sleep(50);
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeDoublesBackoff() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 10000);
+        breaker.recordFailure();
+        Thread.sleep(150);
+
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        // jittered between half and all of the doubled backoff
+        long delay = breaker.getRetryDelay();
+        assertTrue("delay " + delay, delay > 50 && delay <= 200);
+    }
+
+    @Test
+    public void retryDelayFollowsBackoff() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 1000, 10000);
+        long delay = breaker.nextRetryDelay();
+        assertTrue("delay " + delay, delay >= 500 && delay <= 1000);
+
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        // the backoff doubled after the breaker opened
+        delay = breaker.nextRetryDelay();
+        assertTrue("delay " + delay, delay >= 1000 && delay <= 2000);
+    }
+}
@@ -0,0 +1,141 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.notnoop.apns.internal.ApnsConnection;
+import com.notnoop.apns.internal.ApnsServiceImpl;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.exceptions.NetworkIOException;
+
+public class DeviceTokenFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] token(int i) {
+        byte[] token = new byte[DeviceTokenFile.TOKEN_LENGTH];
+        token[0] = (byte) (i >> 8);
+        token[31] = (byte) i;
+        return token;
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static List<String> readAll(List<DeviceTokenFile.Range> ranges) {
+        List<String> tokens = new ArrayList<String>();
+        for (DeviceTokenSource range : ranges) {
+            byte[] token;
+            while ((token = range.nextToken()) != null) {
+                tokens.add(Utilities.encodeHex(token));
+            }
+        }
+        return tokens;
+    }
+
+    @Test
+    public void readHexLines() throws IOException {
+        StringBuilder content = new StringBuilder();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            String hex = Utilities.encodeHex(token(i));
+            expected.add(hex);
+            content.append(i % 2 == 0 ? hex.toLowerCase() : hex).append(i % 3 == 0 ? "\r\n" : "\n");
+            if (i == 50) {
+                content.append("\nnot a token\n1234\n");
+            }
+        }
+        DeviceTokenFile file = new DeviceTokenFile(write("tokens.txt", content.toString().getBytes("US-ASCII")));
+        assertEquals(DeviceTokenFile.Format.HEX, file.getFormat());
+
+        for (int count = 1; count <= 7; count++) {
+            List<DeviceTokenFile.Range> ranges = file.split(count);
+            assertEquals(expected, readAll(ranges));
+            int invalid = 0;
+            long end = 0;
+            for (DeviceTokenFile.Range range : ranges) {
+                assertEquals(end, range.getStart());
+                end = range.getEnd();
+                invalid += range.getInvalidTokens();
+            }
+            assertEquals(file.length(), end);
+            assertEquals(2, invalid);
+        }
+    }
+
+    @Test
+    public void readBinaryRecords() throws IOException {
+        byte[] content = new byte[100 * DeviceTokenFile.TOKEN_LENGTH + 5];
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            byte[] token = token(i + 0xff00);
+            System.arraycopy(token, 0, content, i * token.length, token.length);
+            expected.add(Utilities.encodeHex(token));
+        }
+        DeviceTokenFile file = new DeviceTokenFile(write("tokens.bin", content));
+        assertEquals(DeviceTokenFile.Format.BINARY, file.getFormat());
+
+        List<DeviceTokenFile.Range> ranges = file.split(3);
+        assertEquals(3, ranges.size());
+        assertEquals(expected, readAll(ranges));
+        assertEquals(1, ranges.get(2).getInvalidTokens());
+    }
+
+    @Test
+    public void pushRangesInParallel() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            content.append(Utilities.encodeHex(token(i))).append('\n');
+        }
+        content.append("bad\n");
+        DeviceTokenFile file = new DeviceTokenFile(write("audience.txt", content.toString().getBytes("US-ASCII")));
+        final AtomicInteger written = new AtomicInteger();
+        ApnsService service = new ApnsServiceImpl(new ApnsConnection() {
+            public void sendMessage(ApnsNotification m) {
+                written.incrementAndGet();
+            }
+            public void sendMessages(Collection<ApnsNotification> messages) {
+                written.addAndGet(messages.size());
+            }
+            public void testConnection() throws NetworkIOException {
+            }
+            public ApnsConnection copy() {
+                return this;
+            }
+            public void setCacheLength(int cacheLength) {
+            }
+            public int getCacheLength() {
+                return 0;
+            }
+            public void close() {
+            }
+        }, null);
+
+        BulkPushResult result = file.pushTo(service, "{}".getBytes("UTF-8"), 4);
+        assertEquals(5000, result.getPushed());
+        assertEquals(1, result.getFailed());
+        assertEquals(5000, written.get());
+        assertTrue(result.getLastIdentifier() - result.getFirstIdentifier() == 4999);
+    }
+}
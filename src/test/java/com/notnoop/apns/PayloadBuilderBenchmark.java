@@ -0,0 +1,66 @@
+package com.notnoop.apns;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares {@link PayloadBuilder#buildBytes()} with serializing the same
+ * payload as a tree of maps with Jackson, the way the builder used to.
+ *
+ * Run with {@code java -cp ... com.notnoop.apns.PayloadBuilderBenchmark
+ * [payloads]}.
+ */
+public class PayloadBuilderBenchmark {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static void main(String[] args) throws Exception {
+        int payloads = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            long bytes = 0;
+            for (int j = 0; j < payloads; j++) {
+                bytes += newPayload(j).buildBytes().length;
+            }
+            report("encoder", payloads, bytes, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            bytes = 0;
+            for (int j = 0; j < payloads; j++) {
+                bytes += mapper.writeValueAsBytes(newTree(j)).length;
+            }
+            report("jackson", payloads, bytes, System.nanoTime() - start);
+        }
+    }
+
+    private static PayloadBuilder newPayload(int i) {
+        return PayloadBuilder.newPayload()
+                .alertBody("Your order #" + i + " has shipped")
+                .alertTitle("Order update")
+                .badge(i & 0xff)
+                .sound("default")
+                .customField("orderId", i);
+    }
+
+    private static Map<String, Object> newTree(int i) {
+        Map<String, Object> alert = new HashMap<String, Object>();
+        alert.put("body", "Your order #" + i + " has shipped");
+        alert.put("title", "Order update");
+        Map<String, Object> aps = new HashMap<String, Object>();
+        aps.put("alert", alert);
+        aps.put("badge", i & 0xff);
+        aps.put("sound", "default");
+        Map<String, Object> root = new HashMap<String, Object>();
+        root.put("aps", aps);
+        root.put("orderId", i);
+        return root;
+    }
+
+    private static void report(String mode, int payloads, long bytes, long elapsed) {
+        System.out.printf("%-8s %,12.0f payloads/s (%,d bytes)%n", mode,
+                payloads * 1e9 / elapsed, bytes);
+    }
+}
@@ -8,7 +8,12 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
@@ -521,4 +526,106 @@ public class PayloadBuilderTest {
 		final String actual = builder.toString();
 		assertEqualsJson(expected, actual);
 	}
+
+	@Test
+	public void customFieldsEncodedLikeJackson() throws Exception {
+		final Map<String, Object> nested = new LinkedHashMap<String, Object>();
+		nested.put("id", 42L);
+		nested.put("tags", new int[] { 1, 2 });
+		nested.put("none", null);
+		final PayloadBuilder builder = new PayloadBuilder()
+				.alertBody("quote \" backslash \\ tab \t ctrl \u0001 été 😀")
+				.localizedArguments("a", "b")
+				.customField("flag", true)
+				.customField("ratio", 0.5)
+				.customField("nested", nested)
+				.customField("date", new Date(0));
+
+		final Map<String, Object> aps = new HashMap<String, Object>();
+		final Map<String, Object> alert = new HashMap<String, Object>();
+		alert.put("body", "quote \" backslash \\ tab \t ctrl \u0001 été 😀");
+		alert.put("loc-args", Arrays.asList("a", "b"));
+		aps.put("alert", alert);
+		final Map<String, Object> root = new HashMap<String, Object>();
+		root.put("aps", aps);
+		root.put("flag", true);
+		root.put("ratio", 0.5);
+		root.put("nested", nested);
+		root.put("date", new Date(0));
+
+		final String expected = new ObjectMapper().writeValueAsString(root);
+		assertEqualsJson(expected, builder.build());
+		assertEquals(Utilities.toUTF8Bytes(expected).length, builder.length());
+		assertEquals(builder.build(), new String(builder.buildBytes(), "UTF-8"));
+	}
+
+	@Test
+	public void lengthTracksChanges() {
+		final PayloadBuilder builder = new PayloadBuilder();
+		assertEquals(builder.buildBytes().length, builder.length());
+		builder.alertBody("tab\t \"quoted\" été");
+		assertEquals(builder.buildBytes().length, builder.length());
+		builder.badge(5).sound("default").badge(12);
+		assertEquals(builder.buildBytes().length, builder.length());
+		builder.alertTitle("title").localizedArguments("a", "b");
+		assertEquals(builder.buildBytes().length, builder.length());
+		builder.sound(null).noActionButton();
+		assertEquals(builder.buildBytes().length, builder.length());
+		builder.customField("aps", "replaced").customField("n", Arrays.asList(1, 2, 3));
+		assertEquals(builder.buildBytes().length, builder.length());
+		final PayloadBuilder copy = builder.copy().alertBody("other");
+		assertEquals(copy.buildBytes().length, copy.length());
+		assertEquals(builder.buildBytes().length, builder.length());
+		builder.mdm("magic");
+		assertEquals(builder.buildBytes().length, builder.length());
+	}
+
+	@Test
+	public void lengthIgnoresLaterChangesOfValues() {
+		final List<String> arguments = new ArrayList<String>(Arrays.asList("a", "b"));
+		final int[] numbers = { 1, 2 };
+		final Map<String, Object> map = new HashMap<String, Object>();
+		map.put("k", "v");
+		final StringBuilder text = new StringBuilder("abc");
+		final PayloadBuilder builder = new PayloadBuilder()
+				.localizedArguments(arguments)
+				.customField("numbers", numbers)
+				.customField("map", map)
+				.customField("text", text);
+		final String built = builder.build();
+
+		arguments.add("a much longer argument");
+		numbers[0] = 123456;
+		map.put("other", "value");
+		assertEquals(built, builder.build());
+		assertEquals(builder.buildBytes().length, builder.length());
+
+		// objects serialized by Jackson are measured when needed
+		text.append("def");
+		assertEquals(builder.buildBytes().length, builder.length());
+		builder.customField("text", "plain");
+		assertEquals(builder.buildBytes().length, builder.length());
+	}
+
+	@Test
+	public void resizeOnCharacterBoundary() {
+		final PayloadBuilder builder = new PayloadBuilder()
+				.alertBody("\"é😀\"é😀\"é😀\"é😀\"é😀");
+		final int full = builder.length();
+		for (int limit = full; limit > full - 20; limit--) {
+			final PayloadBuilder resized = builder.copy().resizeAlertBody(limit, "…");
+			assertTrue(resized.length() <= limit);
+			assertEquals(resized.buildBytes().length, resized.length());
+		}
+	}
+
+	@Test
+	public void resizeShrinksLocalizedArguments() {
+		final PayloadBuilder builder = new PayloadBuilder()
+				.localizedKey("GAME_INVITE").localizedArguments("Jenna", strOfLen(100), strOfLen(100));
+		final int full = builder.length();
+		builder.resizeAlertBody(full - 150);
+		assertEquals(full - 150, builder.length());
+		assertThat(builder.build(), containsString("[\"Jenna\",\"" + strOfLen(50) + "\",\"\"]"));
+	}
 }
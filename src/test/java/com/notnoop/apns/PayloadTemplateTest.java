@@ -0,0 +1,70 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PayloadTemplateTest {
+
+    private static Map<String, String> values(String... keyValues) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            values.put(keyValues[i], keyValues[i + 1]);
+        }
+        return values;
+    }
+
+    @Test
+    public void rendersLikeTheBuilder() {
+        PayloadTemplate template = PayloadBuilder.newPayload()
+                .alertBody("Hi ${name}, ${count} new messages")
+                .badge(3).sound("default")
+                .customField("id", "${id}")
+                .template();
+        assertEquals(Arrays.asList("id", "name", "count"), template.getPlaceholders());
+
+        Map<String, String> values = values("name", "Jérôme \"J\" \\ 😀", "count", "2",
+                "id", "line\nbreak\u0001");
+        byte[] expected = PayloadBuilder.newPayload()
+                .alertBody("Hi Jérôme \"J\" \\ 😀, 2 new messages")
+                .badge(3).sound("default")
+                .customField("id", "line\nbreak\u0001")
+                .buildBytes();
+        assertArrayEquals(expected, template.render(values));
+        assertEquals(expected.length, template.length(values));
+    }
+
+    @Test
+    public void keepsTextThatIsNoPlaceholder() {
+        PayloadTemplate template = PayloadBuilder.newPayload()
+                .alertTitle("${not a name} ${").alertBody("${x}").template();
+        assertEquals(Arrays.asList("x"), template.getPlaceholders());
+        assertArrayEquals(PayloadBuilder.newPayload().alertTitle("${not a name} ${").alertBody("1").buildBytes(),
+                template.render(values("x", "1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingValue() {
+        PayloadBuilder.newPayload().alertBody("${x}").template().render(values("y", "1"));
+    }
+
+    @Test
+    public void truncatesLikeResizeAlertBody() {
+        PayloadBuilder builder = PayloadBuilder.newPayload().alertBody("${greeting} world, ${text}").badge(1);
+        PayloadTemplate template = builder.template();
+        String text = "été \"quoted\" and a long long long long text";
+        Map<String, String> values = values("greeting", "Hello", "text", text);
+        String body = "Hello world, " + text;
+
+        for (int limit : new int[] { 200, 70, 50, 40, 10 }) {
+            byte[] expected = PayloadBuilder.newPayload().alertBody(body).badge(1)
+                    .resizeAlertBody(limit, "...").buildBytes();
+            assertArrayEquals("limit " + limit, expected, template.render(values, limit, "..."));
+        }
+    }
+}
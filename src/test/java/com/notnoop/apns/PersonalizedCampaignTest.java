@@ -0,0 +1,110 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.notnoop.apns.internal.ApnsConnection;
+import com.notnoop.apns.internal.ApnsServiceImpl;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.exceptions.NetworkIOException;
+
+public class PersonalizedCampaignTest {
+
+    private final Map<Integer, String> received = new HashMap<Integer, String>();
+    private final AtomicInteger writing = new AtomicInteger();
+    private volatile int maxWriting;
+
+    private final ApnsService service = new ApnsServiceImpl(new ApnsConnection() {
+        public void sendMessage(ApnsNotification m) {
+            byte[] token = m.getDeviceToken();
+            synchronized (received) {
+                received.put((token[0] & 0xff) << 8 | (token[1] & 0xff), new String(m.getPayload()));
+            }
+        }
+        public void sendMessages(Collection<ApnsNotification> messages) {
+            maxWriting = Math.max(maxWriting, writing.incrementAndGet());
+            for (ApnsNotification m : messages) {
+                sendMessage(m);
+            }
+            writing.decrementAndGet();
+        }
+        public void testConnection() throws NetworkIOException {
+        }
+        public ApnsConnection copy() {
+            return this;
+        }
+        public void setCacheLength(int cacheLength) {
+        }
+        public int getCacheLength() {
+            return 0;
+        }
+        public void close() {
+        }
+    }, null);
+
+    private final PersonalizedCampaign.Renderer<Integer> renderer = new PersonalizedCampaign.Renderer<Integer>() {
+        public byte[] getDeviceToken(Integer recipient) {
+            byte[] token = new byte[32];
+            token[0] = (byte) (recipient >> 8);
+            token[1] = (byte) (int) recipient;
+            return token;
+        }
+
+        public String getPayload(Integer recipient) {
+            if (recipient == 13) {
+                throw new IllegalArgumentException("unlucky");
+            }
+            return APNS.newPayload().badge(recipient).build();
+        }
+    };
+
+    private static List<Integer> recipients(int count) {
+        List<Integer> recipients = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            recipients.add(i);
+        }
+        return recipients;
+    }
+
+    @Test
+    public void renderEveryRecipient() {
+        BulkPushResult result = new PersonalizedCampaign<Integer>(service, renderer, 4, 64, 8)
+                .push(recipients(1000));
+
+        assertEquals(999, result.getPushed());
+        assertEquals(1, result.getFailed());
+        assertEquals(Utilities.encodeHex(renderer.getDeviceToken(13)),
+                result.getFailures().get(0).getDeviceToken());
+        assertEquals(999, received.size());
+        for (Map.Entry<Integer, String> entry : received.entrySet()) {
+            assertEquals(APNS.newPayload().badge(entry.getKey()).build(), entry.getValue());
+        }
+    }
+
+    @Test
+    public void identifiersFromTheService() {
+        ApnsNotification before = service.push("0001", "{}");
+        new PersonalizedCampaign<Integer>(service, renderer, 4, 64, 8).push(recipients(100));
+        ApnsNotification after = service.push("0002", "{}");
+        // the 99 notifications rendered took the identifiers in between
+        assertEquals(before.getIdentifier() + 100, after.getIdentifier());
+    }
+
+    @Test
+    public void boundBatchesInFlight() {
+        BulkPushResult result = new PersonalizedCampaign<Integer>(service, renderer, 4, 10, 1)
+                .push(recipients(200));
+
+        assertEquals(199, result.getPushed());
+        assertTrue(maxWriting <= 1);
+    }
+}
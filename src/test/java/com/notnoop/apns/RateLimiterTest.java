@@ -0,0 +1,100 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.notnoop.apns.internal.ApnsConnection;
+import com.notnoop.apns.internal.RateLimitedApnsConnection;
+import com.notnoop.exceptions.RateLimitExceededException;
+
+public class RateLimiterTest {
+
+    @Test
+    public void rejectsAfterBurst() {
+        RateLimiter limiter = new RateLimiter(10, 0, RateLimiter.Mode.REJECT);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(100);
+        }
+        try {
+            limiter.acquire(100);
+            fail("Expected the limiter to reject the notification");
+        } catch (RateLimitExceededException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsOnBytes() {
+        RateLimiter limiter = new RateLimiter(0, 1000, RateLimiter.Mode.REJECT);
+        limiter.acquire(600);
+        try {
+            limiter.acquire(600);
+            fail("Expected the limiter to reject the notification");
+        } catch (RateLimitExceededException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void blocksUntilTokensAvailable() {
+        RateLimiter limiter = new RateLimiter(20, 0, RateLimiter.Mode.BLOCK);
+        long start = System.nanoTime();
+        for (int i = 0; i < 30; i++) {
+            limiter.acquire(100);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        // 20 as a burst, then 10 more at 20/s
+        assertTrue("took " + elapsedMillis, elapsedMillis >= 400);
+    }
+
+    @Test
+    public void largeNotificationPassesOnFullBucket() {
+        RateLimiter limiter = new RateLimiter(0, 100, RateLimiter.Mode.REJECT);
+        limiter.acquire(2000);
+    }
+
+    @Test
+    public void batchLargerThanBucketSendsWhatFits() {
+        RateLimiter limiter = new RateLimiter(3, 0, RateLimiter.Mode.REJECT);
+        ApnsConnection wrapped = mock(ApnsConnection.class);
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnection connection = new RateLimitedApnsConnection(wrapped, limiter, false, delegate);
+        List<ApnsNotification> batch = new ArrayList<ApnsNotification>();
+        for (int i = 1; i <= 5; i++) {
+            batch.add(new ApnsNotification(i, ApnsNotification.MAXIMUM_EXPIRY, "abcd", "{}",
+                    ApnsNotification.Priority.SEND_IMMEDIATELY));
+        }
+        try {
+            connection.sendMessages(batch);
+            fail("Expected the limiter to reject the end of the batch");
+        } catch (RateLimitExceededException e) {
+            assertEquals(3, e.getAccepted());
+            verify(delegate).messageSendFailed(batch.get(3), e);
+            verify(delegate).messageSendFailed(batch.get(4), e);
+        }
+        verify(wrapped).sendMessages(batch.subList(0, 3));
+    }
+
+    @Test
+    public void copiesReportToOriginal() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(0, 0, RateLimiter.Mode.BLOCK);
+        RateLimiter copy1 = limiter.copy();
+        RateLimiter copy2 = limiter.copy();
+        for (int i = 0; i < 5; i++) {
+            copy1.acquire(10);
+            copy2.acquire(10);
+        }
+        Thread.sleep(1100);
+        assertEquals(10, limiter.getCurrentRate(), 1);
+        assertEquals(5, copy1.getCurrentRate(), 1);
+    }
+}
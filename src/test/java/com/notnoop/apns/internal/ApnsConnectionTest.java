@@ -4,6 +4,16 @@ import static com.notnoop.apns.internal.MockingUtils.mockClosedThenOpenSocket;
 import static com.notnoop.apns.internal.MockingUtils.mockSocketFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.SocketFactory;
 
@@ -11,8 +21,13 @@ import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsDelegateAdapter;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.CircuitBreaker;
+import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsConnectionTest {
 	ApnsNotification msg = new ApnsNotification(1,
@@ -58,6 +73,273 @@ public class ApnsConnectionTest {
 		packetSentRegardless(factory, baos);
 	}
 
+	@Test
+	public void sendMessagesAtOnce() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		SocketFactory factory = mockSocketFactory(baos, null);
+		ApnsNotification other = new ApnsNotification(2,
+				ApnsNotification.MAXIMUM_EXPIRY, "2342", "{\"a\":1}",
+				Priority.SEND_IMMEDIATELY);
+		ApnsConnectionImpl connection = new ApnsConnectionImpl(factory,
+				"localhost", 80);
+		connection.sendMessages(Arrays.asList(msg, other));
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(msg.marshall(), 0, msg.length());
+		expected.write(other.marshall(), 0, other.length());
+		Assert.assertArrayEquals(expected.toByteArray(), baos.toByteArray());
+		connection.close();
+	}
+
+	@Test
+	public void sendMessagesOneByOneAfterError() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		SocketFactory factory = mockClosedThenOpenSocket(baos, null, false, 1);
+		ApnsConnectionImpl connection = new ApnsConnectionImpl(factory,
+				"localhost", 80);
+		connection.DELAY_IN_MS = 0;
+		connection.sendMessages(Arrays.asList(msg));
+		Assert.assertArrayEquals(msg.marshall(), baos.toByteArray());
+		connection.close();
+	}
+
+	/**
+	 * An open circuit breaker stops retrying, and fails the next messages
+	 * without connecting
+	 */
+	@Test
+	public void circuitBreakerFailsFast() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		SocketFactory factory = mockClosedThenOpenSocket(baos, null, false, 2);
+		CircuitBreaker breaker = new CircuitBreaker(1, 10000, 10000);
+		ApnsConnectionImpl connection = new ApnsConnectionImpl(factory,
+				"localhost", 80, null, null, null,
+				new ReconnectPolicies.Never(), ApnsDelegate.EMPTY,
+				false, null, ApnsConnection.DEFAULT_CACHE_LENGTH, true, 0, 0,
+				breaker);
+		try {
+			connection.sendMessage(msg);
+			Assert.fail("Expected the breaker to stop the retries");
+		} catch (NetworkIOException e) {
+			// expected
+		}
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		try {
+			connection.sendMessage(msg);
+			Assert.fail("Expected the breaker to fail fast");
+		} catch (NetworkIOException e) {
+			// expected
+		}
+		Assert.assertEquals(0, baos.size());
+		connection.close();
+	}
+
+	/**
+	 * The monitoring thread of a socket retired by a reconnection leaves the
+	 * replacement socket open
+	 */
+	@Test
+	public void reconnectKeepsReplacementSocket() throws Exception {
+		final List<FakeSocket> sockets = new ArrayList<FakeSocket>();
+		SocketFactory factory = new SocketFactory() {
+			public synchronized Socket createSocket(String host, int port) {
+				FakeSocket socket = new FakeSocket();
+				sockets.add(socket);
+				return socket;
+			}
+			public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+				throw new UnsupportedOperationException();
+			}
+			public Socket createSocket(InetAddress host, int port) {
+				throw new UnsupportedOperationException();
+			}
+			public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+				throw new UnsupportedOperationException();
+			}
+		};
+		final boolean[] reconnect = new boolean[1];
+		ReconnectPolicy policy = new ReconnectPolicy() {
+			public boolean shouldReconnect() {
+				return reconnect[0];
+			}
+			public void reconnected() {
+				reconnect[0] = false;
+			}
+			public ReconnectPolicy copy() {
+				return this;
+			}
+		};
+		ApnsConnectionImpl connection = new ApnsConnectionImpl(factory,
+				"localhost", 80, null, null, null, policy, ApnsDelegate.EMPTY,
+				true, null, ApnsConnection.DEFAULT_CACHE_LENGTH, true, 0, 0);
+		connection.sendMessage(msg);
+		reconnect[0] = true;
+		connection.sendMessage(msg);
+
+		FakeSocket retired = sockets.get(0);
+		FakeSocket replacement = sockets.get(1);
+		Assert.assertTrue(retired.isClosed());
+		// the monitoring thread of the retired socket has exited
+		Assert.assertTrue(retired.monitorDone.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		Assert.assertFalse(replacement.isClosed());
+
+		connection.sendMessage(msg);
+		Assert.assertEquals(2, sockets.size());
+		Assert.assertEquals(2 * msg.length(), replacement.out.size());
+		connection.close();
+	}
+
+	@Test(timeout = 10000)
+	public void failedBatchResendsFromTheBadNotification() throws Exception {
+		final List<FakeSocket> sockets = new ArrayList<FakeSocket>();
+		SocketFactory factory = new SocketFactory() {
+			public synchronized Socket createSocket(String host, int port) {
+				FakeSocket socket = sockets.isEmpty() ? new RejectingSocket(2)
+						: new FakeSocket();
+				sockets.add(socket);
+				return socket;
+			}
+			public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+				throw new UnsupportedOperationException();
+			}
+			public Socket createSocket(InetAddress host, int port) {
+				throw new UnsupportedOperationException();
+			}
+			public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+				throw new UnsupportedOperationException();
+			}
+		};
+		final List<ApnsNotification> failed = new ArrayList<ApnsNotification>();
+		ApnsDelegate delegate = new ApnsDelegateAdapter() {
+			@Override
+			public void messageSendFailed(ApnsNotification message, Throwable e) {
+				failed.add(message);
+			}
+		};
+		ApnsConnectionImpl connection = new ApnsConnectionImpl(factory,
+				"localhost", 80, null, null, null, new ReconnectPolicies.Never(),
+				delegate, true, null, ApnsConnection.DEFAULT_CACHE_LENGTH, true,
+				0, 0);
+		List<ApnsNotification> batch = new ArrayList<ApnsNotification>();
+		for (int id = 1; id <= 4; id++) {
+			batch.add(new ApnsNotification(id, ApnsNotification.MAXIMUM_EXPIRY,
+					"2342", "{}", Priority.SEND_IMMEDIATELY));
+		}
+		connection.sendMessages(batch);
+
+		Assert.assertEquals(Arrays.asList(batch.get(1)), failed);
+		Assert.assertEquals(2, sockets.size());
+		ByteArrayOutputStream resent = new ByteArrayOutputStream();
+		resent.write(batch.get(2).marshall());
+		resent.write(batch.get(3).marshall());
+		Assert.assertArrayEquals(resent.toByteArray(),
+				sockets.get(1).out.toByteArray());
+		connection.close();
+	}
+
+	/**
+	 * A socket whose input blocks until it is closed
+	 */
+	static class FakeSocket extends Socket {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final CountDownLatch closed = new CountDownLatch(1);
+		final CountDownLatch monitorDone = new CountDownLatch(1);
+
+		@Override
+		public InputStream getInputStream() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					try {
+						closed.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					monitorDone.countDown();
+					return -1;
+				}
+			};
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		@Override
+		public synchronized void close() {
+			closed.countDown();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed.getCount() == 0;
+		}
+
+		@Override
+		public synchronized void setSoTimeout(int timeout) {
+		}
+
+		@Override
+		public void setKeepAlive(boolean on) {
+		}
+	}
+
+	/**
+	 * A socket that answers the first write with an error response for the
+	 * given identifier, then fails the write once it is closed
+	 */
+	static class RejectingSocket extends FakeSocket {
+		final CountDownLatch written = new CountDownLatch(1);
+		final byte[] response;
+
+		RejectingSocket(int id) {
+			response = new byte[] { 8, 8, (byte) (id >> 24), (byte) (id >> 16),
+					(byte) (id >> 8), (byte) id };
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			final InputStream eof = super.getInputStream();
+			return new InputStream() {
+				int n;
+
+				@Override
+				public int read() throws IOException {
+					try {
+						written.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return n < response.length ? response[n++] & 0xFF : eof.read();
+				}
+			};
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					written.countDown();
+					try {
+						closed.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					throw new IOException("Broken pipe");
+				}
+			};
+		}
+	}
+
 	private void packetSentRegardless(SocketFactory sf,
 			ByteArrayOutputStream baos) {
 		ApnsConnectionImpl connection = new ApnsConnectionImpl(sf, "localhost",
@@ -1,12 +1,22 @@
 package com.notnoop.apns.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.*;
 
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.BulkPushResult;
+import com.notnoop.apns.DeviceTokenSource;
+import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsServiceImplTest {
 
@@ -34,6 +44,79 @@ public class ApnsServiceImplTest {
 		verify(connection, times(1)).sendMessage(notification);
 	}
 
+	@Test
+	public void pushAllStreamsTokens() {
+		ApnsConnection connection = mock(ApnsConnection.class);
+		ApnsService service = newService(connection, null);
+		final int count = 2500;
+		Iterator<String> tokens = new Iterator<String>() {
+			int i;
+			public boolean hasNext() {
+				return i < count;
+			}
+			public String next() {
+				return i++ == 10 ? "not hex" : Integer.toHexString(0x10000 + i);
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		BulkPushResult result = service.pushAll(tokens, "{}");
+		assertEquals(count - 1, result.getPushed());
+		assertEquals(1, result.getFailed());
+		assertEquals("not hex", result.getFailures().get(0).getDeviceToken());
+		assertEquals(-1, result.getFailures().get(0).getIdentifier());
+		assertEquals(count - 2, result.getLastIdentifier() - result.getFirstIdentifier());
+		// written by chunks
+		verify(connection, times(3)).sendMessages(anyCollectionOf(ApnsNotification.class));
+	}
+
+	@Test
+	public void pushCollectionByChunks() {
+		ApnsConnection connection = mock(ApnsConnection.class);
+		ApnsService service = newService(connection, null);
+		List<String> tokens = new ArrayList<String>();
+		for (int i = 0; i < 2 * AbstractApnsService.BULK_CHUNK + 1; i++) {
+			tokens.add(Integer.toHexString(0x10000 + i));
+		}
+
+		service.push(tokens, "{}");
+
+		verify(connection, times(3)).sendMessages(anyCollectionOf(ApnsNotification.class));
+	}
+
+	@Test
+	public void pushAllCountsRejectedChunks() {
+		ApnsConnection connection = mock(ApnsConnection.class);
+		doThrow(new NetworkIOException("down")).when(connection).sendMessages(anyCollectionOf(ApnsNotification.class));
+		ApnsService service = newService(connection, null);
+
+		BulkPushResult result = service.pushAll(Arrays.asList(new byte[] { 1 }, new byte[] { 2 }), new byte[] { '{', '}' });
+		assertEquals(0, result.getPushed());
+		assertEquals(2, result.getFailed());
+		assertEquals("02", result.getFailures().get(1).getDeviceToken());
+	}
+
+	@Test
+	public void pushAllFromTokenSource() {
+		ApnsConnection connection = mock(ApnsConnection.class);
+		ApnsService service = newService(connection, null);
+		DeviceTokenSource source = new DeviceTokenSource() {
+			final byte[] token = new byte[32];
+			int remaining = 3;
+			public byte[] nextToken() {
+				token[0] = (byte) remaining;
+				return remaining-- > 0 ? token : null;
+			}
+		};
+
+		BulkPushResult result = service.pushAll(source, new byte[] { '{', '}' });
+		assertEquals(3, result.getPushed());
+		assertTrue(result.getFailures().isEmpty());
+		verify(connection, times(1)).sendMessages(anyCollectionOf(ApnsNotification.class));
+	}
+
 	protected ApnsService newService(ApnsConnection connection,
 			ApnsFeedbackConnection feedback) {
 		return new ApnsServiceImpl(connection, null);
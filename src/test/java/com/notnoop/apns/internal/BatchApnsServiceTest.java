@@ -1,22 +1,42 @@
 package com.notnoop.apns.internal;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BatchApnsDelegate;
+import com.notnoop.apns.BatchPartition;
+import com.notnoop.apns.CollapseKeyResolver;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.ExpiredApnsDelegate;
+import com.notnoop.apns.StopReport;
 
 public class BatchApnsServiceTest {
 
 	private ApnsConnection prototype;
 	private BatchApnsService service;
+	private final List<ApnsNotification> sent = Collections.synchronizedList(new ArrayList<ApnsNotification>());
 
 	private int delayTimeInSec = 2;
 	private int delayTimeInSec_millis = delayTimeInSec * 1000; /* 2000 */
@@ -28,6 +48,13 @@ public class BatchApnsServiceTest {
 	public void setup() {
 		prototype = mock(ApnsConnection.class);
 		when(prototype.copy()).thenReturn(prototype);
+		doAnswer(new Answer<Void>() {
+			@SuppressWarnings("unchecked")
+			public Void answer(InvocationOnMock invocation) {
+				sent.addAll((Collection<ApnsNotification>) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(prototype).sendMessages(anyCollectionOf(ApnsNotification.class));
 
 		service = new BatchApnsService(prototype, null, delayTimeInSec, maxDelayTimeInSec, Executors.defaultThreadFactory());
 	}
@@ -39,15 +66,15 @@ public class BatchApnsServiceTest {
 
 		// make sure no message was send yet
 		verify(prototype, times(0)).copy();
-		verify(prototype, times(0)).sendMessage(message);
+		assertEquals(0, sentCount(message));
 		verify(prototype, times(0)).close();
 
 		Thread.sleep(delayTimeInSec_millis + /* for sure */250);
 
-		// verify batch sends and close the connection
-		verify(prototype, times(1)).copy();
-		verify(prototype, times(1)).sendMessage(message);
-		verify(prototype, times(1)).close();
+		// verify batch sends on the persistent connection
+		verify(prototype, times(0)).copy();
+		assertEquals(1, sentCount(message));
+		verify(prototype, times(0)).close();
 	}
 
 	@Test
@@ -59,25 +86,25 @@ public class BatchApnsServiceTest {
 
 		// make sure no message was send yet
 		verify(prototype, times(0)).copy();
-		verify(prototype, times(0)).sendMessage(message1);
-		verify(prototype, times(0)).sendMessage(message2);
+		assertEquals(0, sentCount(message1));
+		assertEquals(0, sentCount(message2));
 		verify(prototype, times(0)).close();
 
 		Thread.sleep(delayTimeInSec1_4_millis * 3);
 
 		// still no send
 		verify(prototype, times(0)).copy();
-		verify(prototype, times(0)).sendMessage(message1);
-		verify(prototype, times(0)).sendMessage(message2);
+		assertEquals(0, sentCount(message1));
+		assertEquals(0, sentCount(message2));
 		verify(prototype, times(0)).close();
 
 		Thread.sleep(delayTimeInSec1_4_millis + /* for sure */250);
 
-		// verify batch sends and close the connection
-		verify(prototype, times(1)).copy();
-		verify(prototype, times(1)).sendMessage(message1);
-		verify(prototype, times(1)).sendMessage(message2);
-		verify(prototype, times(1)).close();
+		// verify batch sends on the persistent connection
+		verify(prototype, times(0)).copy();
+		assertEquals(1, sentCount(message1));
+		assertEquals(1, sentCount(message2));
+		verify(prototype, times(0)).close();
 	}
 
 	@Test
@@ -93,21 +120,204 @@ public class BatchApnsServiceTest {
 
 		// make sure no message was send yet
 		verify(prototype, times(0)).copy();
-		verify(prototype, times(0)).sendMessage(message1);
-		verify(prototype, times(0)).sendMessage(message2);
-		verify(prototype, times(0)).sendMessage(message3);
-		verify(prototype, times(0)).sendMessage(message4);
+		assertEquals(0, sentCount(message1));
+		assertEquals(0, sentCount(message2));
+		assertEquals(0, sentCount(message3));
+		assertEquals(0, sentCount(message4));
 		verify(prototype, times(0)).close();
 
 		Thread.sleep(delayTimeInSec1_4_millis + /* for sure */250);
 
-		// verify batch sends and close the connection
-		verify(prototype, times(1)).copy();
-		verify(prototype, times(1)).sendMessage(message1);
-		verify(prototype, times(1)).sendMessage(message2);
-		verify(prototype, times(1)).sendMessage(message3);
-		verify(prototype, times(1)).sendMessage(message4);
+		// verify batch sends on the persistent connection
+		verify(prototype, times(0)).copy();
+		assertEquals(1, sentCount(message1));
+		assertEquals(1, sentCount(message2));
+		assertEquals(1, sentCount(message3));
+		assertEquals(1, sentCount(message4));
+		verify(prototype, times(0)).close();
+	}
+
+	@Test
+	public void dropExpired() throws IOException, InterruptedException {
+		ExpiredApnsDelegate delegate = mock(ExpiredApnsDelegate.class);
+		service = new BatchApnsService(prototype, null, 100, 100, Integer.MAX_VALUE, Integer.MAX_VALUE, false,
+				Executors.newSingleThreadScheduledExecutor(), delegate, true, true);
+		int now = (int) (System.currentTimeMillis() / 1000);
+		ApnsNotification expired = new ApnsNotification(1, now - 10, "1234", "{}", Priority.SEND_IMMEDIATELY);
+		ApnsNotification later = new ApnsNotification(2, now + 60, "1234", "{}", Priority.SEND_IMMEDIATELY);
+		ApnsNotification sooner = new ApnsNotification(3, now + 30, "1234", "{}", Priority.SEND_IMMEDIATELY);
+		service.push(expired);
+		service.push(later);
+		service.push(sooner);
+
+		Thread.sleep(250);
+
+		assertEquals(Arrays.asList(sooner, later), sent);
+		verify(delegate).messageExpired(expired);
+	}
+
+	@Test
+	public void flushOnSize() throws InterruptedException {
+		service = new BatchApnsService(prototype, null, 10000, 10000, 3, Integer.MAX_VALUE, false,
+				Executors.newSingleThreadScheduledExecutor(), null, false, false);
+		service.push("1234", "{}");
+		service.push("1234", "{}");
+		Thread.sleep(100);
+		assertEquals(0, sent.size());
+
+		service.push("1234", "{}");
+		Thread.sleep(100);
+		assertEquals(3, sent.size());
+	}
+
+	@Test
+	public void flushOnBytes() throws InterruptedException {
+		ApnsNotification message = new ApnsNotification(1, ApnsNotification.MAXIMUM_EXPIRY, "1234", "{}", Priority.SEND_IMMEDIATELY);
+		service = new BatchApnsService(prototype, null, 10000, 10000, Integer.MAX_VALUE, 2 * message.length(), false,
+				Executors.newSingleThreadScheduledExecutor(), null, false, false);
+		service.push(message);
+		Thread.sleep(100);
+		assertEquals(0, sent.size());
+
+		service.push(message);
+		Thread.sleep(100);
+		assertEquals(2, sent.size());
+	}
+
+	@Test
+	public void millisecondWindow() throws IOException, InterruptedException {
+		service = new BatchApnsService(prototype, null, 50, 200, Integer.MAX_VALUE, Integer.MAX_VALUE, false,
+				Executors.newSingleThreadScheduledExecutor(), null, false, false);
+		service.push("1234", "{}");
+		service.push("1234", "{}");
+		Thread.sleep(200);
+		assertEquals(2, sent.size());
+
+		// the connection is kept open for the next batch
+		service.push("1234", "{}");
+		Thread.sleep(200);
+		assertEquals(3, sent.size());
+		verify(prototype, times(0)).copy();
+		verify(prototype, times(0)).close();
+
+		service.stop();
 		verify(prototype, times(1)).close();
 	}
 
+	@Test
+	public void adaptiveLingerFlushesSparseTraffic() throws InterruptedException {
+		service = new BatchApnsService(prototype, null, 50, 10000, Integer.MAX_VALUE, Integer.MAX_VALUE, true,
+				Executors.newSingleThreadScheduledExecutor(), null, false, false);
+		service.push("1234", "{}");
+		Thread.sleep(200);
+		assertEquals(1, sent.size());
+
+		// notifications arrive less often than the linger: no waiting
+		service.push("1234", "{}");
+		Thread.sleep(20);
+		assertEquals(2, sent.size());
+	}
+
+	@Test
+	public void parallelPartitions() throws InterruptedException {
+		final List<ApnsConnection> copies = Collections.synchronizedList(new ArrayList<ApnsConnection>());
+		when(prototype.copy()).thenAnswer(new Answer<ApnsConnection>() {
+			public ApnsConnection answer(InvocationOnMock invocation) {
+				copies.add(prototype);
+				return prototype;
+			}
+		});
+		final List<BatchPartition> completed = Collections.synchronizedList(new ArrayList<BatchPartition>());
+		BatchApnsDelegate delegate = mock(BatchApnsDelegate.class);
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				completed.add((BatchPartition) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(delegate).batchPartitionCompleted(any(BatchPartition.class));
+
+		service = new BatchApnsService(prototype, null, 50, 50, Integer.MAX_VALUE, Integer.MAX_VALUE, false,
+				Executors.newSingleThreadScheduledExecutor(), delegate, false, false, 4, null);
+		for (int i = 0; i < 10000; i++) {
+			service.push("1234", "{}");
+		}
+		Thread.sleep(500);
+
+		assertEquals(10000, sent.size());
+		assertEquals(3, copies.size());
+		assertEquals(4, completed.size());
+		int total = 0;
+		for (BatchPartition partition : completed) {
+			assertEquals(4, partition.getPartitions());
+			assertTrue(partition.isCompleted());
+			assertEquals(0, partition.getFailed());
+			total += partition.getWritten();
+		}
+		assertEquals(10000, total);
+	}
+
+	@Test
+	public void smallBatchSinglePartition() throws InterruptedException {
+		service = new BatchApnsService(prototype, null, 50, 50, Integer.MAX_VALUE, Integer.MAX_VALUE, false,
+				Executors.newSingleThreadScheduledExecutor(), null, false, false, 4, null);
+		service.push("1234", "{}");
+		service.push("1234", "{}");
+		Thread.sleep(200);
+
+		assertEquals(2, sent.size());
+		verify(prototype, times(0)).copy();
+	}
+
+	@Test
+	public void coalesceBatchedNotifications() throws InterruptedException {
+		service = new BatchApnsService(prototype, null, 100, 100, Integer.MAX_VALUE, Integer.MAX_VALUE, false,
+				Executors.newSingleThreadScheduledExecutor(), null, false, false, 1, null,
+				new NotificationCoalescer(CollapseKeyResolver.NO_ALERT));
+		ApnsNotification alert = service.push("1234", "{\"aps\":{\"alert\":\"hi\"}}");
+		service.push("1234", "{\"aps\":{\"badge\":1}}");
+		service.push("5678", "{\"aps\":{\"badge\":1}}");
+		ApnsNotification latest = service.push("1234", "{\"aps\":{\"badge\":2}}");
+		Thread.sleep(400);
+
+		assertEquals(3, sent.size());
+		assertEquals(alert, sent.get(0));
+		assertEquals(latest, sent.get(1));
+	}
+
+	@Test
+	public void drainOnStop() {
+		service.push("1234", "{}");
+		service.push("1234", "{}");
+		service.push("1234", "{}");
+
+		StopReport report = service.stop(5, TimeUnit.SECONDS);
+		assertEquals(3, report.getSent());
+		assertTrue(report.isDrained());
+		assertEquals(3, sent.size());
+	}
+
+	@Test
+	public void abandonOnStopTimeout() {
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) throws InterruptedException {
+				Thread.sleep(300);
+				return null;
+			}
+		}).when(prototype).sendMessages(anyCollectionOf(ApnsNotification.class));
+		service = new BatchApnsService(prototype, null, 1000, 1000, 1, Integer.MAX_VALUE, false,
+				Executors.newSingleThreadScheduledExecutor(), null, false, false);
+		for (int i = 0; i < 5; i++) {
+			service.push("1234", "{}");
+		}
+
+		StopReport report = service.stop(100, TimeUnit.MILLISECONDS);
+		assertEquals(0, report.getSent());
+		// the first batch was being written
+		assertEquals(4, report.getAbandoned().size());
+	}
+
+	private int sentCount(ApnsNotification message) {
+		return Collections.frequency(sent, message);
+	}
+
 }
@@ -0,0 +1,73 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.CollapseKeyResolver;
+
+public class NotificationCoalescerTest {
+
+    private static ApnsNotification notification(int id, String token, String payload) {
+        return new ApnsNotification(id, ApnsNotification.MAXIMUM_EXPIRY, token, payload, Priority.SEND_IMMEDIATELY);
+    }
+
+    @Test
+    public void latestReplacesQueued() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(CollapseKeyResolver.NO_ALERT);
+        ApnsNotification first = notification(1, "2342", "{\"aps\":{\"badge\":1}}");
+        ApnsNotification second = notification(2, "2342", "{\"aps\":{\"badge\":2}}");
+        ApnsNotification third = notification(3, "2342", "{\"aps\":{\"badge\":3}}");
+
+        assertNull(coalescer.offer(first));
+        assertSame(first, coalescer.offer(second));
+        assertSame(second, coalescer.offer(third));
+        assertEquals(2, coalescer.getCoalescedCount());
+
+        assertSame(third, coalescer.release(first));
+        assertEquals(0, coalescer.getPendingCount());
+
+        // once released, the next notification is queued again
+        ApnsNotification fourth = notification(4, "2342", "{\"aps\":{\"badge\":4}}");
+        assertNull(coalescer.offer(fourth));
+        assertSame(fourth, coalescer.release(fourth));
+    }
+
+    @Test
+    public void alertsAndOtherDevicesAreNotCoalesced() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(CollapseKeyResolver.NO_ALERT);
+        ApnsNotification badge = notification(1, "2342", "{\"aps\":{\"badge\":1}}");
+        ApnsNotification otherDevice = notification(2, "4567", "{\"aps\":{\"badge\":2}}");
+        ApnsNotification alert = notification(3, "2342", "{\"aps\":{\"alert\":\"hi\"}}");
+
+        assertNull(coalescer.offer(badge));
+        assertNull(coalescer.offer(otherDevice));
+        assertNull(coalescer.offer(alert));
+        assertNull(coalescer.offer(alert));
+        assertSame(alert, coalescer.release(alert));
+        assertSame(badge, coalescer.release(badge));
+        assertSame(otherDevice, coalescer.release(otherDevice));
+    }
+
+    @Test
+    public void collapseKeysSeparateNotifications() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(new CollapseKeyResolver() {
+            public String getCollapseKey(ApnsNotification notification) {
+                return notification.getIdentifier() % 2 == 0 ? "even" : "odd";
+            }
+        });
+        ApnsNotification one = notification(1, "2342", "{}");
+        ApnsNotification two = notification(2, "2342", "{}");
+        ApnsNotification three = notification(3, "2342", "{}");
+
+        assertNull(coalescer.offer(one));
+        assertNull(coalescer.offer(two));
+        assertSame(one, coalescer.offer(three));
+        assertSame(three, coalescer.release(one));
+        assertSame(two, coalescer.release(two));
+    }
+}
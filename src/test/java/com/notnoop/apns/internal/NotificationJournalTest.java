@@ -0,0 +1,108 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+
+public class NotificationJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ApnsNotification notification(int id) {
+        return new ApnsNotification(id, 1234, "2342", "{\"id\":" + id + "}", Priority.SEND_AT_CONVENIENCE);
+    }
+
+    private static int segments(File directory) {
+        return directory.listFiles().length;
+    }
+
+    @Test
+    public void replaysPendingNotifications() {
+        File directory = folder.getRoot();
+        NotificationJournal journal = new NotificationJournal(directory, -1);
+        List<ApnsNotification> appended = new ArrayList<ApnsNotification>();
+        for (int i = 1; i <= 5; i++) {
+            ApnsNotification n = notification(i);
+            appended.add(n);
+            journal.append(n);
+        }
+        journal.complete(appended.get(1));
+        journal.complete(appended.get(3));
+        assertEquals(3, journal.getPendingCount());
+        journal.close();
+
+        journal = new NotificationJournal(directory, -1);
+        List<ApnsNotification> replayed = journal.replay();
+        assertEquals(3, replayed.size());
+        assertEquals(appended.get(0), replayed.get(0));
+        assertEquals(appended.get(2), replayed.get(1));
+        assertEquals(appended.get(4), replayed.get(2));
+        assertEquals(Priority.SEND_AT_CONVENIENCE, replayed.get(2).getPriority());
+        assertArrayEquals(appended.get(4).getPayload(), replayed.get(2).getPayload());
+        assertTrue(journal.replay().isEmpty());
+
+        // replayed notifications are done like the others
+        journal.complete(replayed);
+        journal.close();
+        assertTrue(new NotificationJournal(directory, -1).replay().isEmpty());
+    }
+
+    @Test
+    public void compactsDoneSegments() {
+        File directory = folder.getRoot();
+        NotificationJournal journal = new NotificationJournal(directory, 64 * 1024, -1, 0);
+        List<ApnsNotification> appended = new ArrayList<ApnsNotification>();
+        // enough notifications for several segments
+        for (int i = 0; i < 5000; i++) {
+            ApnsNotification n = notification(i);
+            appended.add(n);
+            journal.append(n);
+        }
+        int written = segments(directory);
+        assertTrue(written > 2);
+
+        journal.complete(appended.subList(0, 4000));
+        journal.compact();
+        int compacted = segments(directory);
+        assertTrue(compacted < written);
+        assertTrue(compacted > 0);
+        journal.close();
+
+        assertEquals(1000, new NotificationJournal(directory, -1).replay().size());
+    }
+
+    @Test(timeout = 10000)
+    public void groupCommit() throws Exception {
+        final NotificationJournal journal = new NotificationJournal(folder.getRoot(), 0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 100;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        journal.append(notification(base + i));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(400, journal.getPendingCount());
+        journal.close();
+        assertEquals(400, new NotificationJournal(folder.getRoot(), 0).replay().size());
+    }
+}
@@ -0,0 +1,188 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.QueueOverflowPolicy;
+import com.notnoop.exceptions.QueueFullException;
+
+public class NotificationQueueTest {
+
+    private static ApnsNotification notification(int id) {
+        return notification(id, Priority.SEND_IMMEDIATELY);
+    }
+
+    private static ApnsNotification notification(int id, Priority priority) {
+        return notification(id, ApnsNotification.MAXIMUM_EXPIRY, priority);
+    }
+
+    private static ApnsNotification notification(int id, int expiry, Priority priority) {
+        return new ApnsNotification(id, expiry, "2342", "{}", priority);
+    }
+
+    @Test
+    public void rejectWhenFull() {
+        NotificationQueue queue = new NotificationQueue(2, QueueOverflowPolicy.REJECT, 0);
+        queue.offer(notification(1));
+        queue.offer(notification(2));
+        try {
+            queue.offer(notification(3));
+            fail("Expected the queue to reject the notification");
+        } catch (QueueFullException e) {
+            // expected
+        }
+        assertEquals(2, queue.getQueueDepth());
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    @Test
+    public void timeoutWhenFull() {
+        NotificationQueue queue = new NotificationQueue(1, QueueOverflowPolicy.TIMEOUT, 50);
+        queue.offer(notification(1));
+        long start = System.currentTimeMillis();
+        try {
+            queue.offer(notification(2));
+            fail("Expected the queue to time out");
+        } catch (QueueFullException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 40);
+    }
+
+    @Test
+    public void dropOldestWhenFull() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue(2, QueueOverflowPolicy.DROP_OLDEST, 0);
+        ApnsNotification first = notification(1);
+        assertNull(queue.offer(first));
+        queue.offer(notification(2));
+        assertSame(first, queue.offer(notification(3)));
+        assertEquals(1, queue.getDroppedCount());
+
+        List<ApnsNotification> taken = new ArrayList<ApnsNotification>();
+        queue.take(taken, 10);
+        assertEquals(2, taken.get(0).getIdentifier());
+        assertEquals(3, taken.get(1).getIdentifier());
+    }
+
+    @Test
+    public void blockUntilTaken() throws InterruptedException {
+        final NotificationQueue queue = new NotificationQueue(1, QueueOverflowPolicy.BLOCK, 0);
+        queue.offer(notification(1));
+        Thread producer = new Thread() {
+            public void run() {
+                queue.offer(notification(2));
+            }
+        };
+        producer.start();
+        producer.join(100);
+        assertTrue("producer should block on the full queue", producer.isAlive());
+
+        List<ApnsNotification> taken = new ArrayList<ApnsNotification>();
+        queue.take(taken, 1);
+        producer.join(1000);
+        assertEquals(1, queue.getQueueDepth());
+    }
+
+    @Test
+    public void takeBatches() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue();
+        for (int i = 0; i < 5; i++) {
+            queue.offer(notification(i));
+        }
+        List<ApnsNotification> taken = new ArrayList<ApnsNotification>();
+        queue.take(taken, 3);
+        assertEquals(3, taken.size());
+        assertEquals(2, queue.getQueueDepth());
+        assertEquals(3, queue.getDequeuedCount());
+        assertTrue(queue.getAverageWaitTime() >= 0);
+    }
+
+    @Test
+    public void weightedLanes() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue(100, QueueOverflowPolicy.BLOCK, 0, 2, 0);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(notification(100 + i, Priority.SEND_AT_CONVENIENCE));
+        }
+        for (int i = 0; i < 4; i++) {
+            queue.offer(notification(i, Priority.SEND_IMMEDIATELY));
+        }
+        assertEquals(4, queue.getQueueDepth(Priority.SEND_AT_CONVENIENCE));
+
+        List<ApnsNotification> taken = new ArrayList<ApnsNotification>();
+        queue.take(taken, 8);
+        int[] expected = { 0, 1, 100, 2, 3, 101, 102, 103 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], taken.get(i).getIdentifier());
+        }
+        assertEquals(8, queue.getDequeuedCount());
+    }
+
+    @Test
+    public void starvingLaneFirst() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue(100, QueueOverflowPolicy.BLOCK, 0, 10, 20);
+        queue.offer(notification(100, Priority.SEND_AT_CONVENIENCE));
+        Thread.sleep(30);
+        queue.offer(notification(1, Priority.SEND_IMMEDIATELY));
+
+        List<ApnsNotification> taken = new ArrayList<ApnsNotification>();
+        queue.take(taken, 1);
+        assertEquals(100, taken.get(0).getIdentifier());
+        assertTrue(queue.getMaxWaitTime(Priority.SEND_AT_CONVENIENCE) >= 20);
+        assertEquals(0, queue.getMaxWaitTime(Priority.SEND_IMMEDIATELY));
+    }
+
+    @Test
+    public void dropConvenienceFirst() {
+        NotificationQueue queue = new NotificationQueue(2, QueueOverflowPolicy.DROP_OLDEST, 0, 4, 0);
+        queue.offer(notification(1, Priority.SEND_IMMEDIATELY));
+        queue.offer(notification(100, Priority.SEND_AT_CONVENIENCE));
+        assertEquals(100, queue.offer(notification(2, Priority.SEND_IMMEDIATELY)).getIdentifier());
+        assertEquals(2, queue.getQueueDepth(Priority.SEND_IMMEDIATELY));
+    }
+
+    @Test
+    public void earliestDeadlineFirst() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue(100, QueueOverflowPolicy.BLOCK, 0, 0, 0, true, false);
+        int now = (int) (System.currentTimeMillis() / 1000);
+        queue.offer(notification(1, ApnsNotification.MAXIMUM_EXPIRY, Priority.SEND_IMMEDIATELY));
+        queue.offer(notification(2, now + 60, Priority.SEND_IMMEDIATELY));
+        queue.offer(notification(3, now + 30, Priority.SEND_IMMEDIATELY));
+        queue.offer(notification(4, now + 30, Priority.SEND_IMMEDIATELY));
+
+        List<ApnsNotification> taken = new ArrayList<ApnsNotification>();
+        queue.take(taken, 4);
+        int[] expected = { 3, 4, 2, 1 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], taken.get(i).getIdentifier());
+        }
+    }
+
+    @Test
+    public void dropExpired() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue(100, QueueOverflowPolicy.BLOCK, 0, 0, 0, false, true);
+        int now = (int) (System.currentTimeMillis() / 1000);
+        queue.offer(notification(1, now - 10, Priority.SEND_IMMEDIATELY));
+        queue.offer(notification(2, 0, Priority.SEND_IMMEDIATELY));
+        queue.offer(notification(3, now + 60, Priority.SEND_IMMEDIATELY));
+
+        List<ApnsNotification> taken = new ArrayList<ApnsNotification>();
+        List<ApnsNotification> expired = new ArrayList<ApnsNotification>();
+        queue.take(taken, 10, expired);
+        assertEquals(2, taken.size());
+        assertEquals(2, taken.get(0).getIdentifier());
+        assertEquals(1, expired.size());
+        assertEquals(1, expired.get(0).getIdentifier());
+        assertEquals(1, queue.getExpiredCount());
+        assertEquals(2, queue.getDequeuedCount());
+    }
+}
@@ -0,0 +1,188 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.exceptions.QueueFullException;
+
+public class NotificationRingBufferTest {
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    private static ApnsNotification notification(int id) {
+        return new ApnsNotification(id, ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}", Priority.SEND_IMMEDIATELY);
+    }
+
+    private static void push(NotificationRingBuffer ring, ApnsNotification n) {
+        long sequence = ring.claim(1);
+        ring.set(sequence, n);
+        ring.publish(sequence, sequence);
+    }
+
+    @Test
+    public void roundsUpToPowerOfTwo() {
+        assertEquals(8, new NotificationRingBuffer(5, 1).getCapacity());
+        assertEquals(8, new NotificationRingBuffer(8, 1).getCapacity());
+    }
+
+    @Test
+    public void takesContiguousRangesAcrossWraps() {
+        NotificationRingBuffer ring = new NotificationRingBuffer(4, 1);
+        List<ApnsNotification> out = new ArrayList<ApnsNotification>();
+        int id = 0;
+        for (int round = 0; round < 5; round++) {
+            long hi = ring.claim(3);
+            for (long s = hi - 2; s <= hi; s++) {
+                ring.set(s, notification(++id));
+            }
+            ring.publish(hi - 2, hi);
+            assertEquals(3, ring.size());
+            assertEquals(2, ring.take(0, out, 2));
+            assertEquals(1, ring.take(0, out, 2));
+            assertEquals(0, ring.take(0, out, 2));
+        }
+        assertEquals(15, out.size());
+        for (int i = 0; i < out.size(); i++) {
+            assertEquals(i + 1, out.get(i).getIdentifier());
+        }
+    }
+
+    @Test
+    public void unpublishedSlotEndsTheRange() {
+        NotificationRingBuffer ring = new NotificationRingBuffer(8, 1);
+        long first = ring.claim(1);
+        long second = ring.claim(1);
+        ring.set(second, notification(2));
+        ring.publish(second, second);
+
+        List<ApnsNotification> out = new ArrayList<ApnsNotification>();
+        assertEquals(0, ring.take(0, out, 8));
+
+        ring.set(first, notification(1));
+        ring.publish(first, first);
+        assertEquals(2, ring.take(0, out, 8));
+        assertEquals(1, out.get(0).getIdentifier());
+    }
+
+    @Test(timeout = 5000)
+    public void closeReleasesWaitingProducers() throws Exception {
+        NotificationRingBuffer ring = new NotificationRingBuffer(2, 1);
+        push(ring, notification(1));
+        push(ring, notification(2));
+
+        Thread producer = claimInBackground(ring, notification(3));
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+        ring.close();
+        producer.join();
+        assertTrue(failure.get() instanceof IllegalStateException);
+    }
+
+    @Test(timeout = 5000)
+    public void interruptLeavesNoGap() throws Exception {
+        NotificationRingBuffer ring = new NotificationRingBuffer(2, 1);
+        push(ring, notification(1));
+        push(ring, notification(2));
+
+        Thread producer = claimInBackground(ring, notification(3));
+        Thread.sleep(50);
+        producer.interrupt();
+        producer.join();
+        assertTrue(failure.get() instanceof QueueFullException);
+
+        List<ApnsNotification> out = new ArrayList<ApnsNotification>();
+        assertEquals(2, ring.take(0, out, 2));
+        push(ring, notification(4));
+        out.clear();
+        assertEquals(1, ring.take(0, out, 2));
+        assertEquals(4, out.get(0).getIdentifier());
+    }
+
+    private Thread claimInBackground(final NotificationRingBuffer ring, final ApnsNotification n) {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    push(ring, n);
+                } catch (RuntimeException e) {
+                    failure.set(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test(timeout = 20000)
+    public void manyProducersAndWriters() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final int writers = 3;
+        final NotificationRingBuffer ring = new NotificationRingBuffer(64, writers);
+        final boolean[] seen = new boolean[producers * perProducer];
+        final int[] count = new int[1];
+
+        Thread[] writerThreads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            final int index = w;
+            writerThreads[w] = new Thread() {
+                public void run() {
+                    List<ApnsNotification> out = new ArrayList<ApnsNotification>();
+                    while (true) {
+                        out.clear();
+                        try {
+                            ring.take(index, out, 16, TimeUnit.MILLISECONDS.toNanos(10));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        synchronized (seen) {
+                            for (ApnsNotification n : out) {
+                                seen[n.getIdentifier()] = true;
+                                count[0]++;
+                            }
+                            if (count[0] == seen.length) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            };
+            writerThreads[w].start();
+        }
+        Thread[] producerThreads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            producerThreads[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        push(ring, notification(base + i));
+                    }
+                }
+            };
+            producerThreads[p].start();
+        }
+        for (Thread t : producerThreads) {
+            t.join();
+        }
+        for (Thread t : writerThreads) {
+            t.join(10000);
+        }
+        synchronized (seen) {
+            assertEquals(seen.length, count[0]);
+            for (boolean b : seen) {
+                assertTrue(b);
+            }
+        }
+        for (Thread t : writerThreads) {
+            t.interrupt();
+        }
+    }
+}
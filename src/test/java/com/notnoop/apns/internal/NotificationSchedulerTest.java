@@ -0,0 +1,133 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.ScheduledNotification;
+
+public class NotificationSchedulerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ApnsNotification> sent = Collections.synchronizedList(new ArrayList<ApnsNotification>());
+
+    private ApnsServiceImpl newService() {
+        return new ApnsServiceImpl(new QueuedApnsServiceTest.ConnectionStub(0, 0) {
+            @Override
+            public synchronized void sendMessage(ApnsNotification m) {
+                sent.add(m);
+            }
+        }, null);
+    }
+
+    private static ApnsNotification notification(int id) {
+        return new ApnsNotification(id, ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}", Priority.SEND_IMMEDIATELY);
+    }
+
+    @Test
+    public void sendsAtDeliveryTime() throws InterruptedException {
+        ApnsServiceImpl service = newService();
+        new NotificationScheduler(10, null).attach(service);
+        long now = System.currentTimeMillis();
+
+        ApnsNotification late = notification(1);
+        ApnsNotification past = notification(2);
+        ScheduledNotification scheduled = service.push(late, new Date(now + 300));
+        service.push(past, new Date(now - 1000));
+        assertEquals(1, sent.size());
+        assertEquals(past, sent.get(0));
+
+        while (sent.size() < 2) {
+            Thread.sleep(5);
+        }
+        assertTrue(System.currentTimeMillis() >= scheduled.getSendAt().getTime());
+        assertEquals(late, sent.get(1));
+        assertFalse(scheduled.cancel());
+        service.stop();
+    }
+
+    @Test
+    public void cancel() throws InterruptedException {
+        ApnsServiceImpl service = newService();
+        ScheduledNotification scheduled = service.push(notification(1),
+                new Date(System.currentTimeMillis() + 100));
+        assertTrue(scheduled.cancel());
+        assertFalse(scheduled.cancel());
+        Thread.sleep(300);
+        assertTrue(sent.isEmpty());
+        service.stop();
+    }
+
+    @Test
+    public void cascadesFarDeliveries() {
+        ApnsServiceImpl service = newService();
+        NotificationScheduler scheduler = new NotificationScheduler(10000, null);
+        scheduler.attach(service);
+        long now = System.currentTimeMillis();
+        long[] delays = { TimeUnit.MINUTES.toMillis(5), TimeUnit.HOURS.toMillis(3),
+                TimeUnit.DAYS.toMillis(20), TimeUnit.DAYS.toMillis(400) };
+        for (int i = 0; i < delays.length; i++) {
+            service.push(notification(i), new Date(now + delays[i]));
+        }
+        assertEquals(delays.length, scheduler.size());
+
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(scheduler.advance(now + delays[i] - 20000).isEmpty());
+            List<ApnsNotification> due = scheduler.advance(now + delays[i] + 10000);
+            assertEquals(1, due.size());
+            assertEquals(i, due.get(0).getIdentifier());
+        }
+        assertEquals(0, scheduler.size());
+        service.stop();
+    }
+
+    @Test
+    public void reschedulesJournaledNotifications() {
+        ApnsServiceImpl service = newService();
+        NotificationScheduler scheduler = new NotificationScheduler(10000,
+                new NotificationJournal(folder.getRoot(), -1));
+        scheduler.attach(service);
+        long sendAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        service.push(notification(1), new Date(sendAt));
+        service.push(notification(2), new Date(sendAt)).cancel();
+        service.stop();
+
+        ApnsServiceImpl restarted = newService();
+        scheduler = new NotificationScheduler(10000, new NotificationJournal(folder.getRoot(), -1));
+        scheduler.attach(restarted);
+        assertEquals(1, scheduler.size());
+        List<ApnsNotification> due = scheduler.advance(sendAt + 10000);
+        assertEquals(1, due.size());
+        assertEquals(1, due.get(0).getIdentifier());
+        restarted.stop();
+    }
+
+    @Test
+    public void rejectedScheduleIsNotJournaled() {
+        NotificationJournal journal = new NotificationJournal(folder.getRoot(), -1);
+        NotificationScheduler scheduler = new NotificationScheduler(10000, journal);
+        try {
+            // not attached yet
+            scheduler.schedule(notification(1), new Date(System.currentTimeMillis() + 60000));
+            fail("scheduled on a stopped scheduler");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(0, journal.getPendingCount());
+        journal.close();
+    }
+}
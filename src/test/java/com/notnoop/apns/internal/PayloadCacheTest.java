@@ -0,0 +1,62 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+
+public class PayloadCacheTest {
+
+    @Test
+    public void sharesEncodedPayloads() {
+        PayloadCache cache = new PayloadCache(10);
+        byte[] first = cache.encode("{\"aps\":{\"alert\":\"é\"}}");
+        assertArrayEquals(Utilities.toUTF8Bytes("{\"aps\":{\"alert\":\"é\"}}"), first);
+        assertSame(first, cache.encode("{\"aps\":{\"alert\":\"é\"}}"));
+        assertEquals(1, cache.getPayloadCacheHits());
+        assertEquals(1, cache.getPayloadCacheMisses());
+        assertEquals(0.5, cache.getPayloadCacheHitRate(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void attachesOnlyToBuiltServices() {
+        new PayloadCache(10).attach(mock(ApnsService.class));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        PayloadCache cache = new PayloadCache(2);
+        byte[] a = cache.encode("a");
+        cache.encode("b");
+        cache.encode("a");
+        cache.encode("c");
+        assertEquals(2, cache.getPayloadCacheSize());
+        assertEquals(1, cache.getPayloadCacheEvictions());
+        assertSame(a, cache.encode("a"));
+        cache.encode("b");
+        assertEquals(4, cache.getPayloadCacheMisses());
+    }
+
+    @Test
+    public void servicePushesCachedPayloads() {
+        ApnsServiceImpl service = new ApnsServiceImpl(mock(ApnsConnection.class), null);
+        new PayloadCache(10).attach(service);
+
+        ApnsNotification first = service.push("2342", "{}");
+        Collection<ApnsNotification> others = service.push(Arrays.asList("2343", "2344"), "{}");
+        // the collection encodes its payload once
+        assertEquals(1, service.getPayloadCacheHits());
+        assertEquals(1, service.getPayloadCacheMisses());
+        for (ApnsNotification other : others) {
+            assertArrayEquals(first.getPayload(), other.getPayload());
+        }
+    }
+}
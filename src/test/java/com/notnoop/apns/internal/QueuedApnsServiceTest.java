@@ -1,22 +1,47 @@
 package com.notnoop.apns.internal;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsNotification.Priority;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.BulkPushResult;
+import com.notnoop.apns.CollapseKeyResolver;
+import com.notnoop.apns.QueueOverflowPolicy;
+import com.notnoop.apns.StopReport;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.QueueFullException;
 
 public class QueuedApnsServiceTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test(expected = IllegalStateException.class)
     public void sendWithoutStarting() {
         QueuedApnsService service = new QueuedApnsService(null);
@@ -67,6 +92,247 @@ public class QueuedApnsServiceTest {
         queued.stop();
     }
 
+    @Test
+    public void pushInBatches() {
+        ConnectionStub connection = spy(new ConnectionStub(0, 4));
+        QueuedApnsService queued = new QueuedApnsService(
+                new ApnsServiceImpl(connection, null), null,
+                new NotificationQueue(), 2, 10, null);
+        queued.start();
+        for (int i = 0; i < 4; i++) {
+            queued.push(notification);
+        }
+        connection.semaphore.acquireUninterruptibly();
+
+        verify(connection, times(4)).sendMessage(notification);
+        assertEquals(4, queued.getDequeuedCount());
+        assertEquals(0, queued.getQueueDepth());
+        queued.stop();
+    }
+
+    @Test(timeout = 10000)
+    @SuppressWarnings("unchecked")
+    public void pushBatchesToAnyService() throws InterruptedException {
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch queuedMore = new CountDownLatch(1);
+        final List<Integer> batches = new ArrayList<Integer>();
+        ApnsService service = mock(ApnsService.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                first.countDown();
+                queuedMore.await();
+                return null;
+            }
+        }).when(service).push(notification);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                synchronized (batches) {
+                    batches.add(((List<ApnsNotification>) invocation.getArguments()[0]).size());
+                    batches.notifyAll();
+                }
+                return null;
+            }
+        }).when(service).pushAll(anyListOf(ApnsNotification.class));
+        QueuedApnsService queued = new QueuedApnsService(service, null,
+                new NotificationQueue(), 1, 10, null);
+        queued.start();
+
+        queued.push(notification);
+        first.await();
+        for (int i = 0; i < 3; i++) {
+            queued.push(notification);
+        }
+        queuedMore.countDown();
+        synchronized (batches) {
+            while (batches.isEmpty()) {
+                batches.wait();
+            }
+        }
+        assertEquals(Arrays.asList(3), batches);
+        queued.stop();
+    }
+
+    @Test(timeout = 20000)
+    public void sendFreshReplacementOfExpiredNotification() throws InterruptedException {
+        ConnectionStub connection = spy(new ConnectionStub(200, 2));
+        QueuedApnsService queued = new QueuedApnsService(
+                new ApnsServiceImpl(connection, null), null,
+                new NotificationQueue(100, QueueOverflowPolicy.BLOCK, 0, 0, 0, false, true),
+                1, 1, null, null, new NotificationCoalescer(CollapseKeyResolver.NO_ALERT));
+        queued.start();
+        queued.push(new ApnsNotification(1, ApnsNotification.MAXIMUM_EXPIRY, "1111", "{}",
+                Priority.SEND_IMMEDIATELY));
+        while (queued.getQueueDepth() > 0) {
+            Thread.sleep(10);
+        }
+
+        // both are queued while the first notification is being sent
+        int past = (int) (System.currentTimeMillis() / 1000) - 60;
+        queued.push(new ApnsNotification(2, past, "2342", "{}", Priority.SEND_IMMEDIATELY));
+        ApnsNotification replacement = new ApnsNotification(3,
+                ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}", Priority.SEND_IMMEDIATELY);
+        queued.push(replacement);
+        connection.semaphore.acquireUninterruptibly();
+
+        verify(connection, times(1)).sendMessage(replacement);
+        queued.stop();
+    }
+
+    @Test(timeout = 20000)
+    public void bulkPushCountsOnlyRejectedNotifications() throws InterruptedException {
+        ConnectionStub connection = spy(new ConnectionStub(10000, 1));
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        QueuedApnsService queued = new QueuedApnsService(
+                new ApnsServiceImpl(connection, null), null,
+                new NotificationQueue(3, QueueOverflowPolicy.REJECT, 0), 1, 1, delegate);
+        queued.start();
+        queued.push(notification);
+        while (queued.getQueueDepth() > 0) {
+            Thread.sleep(10);
+        }
+
+        // the first notification is being sent, the queue takes 3 more
+        List<byte[]> tokens = new ArrayList<byte[]>();
+        for (int i = 0; i < 10; i++) {
+            tokens.add(new byte[] { (byte) i });
+        }
+        BulkPushResult result = queued.pushAll(tokens, "{}".getBytes());
+        assertEquals(3, result.getPushed());
+        assertEquals(7, result.getFailed());
+        assertEquals("03", result.getFailures().get(0).getDeviceToken());
+        // the delegate hears of every rejected notification
+        verify(delegate, times(7)).messageSendFailed(any(ApnsNotification.class), any(QueueFullException.class));
+        queued.stop();
+        connection.interrupt();
+    }
+
+    @Test(timeout = 20000)
+    public void replayJournalOnStart() throws Exception {
+        File directory = folder.getRoot();
+        ConnectionStub connection = spy(new ConnectionStub(10000, 1));
+        NotificationJournal journal = new NotificationJournal(directory, -1);
+        QueuedApnsService queued = new QueuedApnsService(
+                new ApnsServiceImpl(connection, null), null,
+                new NotificationQueue(), 1, 1, null, journal);
+        queued.start();
+        for (int i = 0; i < 3; i++) {
+            queued.push(notification);
+        }
+        while (queued.getQueueDepth() > 2) {
+            Thread.sleep(10);
+        }
+        // the first notification is being sent, the others are still queued
+        queued.stop();
+        connection.interrupt();
+        connection.semaphore.acquireUninterruptibly();
+        while (journal.getPendingCount() > 2) {
+            Thread.sleep(10);
+        }
+
+        ConnectionStub restarted = spy(new ConnectionStub(0, 2));
+        queued = new QueuedApnsService(
+                new ApnsServiceImpl(restarted, null), null,
+                new NotificationQueue(), 1, 1, null, new NotificationJournal(directory, -1));
+        queued.start();
+        restarted.semaphore.acquireUninterruptibly();
+        verify(restarted, times(2)).sendMessage(notification);
+        queued.stop();
+    }
+
+    @Test(timeout = 20000)
+    public void keepFailedNotificationsInJournal() throws InterruptedException {
+        final ApnsNotification failing = new ApnsNotification(1, ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}",
+                Priority.SEND_IMMEDIATELY);
+        final ApnsNotification sent = new ApnsNotification(2, ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}",
+                Priority.SEND_IMMEDIATELY);
+        final ApnsNotification blocked = new ApnsNotification(3, ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}",
+                Priority.SEND_IMMEDIATELY);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ApnsService service = mock(ApnsService.class);
+        doAnswer(new Answer<ApnsNotification>() {
+            public ApnsNotification answer(InvocationOnMock invocation) throws Throwable {
+                Object msg = invocation.getArguments()[0];
+                if (msg == failing) {
+                    throw new NetworkIOException("connection lost");
+                }
+                if (msg == blocked) {
+                    sending.countDown();
+                    release.await();
+                }
+                return null;
+            }
+        }).when(service).push(any(ApnsNotification.class));
+
+        NotificationJournal journal = new NotificationJournal(folder.getRoot(), -1);
+        QueuedApnsService queued = new QueuedApnsService(service, null,
+                new NotificationQueue(), 1, 1, null, journal);
+        queued.start();
+        queued.push(failing);
+        queued.push(sent);
+        queued.push(blocked);
+        sending.await();
+
+        // the consumer is done with the first two: only the sent one is complete
+        assertEquals(2, journal.getPendingCount());
+        release.countDown();
+        queued.stop();
+    }
+
+    @Test
+    public void identifiersFollowReplayedOnes() {
+        NotificationJournal journal = new NotificationJournal(folder.getRoot(), -1);
+        journal.append(new ApnsNotification(41, ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}",
+                Priority.SEND_IMMEDIATELY));
+        journal.close();
+
+        QueuedApnsService queued = new QueuedApnsService(
+                new ApnsServiceImpl(new ConnectionStub(0, 1), null), null,
+                new NotificationQueue(), 1, 1, null, new NotificationJournal(folder.getRoot(), -1));
+        queued.start();
+        assertEquals(42, queued.push("2342", "{}").getIdentifier());
+        queued.stop();
+    }
+
+    @Test
+    public void drainOnStop() {
+        ConnectionStub connection = spy(new ConnectionStub(20, 10));
+        QueuedApnsService queued = new QueuedApnsService(
+                new ApnsServiceImpl(connection, null), null,
+                new NotificationQueue(), 2, 1, null);
+        queued.start();
+        for (int i = 0; i < 10; i++) {
+            queued.push(notification);
+        }
+
+        StopReport report = queued.stop(5, TimeUnit.SECONDS);
+        assertEquals(10, report.getSent());
+        assertTrue(report.isDrained());
+        verify(connection, times(10)).sendMessage(notification);
+    }
+
+    @Test(timeout = 20000)
+    public void abandonOnStopTimeout() throws InterruptedException {
+        ConnectionStub connection = spy(new ConnectionStub(10000, 1));
+        QueuedApnsService queued = new QueuedApnsService(
+                new ApnsServiceImpl(connection, null), null,
+                new NotificationQueue(), 1, 1, null);
+        queued.start();
+        for (int i = 0; i < 3; i++) {
+            queued.push(notification);
+        }
+        while (queued.getQueueDepth() > 2) {
+            Thread.sleep(10);
+        }
+
+        // the first notification is being sent, the others are still queued
+        StopReport report = queued.stop(100, TimeUnit.MILLISECONDS);
+        assertEquals(0, report.getSent());
+        assertEquals(2, report.getAbandoned().size());
+        assertEquals(0, queued.getQueueDepth());
+        connection.interrupt();
+    }
+
     protected ApnsService newService(ApnsConnection connection, ApnsFeedbackConnection feedback) {
         ApnsService service = new ApnsServiceImpl(connection, null);
         ApnsService queued = new QueuedApnsService(service);
@@ -98,6 +364,12 @@ public class QueuedApnsServiceTest {
             semaphore.release();
         }
 
+        public void sendMessages(Collection<ApnsNotification> messages) {
+            for (ApnsNotification m : messages) {
+                sendMessage(m);
+            }
+        }
+
         protected void interrupt() {
             stop = true;
         }
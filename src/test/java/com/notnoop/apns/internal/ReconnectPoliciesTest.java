@@ -0,0 +1,53 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ReconnectPoliciesTest {
+
+    @Test
+    public void staggeredCopiesAreSpreadOverPeriod() {
+        long period = 60 * 1000;
+        ReconnectPolicies.Staggered prototype = new ReconnectPolicies.Staggered(period, 0, 0);
+        prototype.reconnected();
+
+        long start = System.currentTimeMillis();
+        Set<Long> buckets = new HashSet<Long>();
+        for (int i = 0; i < 10; i++) {
+            ReconnectPolicies.Staggered copy = prototype.copy();
+            copy.reconnected();
+            long offset = copy.getNextReconnect() - start;
+            assertTrue(offset >= 0 && offset <= period + 100);
+            buckets.add(offset * 10 / period);
+        }
+        // ten copies spread over at least 8 out of 10 buckets of the period
+        assertTrue(buckets.size() >= 8);
+    }
+
+    @Test
+    public void staggeredDoesNotReconnectBeforeConnecting() {
+        ReconnectPolicies.Staggered policy = new ReconnectPolicies.Staggered(0, 0, 0);
+        assertFalse(policy.shouldReconnect());
+        policy.reconnected();
+        assertTrue(policy.shouldReconnect());
+    }
+
+    @Test
+    public void staggeredReconnectionsAreRolling() {
+        ReconnectPolicies.Staggered first = new ReconnectPolicies.Staggered(0, 0, 60 * 1000);
+        ReconnectPolicies.Staggered second = first.copy();
+        first.reconnected();
+        second.reconnected();
+
+        int due = 0;
+        if (first.shouldReconnect()) due++;
+        if (second.shouldReconnect()) due++;
+        assertEquals(1, due);
+    }
+}
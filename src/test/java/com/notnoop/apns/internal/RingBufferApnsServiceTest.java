@@ -0,0 +1,130 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.StopReport;
+
+public class RingBufferApnsServiceTest {
+
+    private static class RecordingConnection extends QueuedApnsServiceTest.ConnectionStub {
+        final List<ApnsNotification> sent;
+        final AtomicInteger writes;
+        final AtomicInteger copies;
+        final CountDownLatch latch;
+
+        RecordingConnection(List<ApnsNotification> sent, AtomicInteger writes,
+                AtomicInteger copies, CountDownLatch latch) {
+            super(0, 0);
+            this.sent = sent;
+            this.writes = writes;
+            this.copies = copies;
+            this.latch = latch;
+        }
+
+        @Override
+        public synchronized void sendMessage(ApnsNotification m) {
+            sendMessages(Arrays.asList(m));
+        }
+
+        @Override
+        public void sendMessages(Collection<ApnsNotification> messages) {
+            writes.incrementAndGet();
+            synchronized (sent) {
+                sent.addAll(messages);
+            }
+            for (int i = 0; i < messages.size(); i++) {
+                latch.countDown();
+            }
+        }
+
+        @Override
+        public ApnsConnection copy() {
+            copies.incrementAndGet();
+            return new RecordingConnection(sent, writes, copies, latch);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void writesEveryNotification() throws Exception {
+        List<ApnsNotification> sent = new ArrayList<ApnsNotification>();
+        AtomicInteger writes = new AtomicInteger();
+        AtomicInteger copies = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1000);
+        RingBufferApnsService service = new RingBufferApnsService(
+                new RecordingConnection(sent, writes, copies, latch), null, 64, 2, 32, null);
+        service.start();
+
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            tokens.add("2342");
+        }
+        service.push(tokens, "{}");
+        for (int i = 0; i < 500; i++) {
+            service.push("2342", "{}");
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        service.stop();
+        assertEquals(1, copies.get());
+        assertEquals(1000, sent.size());
+        // notifications are written in ranges rather than one by one
+        assertTrue(writes.get() < 1000);
+    }
+
+    @Test(timeout = 20000)
+    public void drainOnStop() {
+        QueuedApnsServiceTest.ConnectionStub connection = new QueuedApnsServiceTest.ConnectionStub(10, 10);
+        RingBufferApnsService service = new RingBufferApnsService(connection, null, 16, 1, 1, null);
+        service.start();
+        for (int i = 0; i < 10; i++) {
+            service.push("2342", "{}");
+        }
+
+        StopReport report = service.stop(5, TimeUnit.SECONDS);
+        assertEquals(10, report.getSent());
+        assertTrue(report.isDrained());
+        assertEquals(0, service.getQueueDepth());
+    }
+
+    @Test(timeout = 20000)
+    public void abandonOnStopTimeout() throws InterruptedException {
+        QueuedApnsServiceTest.ConnectionStub connection = new QueuedApnsServiceTest.ConnectionStub(10000, 1);
+        RingBufferApnsService service = new RingBufferApnsService(connection, null, 16, 1, 1, null);
+        service.start();
+        ApnsNotification notification = new ApnsNotification(1,
+                ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}", Priority.SEND_IMMEDIATELY);
+        for (int i = 0; i < 3; i++) {
+            service.push(notification);
+        }
+        while (service.getQueueDepth() > 2) {
+            Thread.sleep(10);
+        }
+
+        // the first notification is being sent, the others are still in the ring
+        StopReport report = service.stop(100, TimeUnit.MILLISECONDS);
+        assertEquals(0, report.getSent());
+        assertEquals(Arrays.asList(notification, notification), report.getAbandoned());
+        assertEquals(0, service.getQueueDepth());
+        connection.interrupt();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pushBeforeStart() {
+        RingBufferApnsService service = new RingBufferApnsService(
+                new QueuedApnsServiceTest.ConnectionStub(0, 1), null, 8, 1, 8, null);
+        service.push("2342", "{}");
+    }
+}
@@ -0,0 +1,89 @@
+package com.notnoop.apns.internal;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.QueueOverflowPolicy;
+
+/**
+ * Compares the throughput of {@link QueuedApnsService} and
+ * {@link RingBufferApnsService} when several producer threads push
+ * notifications to connections that discard them.
+ *
+ * Run with {@code java -cp ... com.notnoop.apns.internal.RingBufferBenchmark
+ * [producers] [notificationsPerProducer] [connections]}.
+ */
+public class RingBufferBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int perProducer = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        for (int i = 0; i < 3; i++) {
+            CountDownLatch sent = new CountDownLatch(producers * perProducer);
+            run("queued", new QueuedApnsService(new ApnsServiceImpl(new NullConnection(sent), null), null,
+                    new NotificationQueue(64 * 1024, QueueOverflowPolicy.BLOCK, 0),
+                    connections, 256, null), producers, perProducer, sent);
+
+            sent = new CountDownLatch(producers * perProducer);
+            run("ring", new RingBufferApnsService(new NullConnection(sent), null, 64 * 1024,
+                    connections, 256, null), producers, perProducer, sent);
+        }
+    }
+
+    private static void run(String mode, final ApnsService service, int producers, final int perProducer,
+            CountDownLatch sent) throws InterruptedException {
+        final ApnsNotification notification = new ApnsNotification(1,
+                ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}", Priority.SEND_IMMEDIATELY);
+        service.start();
+
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < perProducer; j++) {
+                        service.push(notification);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        sent.await();
+        long elapsed = System.nanoTime() - start;
+        service.stop();
+
+        System.out.printf("%-7s %,12.0f notifications/s%n", mode,
+                producers * (double) perProducer * 1e9 / elapsed);
+    }
+
+    private static class NullConnection extends QueuedApnsServiceTest.ConnectionStub {
+        private final CountDownLatch sent;
+
+        NullConnection(CountDownLatch sent) {
+            super(0, 0);
+            this.sent = sent;
+        }
+
+        @Override
+        public void sendMessage(ApnsNotification m) {
+            sent.countDown();
+        }
+
+        @Override
+        public void sendMessages(Collection<ApnsNotification> messages) {
+            for (int i = 0; i < messages.size(); i++) {
+                sent.countDown();
+            }
+        }
+
+        @Override
+        public ApnsConnection copy() {
+            return new NullConnection(sent);
+        }
+    }
+}
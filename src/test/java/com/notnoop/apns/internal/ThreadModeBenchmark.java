@@ -0,0 +1,93 @@
+package com.notnoop.apns.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsNotification.Priority;
+
+/**
+ * Compares the number of platform threads and the throughput of a large
+ * connection pool when running on platform threads and on virtual threads.
+ *
+ * Every connection simulates a blocking socket write and has a monitoring
+ * thread blocked on a read, like {@link ApnsConnectionImpl}.  Run with
+ * {@code java -cp ... com.notnoop.apns.internal.ThreadModeBenchmark
+ * [connections] [notificationsPerConnection]} on Java 21 or later.
+ */
+public class ThreadModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int perConnection = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        System.out.println("Virtual threads supported: " + VirtualThreads.isSupported());
+        run("platform", Executors.defaultThreadFactory(), connections, perConnection);
+        if (VirtualThreads.isSupported()) {
+            run("virtual", VirtualThreads.newThreadFactory("Benchmark-"), connections, perConnection);
+        }
+    }
+
+    private static void run(String mode, ThreadFactory factory, int connections, int perConnection)
+            throws InterruptedException {
+        final CountDownLatch stop = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicLong sent = new AtomicLong();
+        final ApnsNotification notification = new ApnsNotification(1,
+                ApnsNotification.MAXIMUM_EXPIRY, "2342", "{}", Priority.SEND_IMMEDIATELY);
+
+        ApnsConnection stub = new QueuedApnsServiceTest.ConnectionStub(1, 0) {
+            @Override
+            public ApnsConnection copy() {
+                return this;
+            }
+
+            @Override
+            public void sendMessage(ApnsNotification m) {
+                Utilities.sleep(1);
+                sent.incrementAndGet();
+            }
+        };
+        final ApnsPooledConnection pool = new ApnsPooledConnection(stub, connections,
+                Executors.newFixedThreadPool(connections, factory));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            // monitoring thread, blocked until the connection closes
+            factory.newThread(new Runnable() {
+                public void run() {
+                    try {
+                        stop.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }).start();
+            // producer
+            final int count = perConnection;
+            factory.newThread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < count; j++) {
+                        pool.sendMessage(notification);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        int peakThreads = 0;
+        do {
+            peakThreads = Math.max(peakThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+        } while (!done.await(50, TimeUnit.MILLISECONDS));
+        long elapsed = System.nanoTime() - start;
+        stop.countDown();
+        pool.close();
+
+        System.out.printf("%-8s connections=%d platform threads (peak)=%d notifications=%d throughput=%.0f/s%n",
+                mode, connections, peakThreads, sent.get(), sent.get() * 1e9 / elapsed);
+    }
+}